@@ -0,0 +1,316 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+import java.util.Arrays;
+
+/**
+ * Barnes-Hut O(N log N) engine.<br>
+ * Each step, a quadtree containing all the Points is built, and every node
+ * stores the total mass and center of mass of the Points inside it.<br>
+ * When calculating the attraction on a Point, a node that is far enough away
+ * is treated as a single Point: a node of size s at distance d is used if
+ * s/d &lt; theta, otherwise its children are visited.<br>
+ * theta=0 visits every leaf, giving the same results as the direct-sum (but
+ * slower). Higher values are faster and less precise, 0.5 is a good
+ * compromise. Use measureError to see how precise a given theta is.
+ *
+ * @author Federico
+ */
+public class BarnesHutEngine extends ForceEngine {
+
+    /**
+     * default opening angle
+     */
+    public static final double DEFAULT_THETA = 0.5;
+
+    /**
+     * maximum depth of the tree. Points closer than this can resolve end up in
+     * the same leaf, and are then calculated directly
+     */
+    private static final int MAX_DEPTH = 48;
+
+    /**
+     * size of the stack used to visit the tree: each visited node pushes at
+     * most 4 children
+     */
+    private static final int STACK_SIZE = 4 * (MAX_DEPTH + 1);
+
+    private volatile double theta;
+
+    /**
+     * the tree is stored in parallel arrays instead of objects, so it can be
+     * rebuilt every step without creating garbage.<br>
+     * nodeX,nodeY,nodeHalf: geometric center and half the size of the node<br>
+     * nodeMass,nodeComX,nodeComY: total mass and center of mass<br>
+     * nodeChild: 4 children per node, -1 if there is no child in that
+     * quadrant<br>
+     * nodeBody: first body in a leaf, -1 for internal nodes. other bodies in
+     * the same leaf are linked with bodyNext
+     */
+    private double[] nodeX, nodeY, nodeHalf, nodeMass, nodeComX, nodeComY;
+    private int[] nodeChild, nodeBody;
+    private int nNodes;
+
+    /**
+     * positions and masses of the bodies in the tree (taken from the
+     * PointStore during prepare), and links between bodies in the same leaf
+     */
+    private double[] bodyX, bodyY, bodyMass;
+    private int[] bodyNext = new int[0];
+
+    /**
+     * with close encounter regularization, radius of the largest point: nodes
+     * that might contain points overlapping the current point are always
+     * opened
+     */
+    private double maxRadius;
+
+    private final ThreadLocal<int[]> stacks = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[STACK_SIZE];
+        }
+    };
+
+    /**
+     * creates a new Barnes-Hut engine with the default opening angle
+     */
+    public BarnesHutEngine() {
+        this(DEFAULT_THETA);
+    }
+
+    /**
+     * creates a new Barnes-Hut engine
+     *
+     * @param theta opening angle &gt;=0
+     */
+    public BarnesHutEngine(double theta) {
+        setTheta(theta);
+        allocateNodes(16);
+    }
+
+    /**
+     *
+     * @return opening angle
+     */
+    public double getTheta() {
+        return theta;
+    }
+
+    /**
+     * note: the new value will be used from the next simulation step
+     *
+     * @param theta opening angle &gt;=0
+     */
+    public void setTheta(double theta) {
+        if (theta < 0 || Double.isNaN(theta)) {
+            throw new IllegalArgumentException("Theta must be >=0");
+        }
+        this.theta = theta;
+    }
+
+    private void allocateNodes(int capacity) {
+        if (nodeX != null && nodeX.length >= capacity) {
+            return;
+        }
+        capacity = Math.max(capacity, nodeX == null ? 0 : nodeX.length * 2);
+        if (nodeX == null) {
+            nodeX = new double[capacity];
+            nodeY = new double[capacity];
+            nodeHalf = new double[capacity];
+            nodeMass = new double[capacity];
+            nodeComX = new double[capacity];
+            nodeComY = new double[capacity];
+            nodeBody = new int[capacity];
+            nodeChild = new int[capacity * 4];
+        } else {
+            nodeX = Arrays.copyOf(nodeX, capacity);
+            nodeY = Arrays.copyOf(nodeY, capacity);
+            nodeHalf = Arrays.copyOf(nodeHalf, capacity);
+            nodeMass = Arrays.copyOf(nodeMass, capacity);
+            nodeComX = Arrays.copyOf(nodeComX, capacity);
+            nodeComY = Arrays.copyOf(nodeComY, capacity);
+            nodeBody = Arrays.copyOf(nodeBody, capacity);
+            nodeChild = Arrays.copyOf(nodeChild, capacity * 4);
+        }
+    }
+
+    private int newNode(double x, double y, double half) {
+        if (nNodes == nodeX.length) {
+            allocateNodes(nNodes + 1);
+        }
+        final int n = nNodes++;
+        nodeX[n] = x;
+        nodeY[n] = y;
+        nodeHalf[n] = half;
+        nodeBody[n] = -1;
+        nodeChild[4 * n] = -1;
+        nodeChild[4 * n + 1] = -1;
+        nodeChild[4 * n + 2] = -1;
+        nodeChild[4 * n + 3] = -1;
+        return n;
+    }
+
+    private int quadrant(int node, double x, double y) {
+        return (x < nodeX[node] ? 0 : 1) + (y < nodeY[node] ? 0 : 2);
+    }
+
+    private int newChild(int node, int q) {
+        final double h = nodeHalf[node] / 2;
+        final int c = newNode(nodeX[node] + ((q & 1) == 0 ? -h : h), nodeY[node] + ((q & 2) == 0 ? -h : h), h);
+        nodeChild[4 * node + q] = c;
+        return c;
+    }
+
+    private boolean isLeaf(int node) {
+        return nodeBody[node] != -1;
+    }
+
+    /**
+     * builds the tree
+     *
+     * @param points points
+     */
+    @Override
+    protected void prepare(PointStore points) {
+        final int n = points.size();
+        bodyX = points.x;
+        bodyY = points.y;
+        bodyMass = points.mass;
+        if (bodyNext.length < n) {
+            bodyNext = new int[Math.max(n, bodyNext.length * 2)];
+        }
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        maxRadius = 0;
+        for (int i = 0; i < n; i++) {
+            bodyNext[i] = -1;
+            if (closeEncounters) {
+                maxRadius = Math.max(maxRadius, points.radius[i]);
+            }
+            minX = Math.min(minX, bodyX[i]);
+            minY = Math.min(minY, bodyY[i]);
+            maxX = Math.max(maxX, bodyX[i]);
+            maxY = Math.max(maxY, bodyY[i]);
+        }
+        nNodes = 0;
+        if (n == 0) {
+            return;
+        }
+        allocateNodes(2 * n + 1);
+        final double half = Math.max(Math.max(maxX - minX, maxY - minY) / 2 * 1.0001, Double.MIN_NORMAL);
+        final int root = newNode((minX + maxX) / 2, (minY + maxY) / 2, half);
+        nodeBody[root] = 0;
+        for (int i = 1; i < n; i++) {
+            insert(root, i);
+        }
+        //children are always created after their parents, so going backwards all children are done before their parent
+        for (int node = nNodes - 1; node >= 0; node--) {
+            double m = 0, cx = 0, cy = 0;
+            if (isLeaf(node)) {
+                for (int b = nodeBody[node]; b != -1; b = bodyNext[b]) {
+                    m += bodyMass[b];
+                    cx += bodyX[b] * bodyMass[b];
+                    cy += bodyY[b] * bodyMass[b];
+                }
+            } else {
+                for (int q = 0; q < 4; q++) {
+                    final int c = nodeChild[4 * node + q];
+                    if (c != -1) {
+                        m += nodeMass[c];
+                        cx += nodeComX[c] * nodeMass[c];
+                        cy += nodeComY[c] * nodeMass[c];
+                    }
+                }
+            }
+            nodeMass[node] = m;
+            nodeComX[node] = cx / m;
+            nodeComY[node] = cy / m;
+        }
+    }
+
+    private void insert(int node, int b) {
+        for (int depth = 0;; depth++) {
+            if (isLeaf(node)) {
+                if (depth == MAX_DEPTH) {
+                    //too close to be separated, keep them in the same leaf
+                    bodyNext[b] = nodeBody[node];
+                    nodeBody[node] = b;
+                    return;
+                }
+                //split the leaf: move its body to a child and continue as an internal node
+                final int old = nodeBody[node];
+                nodeBody[node] = -1;
+                nodeBody[newChild(node, quadrant(node, bodyX[old], bodyY[old]))] = old;
+            }
+            final int q = quadrant(node, bodyX[b], bodyY[b]);
+            final int c = nodeChild[4 * node + q];
+            if (c == -1) {
+                nodeBody[newChild(node, q)] = b;
+                return;
+            }
+            node = c;
+        }
+    }
+
+    @Override
+    protected long getCostPerPoint(PointStore points) {
+        //about log2(n) nodes visited per level of precision
+        return 16L * (64 - Long.numberOfLeadingZeros(points.size() + 1));
+    }
+
+    @Override
+    protected void calculateAttraction(PointStore points, int from, int to) {
+        final double theta2 = theta * theta, softening2 = this.softening2;
+        final double[] radius = closeEncounters ? points.radius : null;
+        final int[] stack = stacks.get();
+        for (int i = from; i < to; i++) {
+            final double px = bodyX[i], py = bodyY[i], pr = radius != null ? radius[i] : 0, reach = radius != null ? pr + maxRadius : 0;
+            double dx = 0, dy = 0;
+            int sp = 0;
+            stack[sp++] = 0;
+            while (sp > 0) {
+                final int node = stack[--sp];
+                if (isLeaf(node)) {
+                    for (int b = nodeBody[node]; b != -1; b = bodyNext[b]) {
+                        if (b == i) {
+                            continue;
+                        }
+                        final double diffX = bodyX[b] - px, diffY = bodyY[b] - py;
+                        double distance2 = diffX * diffX + diffY * diffY;
+                        if (radius != null) {
+                            final double contact = pr + radius[b];
+                            distance2 = Math.max(distance2, contact * contact);
+                        }
+                        distance2 += softening2;
+                        final double f = 1 / (distance2 * Math.sqrt(distance2));
+                        dx += bodyMass[b] * diffX * f;
+                        dy += bodyMass[b] * diffY * f;
+                    }
+                    continue;
+                }
+                final double diffX = nodeComX[node] - px, diffY = nodeComY[node] - py;
+                final double d2 = diffX * diffX + diffY * diffY, size = 2 * nodeHalf[node];
+                final double h = nodeHalf[node] + reach;
+                final boolean inside = Math.abs(px - nodeX[node]) <= h && Math.abs(py - nodeY[node]) <= h;
+                if (!inside && size * size < theta2 * d2) {
+                    //far enough, use the center of mass
+                    final double distance2 = d2 + softening2;
+                    final double f = 1 / (distance2 * Math.sqrt(distance2));
+                    dx += nodeMass[node] * diffX * f;
+                    dy += nodeMass[node] * diffY * f;
+                } else {
+                    for (int q = 0; q < 4; q++) {
+                        final int c = nodeChild[4 * node + q];
+                        if (c != -1) {
+                            stack[sp++] = c;
+                        }
+                    }
+                }
+            }
+            setAttractionVector(points, i, dx * g, dy * g);
+        }
+    }
+
+}
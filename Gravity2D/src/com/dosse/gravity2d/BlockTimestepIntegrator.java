@@ -0,0 +1,276 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+/**
+ * Leapfrog (kick-drift-kick) with block timesteps: each point moves with its
+ * own timestep, dt/2^level, chosen from how fast its attraction changes.<br>
+ * The step is split in 2^maxLevel substeps. At each substep all the points
+ * drift, but only the points whose own timestep ends there (the active ones)
+ * get their attraction calculated and their velocity updated. In a system with
+ * a few close encounters and many quiet points, most points stay on level 0
+ * and only cost 1 attraction calculation per step, while the few points that
+ * need it get up to 2^maxLevel. Substeps where no point is active cost
+ * nothing.<br>
+ * Timesteps are powers of 2 and always aligned, so the points are all in sync
+ * at the end of each step (and collisions work as usual).<br>
+ * The attraction calculated at the end of a step is used again for the first
+ * half kick of the next one. It's only calculated again for the points that
+ * are stale (see PointStore.stale): new points, points that were joined with
+ * others, or all of them if the engine settings changed.<br>
+ * The level is chosen from the attraction and its rate of change (jerk) at
+ * the end of each timestep of the point, and kept from one step to the next.
+ * Stale points start from the time it takes them to move by their own size.
+ * A point can move to a smaller timestep at any time, and to a larger one
+ * only where the larger timestep would begin.
+ *
+ * @author Federico
+ */
+public class BlockTimestepIntegrator extends Integrator {
+
+    public static final int DEFAULT_MAX_LEVEL = 6;
+    public static final double DEFAULT_ETA = 0.1;
+
+    private final int maxLevel;
+    private final double eta;
+
+    /**
+     * attraction of each point at the beginning of its current timestep (to
+     * estimate the jerk). the levels are in the PointStore
+     */
+    private double[] openAx = new double[0], openAy = new double[0];
+
+    /**
+     * number of points on each level. recounted when levels change
+     */
+    private final int[] levelCount;
+    private boolean countsValid;
+
+    /**
+     * active points in the current stage (in stage 0, the stale ones), and
+     * the smallest level that is active in it
+     */
+    private int[] active = new int[0];
+    private int activeCount;
+    private int minActiveLevel;
+
+    /**
+     * time the points have to drift before the current substep, and time not
+     * drifted yet because the previous substeps were skipped
+     */
+    private double driftNow, driftPending;
+
+    /**
+     * first substep that is not skipped (-1 until it's known): all the points
+     * get the first half kick of the step there, before drifting
+     */
+    private int openingStage;
+
+    /**
+     * creates a block timestep integrator with the default settings
+     */
+    public BlockTimestepIntegrator() {
+        this(DEFAULT_MAX_LEVEL, DEFAULT_ETA);
+    }
+
+    /**
+     *
+     * @param maxLevel maximum level (0-20): the smallest timestep is
+     * dt/2^maxLevel
+     * @param eta accuracy parameter &gt;0: the timestep of a point is about
+     * eta*|attraction|/|jerk|. smaller is more precise
+     */
+    public BlockTimestepIntegrator(int maxLevel, double eta) {
+        if (maxLevel < 0 || maxLevel > 20) {
+            throw new IllegalArgumentException("Max level must be 0-20");
+        }
+        if (!(eta > 0)) {
+            throw new IllegalArgumentException("Eta must be >0");
+        }
+        this.maxLevel = maxLevel;
+        this.eta = eta;
+        levelCount = new int[maxLevel + 1];
+    }
+
+    public int getMaxLevel() {
+        return maxLevel;
+    }
+
+    public double getEta() {
+        return eta;
+    }
+
+    /**
+     * stage 0 calculates the attraction of the stale points and assigns their
+     * levels, stages 1 to 2^maxLevel are the substeps
+     *
+     * @return number of stages
+     */
+    @Override
+    public int getStages() {
+        return 1 + (1 << maxLevel);
+    }
+
+    @Override
+    protected void prepare(PointStore points) {
+        final int n = points.size();
+        if (openAx.length < n) {
+            final int capacity = Math.max(n, openAx.length * 2);
+            openAx = new double[capacity];
+            openAy = new double[capacity];
+            active = new int[capacity];
+        }
+        driftPending = 0;
+        openingStage = -1;
+    }
+
+    @Override
+    protected void prepareStage(PointStore points, int stage, double dt) {
+        final int n = points.size();
+        final int[] level = points.level;
+        if (stage == 0) {
+            //the other points still have the attraction from the end of the previous step
+            final boolean[] stale = points.stale;
+            activeCount = 0;
+            for (int i = 0; i < n; i++) {
+                if (stale[i]) {
+                    active[activeCount++] = i;
+                } else if (level[i] > maxLevel) {
+                    level[i] = maxLevel; //set by an integrator with more levels
+                }
+            }
+            minActiveLevel = 0;
+            countsValid = false;
+            return;
+        }
+        driftPending += dt / (1 << maxLevel);
+        //points on level l are active every 2^(maxLevel-l) substeps
+        minActiveLevel = maxLevel - Integer.numberOfTrailingZeros(stage);
+        if (!countsValid) {
+            for (int l = 0; l <= maxLevel; l++) {
+                levelCount[l] = 0;
+            }
+            for (int i = 0; i < n; i++) {
+                levelCount[level[i]]++;
+            }
+            countsValid = true;
+        }
+        int count = 0;
+        for (int l = minActiveLevel; l <= maxLevel; l++) {
+            count += levelCount[l];
+        }
+        if (count == 0) {
+            activeCount = 0;
+            return;
+        }
+        activeCount = 0;
+        for (int i = 0; i < n; i++) {
+            if (level[i] >= minActiveLevel) {
+                active[activeCount++] = i;
+            }
+        }
+        driftNow = driftPending;
+        driftPending = 0;
+        if (openingStage < 0) {
+            openingStage = stage;
+        }
+        countsValid = false; //active points may change level
+    }
+
+    @Override
+    protected int getActiveCount() {
+        return activeCount;
+    }
+
+    @Override
+    protected int[] getActivePoints() {
+        return active;
+    }
+
+    @Override
+    protected boolean hasBeforeForces(int stage) {
+        return stage > 0;
+    }
+
+    @Override
+    protected void beforeForces(PointStore points, int from, int to, int stage, double dt) {
+        if (stage == openingStage) {
+            //beginning of the step: first half kick of all the points
+            final double[] velX = points.velX, velY = points.velY, ax = points.ax, ay = points.ay;
+            final int[] level = points.level;
+            for (int i = from; i < to; i++) {
+                openAx[i] = ax[i];
+                openAy[i] = ay[i];
+                final double h = dt / (1 << level[i]);
+                velX[i] += ax[i] * h / 2;
+                velY[i] += ay[i] * h / 2;
+            }
+        }
+        drift(points, from, to, driftNow);
+    }
+
+    @Override
+    protected void afterForces(PointStore points, int from, int to, int stage, double dt) {
+        final double[] velX = points.velX, velY = points.velY, ax = points.ax, ay = points.ay, radius = points.radius;
+        final int[] level = points.level;
+        if (stage == 0) {
+            final boolean[] stale = points.stale;
+            for (int i = from; i < to; i++) {
+                if (stale[i]) {
+                    //no jerk yet, use the time it takes to move by its own size
+                    level[i] = levelFor(eta * Math.sqrt(radius[i] / Math.sqrt(ax[i] * ax[i] + ay[i] * ay[i])), dt);
+                    stale[i] = false;
+                }
+            }
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            if (level[i] < minActiveLevel) {
+                continue;
+            }
+            //end of the timestep of this point: second half kick
+            final double h = dt / (1 << level[i]);
+            velX[i] += ax[i] * h / 2;
+            velY[i] += ay[i] * h / 2;
+            final double jx = (ax[i] - openAx[i]) / h, jy = (ay[i] - openAy[i]) / h;
+            int l = levelFor(eta * Math.sqrt((ax[i] * ax[i] + ay[i] * ay[i]) / (jx * jx + jy * jy)), dt);
+            if (stage == (1 << maxLevel)) {
+                //end of the step: the level is kept for the next one, and so is the attraction, for its first half kick
+                level[i] = l;
+                continue;
+            }
+            //larger timesteps can only begin where they are aligned
+            l = Math.max(l, minActiveLevel);
+            //beginning of the next timestep of this point: first half kick
+            level[i] = l;
+            openAx[i] = ax[i];
+            openAy[i] = ay[i];
+            final double next = dt / (1 << l);
+            velX[i] += ax[i] * next / 2;
+            velY[i] += ay[i] * next / 2;
+        }
+    }
+
+    /**
+     *
+     * @param desired desired timestep
+     * @param dt timestep of the simulation
+     * @return smallest level with a timestep not larger than desired
+     */
+    private int levelFor(double desired, double dt) {
+        if (!(desired < dt)) {
+            return 0; //also if there's no attraction or jerk (NaN or infinity)
+        }
+        if (!(desired > 0)) {
+            return maxLevel;
+        }
+        final double ratio = dt / desired;
+        int l = Math.getExponent(ratio);
+        if (Math.scalb(1.0, l) < ratio) {
+            l++;
+        }
+        return Math.min(l, maxLevel);
+    }
+
+}
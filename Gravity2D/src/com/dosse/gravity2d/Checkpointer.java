@@ -0,0 +1,376 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Saves checkpoints of a running simulation periodically, without stopping
+ * it.<br>
+ * Attach it with Simulation.setCheckpointer. When a checkpoint is due, the
+ * master copies the points into buffers of the checkpointer at the end of a
+ * step (a few array copies, while it holds the lock anyway), and a background
+ * thread writes them to disk in the format of Simulation.saveState(File,
+ * double[]) while the simulation goes on. If the previous checkpoint is still
+ * being written, the checkpoint is skipped instead of waiting for it.<br>
+ * Each checkpoint is written to a temporary file, forced to the disk, and then
+ * moved to its name atomically (where the file system allows it), so a crash,
+ * even of the OS, never leaves a truncated checkpoint. Only the last few are
+ * kept: older ones are deleted.<br>
+ * The numbering continues after the checkpoints with the same prefix that are
+ * already in the directory, and they count for the retention too, so after a
+ * crash a new checkpointer in the same directory doesn't overwrite them with
+ * lower numbers, or leave them around looking newer than its own.<br>
+ * Load a checkpoint with Simulation.loadState(File).
+ *
+ * @author Federico
+ */
+public class Checkpointer {
+
+    private final File directory;
+    private final String prefix;
+
+    /**
+     * minimum time between 2 checkpoints (nanoseconds), and how many of them
+     * are kept
+     */
+    private volatile long interval;
+    private volatile int retention;
+
+    /**
+     * copy of the points to write: x, y, velX, velY, mass and density, number
+     * of points and simulated time. written by the master while pending is
+     * false, read by the writer while it's true
+     */
+    private double[][] columns = new double[StateFile.N_COLUMNS][0];
+    private int n;
+    private double time;
+
+    /**
+     * true while a checkpoint has been captured and is not written yet.
+     * guarded by this
+     */
+    private boolean pending = false, closed = false;
+
+    /**
+     * when the last checkpoint was captured, and if one has been requested
+     * with checkpointNow. only used by the master
+     */
+    private long lastCapture = System.nanoTime();
+    private volatile boolean requested = false;
+
+    /**
+     * checkpoints that are still on disk, oldest first, and number of the
+     * last one. filled with the existing ones at construction, then only used
+     * by the writer
+     */
+    private final ArrayDeque<File> kept = new ArrayDeque<File>();
+    private long sequence = 0;
+
+    private volatile File latest = null;
+    private volatile IOException lastError = null;
+    private volatile long written = 0, skipped = 0;
+
+    private final Thread writer = new Thread() {
+        @Override
+        public void run() {
+            for (;;) {
+                synchronized (Checkpointer.this) {
+                    while (!pending && !closed) {
+                        try {
+                            Checkpointer.this.wait();
+                        } catch (InterruptedException ex) {
+                        }
+                    }
+                    if (!pending) {
+                        return; //closed, and nothing left to write
+                    }
+                }
+                write();
+                synchronized (Checkpointer.this) {
+                    pending = false;
+                    Checkpointer.this.notifyAll();
+                }
+            }
+        }
+    };
+
+    /**
+     * creates a checkpointer that keeps the last 3 checkpoints
+     *
+     * @param directory directory where the checkpoints are saved. created if
+     * it doesn't exist
+     * @param prefix name of the checkpoints: they're called
+     * prefix-00000001.gds, prefix-00000002.gds and so on, continuing after
+     * the ones already in the directory
+     * @param interval minimum time between 2 checkpoints (milliseconds)
+     */
+    public Checkpointer(File directory, String prefix, long interval) {
+        this(directory, prefix, interval, 3);
+    }
+
+    /**
+     * creates a checkpointer
+     *
+     * @param directory directory where the checkpoints are saved. created if
+     * it doesn't exist
+     * @param prefix name of the checkpoints: they're called
+     * prefix-00000001.gds, prefix-00000002.gds and so on, continuing after
+     * the ones already in the directory. the existing ones count for the
+     * retention, so the oldest of them are deleted when the first checkpoint
+     * is written
+     * @param interval minimum time between 2 checkpoints (milliseconds)
+     * @param retention number of checkpoints to keep &gt;0
+     */
+    public Checkpointer(File directory, String prefix, long interval, int retention) {
+        if (directory == null || prefix == null) {
+            throw new IllegalArgumentException("Directory and prefix can't be null");
+        }
+        this.directory = directory;
+        this.prefix = prefix;
+        setInterval(interval);
+        setRetention(retention);
+        scan();
+        writer.setName("Gravity - Checkpoint Writer");
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * finds the checkpoints with this prefix that are already in the
+     * directory, and deletes the temporary files left by a crash
+     */
+    private void scan() {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return; //doesn't exist yet
+        }
+        final TreeMap<Long, File> existing = new TreeMap<Long, File>();
+        final String start = prefix + "-";
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.startsWith(start)) {
+                continue;
+            }
+            final boolean temporary = name.endsWith(".gds.tmp");
+            if (temporary) {
+                name = name.substring(0, name.length() - 4);
+            }
+            if (!name.endsWith(".gds")) {
+                continue;
+            }
+            final String number = name.substring(start.length(), name.length() - 4);
+            if (number.isEmpty() || number.length() > 18) {
+                continue;
+            }
+            boolean digits = true;
+            for (int i = 0; i < number.length() && digits; i++) {
+                digits = number.charAt(i) >= '0' && number.charAt(i) <= '9';
+            }
+            if (!digits) {
+                continue;
+            }
+            if (temporary) {
+                f.delete();
+            } else if (f.isFile()) {
+                existing.put(Long.parseLong(number), f);
+            }
+        }
+        for (Map.Entry<Long, File> e : existing.entrySet()) {
+            kept.addLast(e.getValue());
+            sequence = e.getKey();
+            latest = e.getValue();
+        }
+    }
+
+    /**
+     * called by the master at the end of each step, while holding the lock on
+     * the points. copies them if a checkpoint is due and the writer is idle
+     *
+     * @param s points
+     * @param time simulated time
+     */
+    void capture(PointStore s, double time) {
+        final long now = System.nanoTime();
+        if (!requested && now - lastCapture < interval) {
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (pending) {
+                skipped++; //still writing the previous one, try again at the next step
+                return;
+            }
+        }
+        requested = false;
+        lastCapture = now;
+        final int size = s.size;
+        if (columns[0].length < size) {
+            for (int c = 0; c < StateFile.N_COLUMNS; c++) {
+                columns[c] = new double[Math.max(size, columns[c].length * 2)];
+            }
+        }
+        System.arraycopy(s.x, 0, columns[0], 0, size);
+        System.arraycopy(s.y, 0, columns[1], 0, size);
+        System.arraycopy(s.velX, 0, columns[2], 0, size);
+        System.arraycopy(s.velY, 0, columns[3], 0, size);
+        System.arraycopy(s.mass, 0, columns[4], 0, size);
+        System.arraycopy(s.density, 0, columns[5], 0, size);
+        n = size;
+        this.time = time;
+        synchronized (this) {
+            pending = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * writes the captured checkpoint and deletes the old ones. writer thread
+     * only
+     */
+    private void write() {
+        final String name = prefix + "-" + String.format(Locale.ROOT, "%08d", ++sequence) + ".gds";
+        final File f = new File(directory, name), tmp = new File(directory, name + ".tmp");
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can't create " + directory);
+            }
+            final StateFile sf = new StateFile();
+            sf.time = time;
+            sf.sync = true;
+            sf.write(tmp, columns, n);
+            try {
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            kept.addLast(f);
+            while (kept.size() > retention) {
+                kept.removeFirst().delete();
+            }
+            latest = f;
+            written++;
+        } catch (IOException ex) {
+            tmp.delete();
+            lastError = ex;
+        }
+    }
+
+    /**
+     * takes a checkpoint at the end of the current step, even if the
+     * interval hasn't passed yet
+     */
+    public void checkpointNow() {
+        requested = true;
+    }
+
+    /**
+     * waits until the checkpoint being written (if any) is on disk, then
+     * stops the writer. checkpoints are not taken anymore after this
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     *
+     * @return minimum time between 2 checkpoints (milliseconds)
+     */
+    public long getInterval() {
+        return interval / 1000000L;
+    }
+
+    /**
+     *
+     * @param interval minimum time between 2 checkpoints (milliseconds)
+     * &gt;=0
+     */
+    public void setInterval(long interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Interval must be >=0");
+        }
+        this.interval = interval * 1000000L;
+    }
+
+    /**
+     *
+     * @return number of checkpoints kept on disk
+     */
+    public int getRetention() {
+        return retention;
+    }
+
+    /**
+     *
+     * @param retention number of checkpoints to keep on disk &gt;0. older
+     * ones are deleted when the next one is written
+     */
+    public void setRetention(int retention) {
+        if (retention <= 0) {
+            throw new IllegalArgumentException("Retention must be >0");
+        }
+        this.retention = retention;
+    }
+
+    /**
+     *
+     * @return the last checkpoint on disk (written by this checkpointer, or
+     * found in the directory when it was created), or null if there are none
+     */
+    public File getLatest() {
+        return latest;
+    }
+
+    /**
+     *
+     * @return the error of the last checkpoint that couldn't be written, or
+     * null
+     */
+    public IOException getLastError() {
+        return lastError;
+    }
+
+    /**
+     *
+     * @return number of checkpoints written
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * if this grows, the disk can't keep up with the interval
+     *
+     * @return number of times a checkpoint was due but the previous one was
+     * still being written
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+}
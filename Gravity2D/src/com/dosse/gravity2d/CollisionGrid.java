@@ -0,0 +1,207 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+import java.util.Arrays;
+
+/**
+ * Spatial hash used to find colliding Points without testing every couple.<br>
+ * The grid has several levels, each with cells twice as large as the
+ * previous one. Each Point is put in the first level with cells at least as
+ * large as its diameter, so a sun and many small asteroids don't end up in the
+ * same few cells.<br>
+ * To find what collides with a Point, only the cells around it in its own
+ * level and in larger ones are checked. Collisions with smaller Points are
+ * found by the smaller Points themselves.<br>
+ * <br>
+ * The cells are not stored in a map: each cell is hashed to a bucket, and
+ * the points are sorted by bucket, so the grid can be rebuilt every step
+ * without creating garbage.
+ *
+ * @author Federico
+ */
+class CollisionGrid {
+
+    /**
+     * maximum number of levels. with 64 levels there is room for a 2^63 ratio
+     * between the smallest and largest radius
+     */
+    private static final int MAX_LEVELS = 64;
+
+    /**
+     * size of the cells in level 0. cells in level l are base*2^l
+     */
+    private double base;
+
+    /**
+     * largest radius and number of points in each level
+     */
+    private final double[] levelMaxRadius = new double[MAX_LEVELS];
+    private final int[] levelCount = new int[MAX_LEVELS];
+    private int maxLevel;
+
+    /**
+     * level and cell of each point
+     */
+    private int[] pointLevel = new int[0];
+    private double[] pointCellX = new double[0], pointCellY = new double[0];
+
+    /**
+     * the points in bucket b are bucketItems[bucketStart[b]] to
+     * bucketItems[bucketStart[b+1]-1]
+     */
+    private int[] bucketStart = new int[1], bucketItems = new int[0], pointBucket = new int[0];
+    private int bucketMask;
+
+    /**
+     * rebuilds the grid with the current positions of the points. not thread
+     * safe, must be called by the master thread before the collision detection
+     *
+     * @param points points
+     */
+    void build(PointStore points) {
+        final int n = points.size();
+        final double[] x = points.x, y = points.y, radius = points.radius;
+        if (pointLevel.length < n) {
+            final int capacity = Math.max(n, pointLevel.length * 2);
+            pointLevel = new int[capacity];
+            pointCellX = new double[capacity];
+            pointCellY = new double[capacity];
+            pointBucket = new int[capacity];
+            bucketItems = new int[capacity];
+        }
+        int nBuckets = Integer.highestOneBit(Math.max(n, 1)) * 2;
+        if (bucketStart.length < nBuckets + 1) {
+            bucketStart = new int[nBuckets + 1];
+        }
+        bucketMask = nBuckets - 1;
+        double minRadius = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            minRadius = Math.min(minRadius, radius[i]);
+        }
+        base = minRadius > 0 && minRadius < Double.POSITIVE_INFINITY ? 2 * minRadius : 1;
+        Arrays.fill(levelMaxRadius, 0);
+        Arrays.fill(levelCount, 0);
+        Arrays.fill(bucketStart, 0, nBuckets + 1, 0);
+        maxLevel = 0;
+        for (int i = 0; i < n; i++) {
+            final int l = levelFor(radius[i]);
+            final double cell = cellSize(l);
+            pointLevel[i] = l;
+            pointCellX[i] = Math.floor(x[i] / cell);
+            pointCellY[i] = Math.floor(y[i] / cell);
+            final int b = bucket(l, pointCellX[i], pointCellY[i]);
+            pointBucket[i] = b;
+            bucketStart[b + 1]++;
+            levelCount[l]++;
+            levelMaxRadius[l] = Math.max(levelMaxRadius[l], radius[i]);
+            maxLevel = Math.max(maxLevel, l);
+        }
+        for (int b = 0; b < nBuckets; b++) {
+            bucketStart[b + 1] += bucketStart[b];
+        }
+        //fill the buckets, using bucketStart as a cursor, then shift it back
+        for (int i = 0; i < n; i++) {
+            bucketItems[bucketStart[pointBucket[i]]++] = i;
+        }
+        for (int b = nBuckets; b > 0; b--) {
+            bucketStart[b] = bucketStart[b - 1];
+        }
+        bucketStart[0] = 0;
+    }
+
+    private int levelFor(double radius) {
+        final double ratio = 2 * radius / base;
+        if (!(ratio > 1)) {
+            return 0;
+        }
+        if (ratio == Double.POSITIVE_INFINITY) {
+            return MAX_LEVELS - 1;
+        }
+        int l = Math.getExponent(ratio);
+        if (Math.scalb(base, l) < 2 * radius) {
+            l++;
+        }
+        return Math.min(l, MAX_LEVELS - 1);
+    }
+
+    private double cellSize(int level) {
+        return Math.scalb(base, level);
+    }
+
+    private int bucket(int level, double cx, double cy) {
+        //+0.0 turns -0.0 into 0.0, otherwise they would be different cells
+        long h = Double.doubleToLongBits(cx + 0.0) * 0x9E3779B97F4A7C15L ^ Double.doubleToLongBits(cy + 0.0) ^ level;
+        //the bits of integer doubles are all in the top half, mix them down (murmur3 finalizer)
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) h & bucketMask;
+    }
+
+    /**
+     * next cell after c. cells are integers, but beyond 2^52 not all integers
+     * can be represented, so it moves to the next representable value
+     *
+     * @param c cell
+     * @return next cell, or c if there is no next cell
+     */
+    private static double nextCell(double c) {
+        final double n = c + 1;
+        return n != c ? n : Math.nextUp(c);
+    }
+
+    /**
+     * finds all the points that collide with the points from index from to
+     * index to-1, and adds the indexes of each colliding couple to the list.
+     * can be called concurrently by several threads, with different lists.
+     *
+     * @param points points (same as in the last build)
+     * @param from first point (inclusive)
+     * @param to last point (exclusive)
+     * @param collisions list of colliding couples
+     */
+    void findCollisions(PointStore points, int from, int to, ContactList collisions) {
+        final double[] x = points.x, y = points.y, radius = points.radius;
+        for (int i = from; i < to; i++) {
+            final double px = x[i], py = y[i], r = radius[i];
+            for (int l = pointLevel[i]; l <= maxLevel; l++) {
+                if (levelCount[l] == 0) {
+                    continue;
+                }
+                final double cell = cellSize(l), reach = r + levelMaxRadius[l];
+                final double cx0 = Math.floor((px - reach) / cell), cx1 = Math.floor((px + reach) / cell);
+                final double cy0 = Math.floor((py - reach) / cell), cy1 = Math.floor((py + reach) / cell);
+                for (double cx = cx0; cx <= cx1;) {
+                    for (double cy = cy0; cy <= cy1;) {
+                        final int b = bucket(l, cx, cy);
+                        for (int k = bucketStart[b], end = bucketStart[b + 1]; k < end; k++) {
+                            final int j = bucketItems[k];
+                            //buckets may contain other cells, and other levels
+                            if (j == i || pointLevel[j] != l || pointCellX[j] != cx || pointCellY[j] != cy) {
+                                continue;
+                            }
+                            final double diffX = x[j] - px, diffY = y[j] - py, rads = r + radius[j];
+                            if (diffX * diffX + diffY * diffY <= rads * rads) {
+                                collisions.add(i, j);
+                            }
+                        }
+                        final double next = nextCell(cy);
+                        if (next == cy) {
+                            break;
+                        }
+                        cy = next;
+                    }
+                    final double next = nextCell(cx);
+                    if (next == cx) {
+                        break;
+                    }
+                    cx = next;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+import java.util.Arrays;
+
+/**
+ * List of colliding couples of Points, stored as couples of indexes in a
+ * single int array. It only grows, so once it's large enough it can be reused
+ * every step without creating garbage.
+ *
+ * @author Federico
+ */
+class ContactList {
+
+    /**
+     * couple k is (pairs[2*k], pairs[2*k+1])
+     */
+    private int[] pairs = new int[32];
+    private int size = 0;
+
+    /**
+     * couples packed in longs, used by sort
+     */
+    private long[] packed = new long[0];
+
+    /**
+     * adds a couple
+     *
+     * @param i index of the first point
+     * @param j index of the second point
+     */
+    void add(int i, int j) {
+        if (2 * size + 2 > pairs.length) {
+            pairs = Arrays.copyOf(pairs, pairs.length * 2);
+        }
+        pairs[2 * size] = i;
+        pairs[2 * size + 1] = j;
+        size++;
+    }
+
+    /**
+     * adds all the couples in another list
+     *
+     * @param l list
+     */
+    void addAll(ContactList l) {
+        if (2 * (size + l.size) > pairs.length) {
+            pairs = Arrays.copyOf(pairs, Math.max(pairs.length * 2, 2 * (size + l.size)));
+        }
+        System.arraycopy(l.pairs, 0, pairs, 2 * size, 2 * l.size);
+        size += l.size;
+    }
+
+    /**
+     *
+     * @param k couple
+     * @return index of the first point of couple k
+     */
+    int first(int k) {
+        return pairs[2 * k];
+    }
+
+    /**
+     *
+     * @param k couple
+     * @return index of the second point of couple k
+     */
+    int second(int k) {
+        return pairs[2 * k + 1];
+    }
+
+    /**
+     *
+     * @return number of couples
+     */
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * sorts the couples by first point, then by second point, so that their
+     * order doesn't depend on the order they were added in
+     */
+    void sort() {
+        if (packed.length < size) {
+            packed = new long[Math.max(size, packed.length * 2)];
+        }
+        for (int k = 0; k < size; k++) {
+            packed[k] = (long) pairs[2 * k] << 32 | (pairs[2 * k + 1] & 0xFFFFFFFFL);
+        }
+        Arrays.sort(packed, 0, size);
+        for (int k = 0; k < size; k++) {
+            pairs[2 * k] = (int) (packed[k] >>> 32);
+            pairs[2 * k + 1] = (int) packed[k];
+        }
+    }
+
+    /**
+     * removes all couples, keeping the memory
+     */
+    void clear() {
+        size = 0;
+    }
+}
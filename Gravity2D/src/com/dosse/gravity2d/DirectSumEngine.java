@@ -0,0 +1,528 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+import java.util.Arrays;
+
+/**
+ * Exact O(N²) engine: each Point is attracted by every other Point.<br>
+ * This is the default engine, and the reference used to validate the others.
+ * <br>
+ * When all the points need their attraction vectors, each couple of points is
+ * calculated only once, and the attraction is added to one point and
+ * subtracted from the other (Newton's third law), which is about half the
+ * work. Points are split into tiles, and each thread adds to its own
+ * accumulators, which are summed at the end, so threads never write to the
+ * same memory.<br>
+ * The couples are calculated by the PairKernel chosen by the Simulation, see
+ * Simulation.setVectorKernelEnabled.<br>
+ * <br>
+ * In float precision (see setFloatPrecision), the points are sorted by
+ * position so that each tile is a small area, and their coordinates are
+ * stored as floats relative to the center of their tile, which keeps them
+ * precise however far they are from 0,0. Couples are calculated in float,
+ * and summed in double. This moves half the memory and, with the Vector API
+ * kernel, calculates twice as many couples per instruction. Use
+ * measureFloatDrift to see if the loss of precision is acceptable for a
+ * scene.
+ *
+ * @author Federico
+ */
+public class DirectSumEngine extends ForceEngine {
+
+    /**
+     * number of points in a tile. the points of 2 tiles fit in the L1 cache
+     */
+    private static final int TILE_SIZE = 128;
+
+    /**
+     * attraction vectors accumulated by a thread during a phase
+     */
+    private static final class Accumulator {
+
+        double[] ax = new double[0], ay = new double[0];
+        /**
+         * attraction vectors of 2 tiles, in float precision
+         */
+        final float[] tileAX = new float[TILE_SIZE], tileAY = new float[TILE_SIZE], tileBX = new float[TILE_SIZE], tileBY = new float[TILE_SIZE];
+        /**
+         * phase when this accumulator was last cleared
+         */
+        int phase = -1;
+    }
+
+    private final ThreadLocal<Accumulator> accumulators = new ThreadLocal<Accumulator>() {
+        @Override
+        protected Accumulator initialValue() {
+            return new Accumulator();
+        }
+    };
+
+    /**
+     * accumulators used during the current phase, summed by reduce
+     */
+    private Accumulator[] used = new Accumulator[8];
+    private int nUsed = 0;
+    private int phase = 0;
+
+    /**
+     * deterministic mode: the items are split into nGroups groups, that
+     * depend only on the number of points, each with its own accumulator, and
+     * the accumulators are summed in order. so the sums are the same with any
+     * number of threads
+     */
+    private static final int MAX_GROUPS = 16;
+    private Accumulator[] groups = new Accumulator[0];
+    private int nGroups, nItems;
+
+    /**
+     * points, number of tiles and precision of the current phase
+     */
+    private PointStore phasePoints;
+    private int nTiles;
+    private boolean phaseFloat;
+
+    private volatile boolean floatPrecision;
+
+    /**
+     * float precision only: slot s of the tiles has point slotPoint[s], with
+     * coordinates slotX[s],slotY[s] relative to the origin of its tile (and
+     * mass slotMass[s] and radius slotRadius[s]),
+     * tileOriginX[t],tileOriginY[t].<br>
+     * slotKey, sortKey and sortPoint are used to sort the points by position
+     */
+    private int[] slotPoint = new int[0], slotKey = new int[0], sortKey = new int[0], sortPoint = new int[0];
+    private final int[] radixCount = new int[257];
+    private float[] slotX = new float[0], slotY = new float[0], slotMass = new float[0], slotRadius = new float[0];
+    private double[] tileOriginX = new double[0], tileOriginY = new double[0];
+
+    /**
+     * item r is row r of tiles, and row nTiles-1-r if it's different, so that
+     * all items cost about the same. row a is the couples of tile a with tiles
+     * a to nTiles-1
+     */
+    private final StepExecutor.RangeTask couples = new StepExecutor.RangeTask() {
+        @Override
+        public void run(int from, int to) {
+            calculateItems(takeAccumulator(phasePoints.size), from, to);
+        }
+    }, groupCouples = new StepExecutor.RangeTask() {
+        @Override
+        public void run(int from, int to) {
+            for (int k = from; k < to; k++) {
+                final Accumulator acc = groups[k];
+                clear(acc, phasePoints.size);
+                calculateItems(acc, (int) ((long) k * nItems / nGroups), (int) ((long) (k + 1) * nItems / nGroups));
+            }
+        }
+    }, reduce = new StepExecutor.RangeTask() {
+        @Override
+        public void run(int from, int to) {
+            final PointStore points = phasePoints;
+            for (int i = from; i < to; i++) {
+                double dx = 0, dy = 0;
+                for (int k = 0; k < nUsed; k++) {
+                    dx += used[k].ax[i];
+                    dy += used[k].ay[i];
+                }
+                setAttractionVector(points, phaseFloat ? slotPoint[i] : i, dx * g, dy * g);
+            }
+        }
+    };
+
+    /**
+     * creates a new direct-sum engine, in double precision
+     */
+    public DirectSumEngine() {
+        this(false);
+    }
+
+    /**
+     * creates a new direct-sum engine
+     *
+     * @param floatPrecision true to calculate the couples of points in float
+     * precision, see setFloatPrecision
+     */
+    public DirectSumEngine(boolean floatPrecision) {
+        this.floatPrecision = floatPrecision;
+    }
+
+    /**
+     *
+     * @return true if couples of points are calculated in float precision
+     */
+    public boolean isFloatPrecision() {
+        return floatPrecision;
+    }
+
+    /**
+     * chooses whether couples of points are calculated in float precision
+     * (faster) or double precision (default).<br>
+     * only used when all the points need their attraction vectors: the
+     * BlockTimestepIntegrator, that only needs some of them, always uses
+     * double precision.<br>
+     * note: the new value will be used from the next simulation step
+     *
+     * @param floatPrecision true for float precision
+     */
+    public void setFloatPrecision(boolean floatPrecision) {
+        this.floatPrecision = floatPrecision;
+    }
+
+    @Override
+    protected void calculateAttraction(PointStore points, int from, int to) {
+        final int n = points.size;
+        final double[] x = points.x, y = points.y, mass = points.mass, radius = closeEncounters ? points.radius : null;
+        final double softening2 = this.softening2;
+        for (int i = from; i < to; i++) {
+            final double px = x[i], py = y[i], pr = radius != null ? radius[i] : 0;
+            double dx = 0, dy = 0;
+            //the loop is split in 2 around i instead of checking j!=i each time, so the JIT can vectorize it
+            for (int j = 0; j < i; j++) {
+                final double diffX = x[j] - px, diffY = y[j] - py;
+                double distance2 = diffX * diffX + diffY * diffY;
+                if (radius != null) {
+                    final double contact = pr + radius[j];
+                    distance2 = Math.max(distance2, contact * contact);
+                }
+                distance2 += softening2;
+                final double f = 1 / (distance2 * Math.sqrt(distance2));
+                dx += mass[j] * diffX * f;
+                dy += mass[j] * diffY * f;
+            }
+            for (int j = i + 1; j < n; j++) {
+                final double diffX = x[j] - px, diffY = y[j] - py;
+                double distance2 = diffX * diffX + diffY * diffY;
+                if (radius != null) {
+                    final double contact = pr + radius[j];
+                    distance2 = Math.max(distance2, contact * contact);
+                }
+                distance2 += softening2;
+                final double f = 1 / (distance2 * Math.sqrt(distance2));
+                dx += mass[j] * diffX * f;
+                dy += mass[j] * diffY * f;
+            }
+            setAttractionVector(points, i, dx * g, dy * g);
+        }
+    }
+
+    @Override
+    protected boolean calculateAllAttractions(PointStore points, StepExecutor executor) {
+        final int n = points.size;
+        phasePoints = points;
+        nTiles = (n + TILE_SIZE - 1) / TILE_SIZE;
+        phaseFloat = floatPrecision;
+        if (phaseFloat) {
+            sortPoints(points);
+        }
+        phase++;
+        nUsed = 0;
+        final long cost = (long) (nTiles + 1) * TILE_SIZE * TILE_SIZE / 2;
+        if (deterministic) {
+            nItems = (nTiles + 1) / 2;
+            nGroups = Math.min(nItems, MAX_GROUPS);
+            if (groups.length < nGroups) {
+                groups = Arrays.copyOf(groups, MAX_GROUPS);
+                for (int k = 0; k < groups.length; k++) {
+                    if (groups[k] == null) {
+                        groups[k] = new Accumulator();
+                    }
+                }
+            }
+            executor.run(nGroups, cost * nItems / Math.max(nGroups, 1), groupCouples);
+            if (used.length < nGroups) {
+                used = Arrays.copyOf(used, nGroups);
+            }
+            System.arraycopy(groups, 0, used, 0, nGroups);
+            nUsed = nGroups;
+        } else {
+            executor.run((nTiles + 1) / 2, cost, couples);
+        }
+        executor.run(n, Math.max(nUsed, 1), reduce);
+        phasePoints = null;
+        return true;
+    }
+
+    /**
+     * gets the accumulator of the current thread, clearing it and adding it
+     * to used the first time it's used in a phase
+     *
+     * @param n number of points
+     * @return accumulator
+     */
+    private Accumulator takeAccumulator(int n) {
+        final Accumulator acc = accumulators.get();
+        if (acc.phase != phase) {
+            clear(acc, n);
+            synchronized (this) {
+                if (nUsed == used.length) {
+                    used = Arrays.copyOf(used, nUsed * 2);
+                }
+                used[nUsed++] = acc;
+            }
+        }
+        return acc;
+    }
+
+    /**
+     * clears the first n attraction vectors of an accumulator, making room
+     * for them if needed
+     *
+     * @param acc accumulator
+     * @param n number of points
+     */
+    private void clear(Accumulator acc, int n) {
+        if (acc.ax.length < n) {
+            acc.ax = new double[Math.max(n, acc.ax.length * 2)];
+            acc.ay = new double[acc.ax.length];
+        } else {
+            Arrays.fill(acc.ax, 0, n, 0);
+            Arrays.fill(acc.ay, 0, n, 0);
+        }
+        acc.phase = phase;
+    }
+
+    /**
+     * calculates items from to to-1: item r is row r of tiles, and row
+     * nTiles-1-r if it's different
+     *
+     * @param acc accumulator of the current thread
+     * @param from first item (inclusive)
+     * @param to last item (exclusive)
+     */
+    private void calculateItems(Accumulator acc, int from, int to) {
+        final PointStore points = phasePoints;
+        final int n = points.size;
+        final PairKernel kernel = pairKernel;
+        for (int r = from; r < to; r++) {
+            if (phaseFloat) {
+                calculateRowFloat(n, kernel, acc, r);
+                if (nTiles - 1 - r != r) {
+                    calculateRowFloat(n, kernel, acc, nTiles - 1 - r);
+                }
+            } else {
+                calculateRow(points, kernel, acc, r);
+                if (nTiles - 1 - r != r) {
+                    calculateRow(points, kernel, acc, nTiles - 1 - r);
+                }
+            }
+        }
+    }
+
+    /**
+     * calculates the couples of tile a with tiles a to nTiles-1
+     *
+     * @param points points
+     * @param kernel kernel
+     * @param acc accumulator of the current thread
+     * @param a tile
+     */
+    private void calculateRow(PointStore points, PairKernel kernel, Accumulator acc, int a) {
+        final int n = points.size;
+        final int fromA = a * TILE_SIZE, toA = Math.min(fromA + TILE_SIZE, n);
+        for (int fromB = fromA; fromB < n; fromB += TILE_SIZE) {
+            kernel.calculateTiles(points.x, points.y, points.mass, closeEncounters ? points.radius : null, softening2, acc.ax, acc.ay, fromA, toA, fromB, Math.min(fromB + TILE_SIZE, n));
+        }
+    }
+
+    /**
+     * like calculateRow, in float precision. the results of each couple of
+     * tiles are added to the accumulator in double precision
+     *
+     * @param n number of points
+     * @param kernel kernel
+     * @param acc accumulator of the current thread
+     * @param a tile
+     */
+    private void calculateRowFloat(int n, PairKernel kernel, Accumulator acc, int a) {
+        final int fromA = a * TILE_SIZE, toA = Math.min(fromA + TILE_SIZE, n);
+        final float[] tileAX = acc.tileAX, tileAY = acc.tileAY, tileBX = acc.tileBX, tileBY = acc.tileBY;
+        final double[] ax = acc.ax, ay = acc.ay;
+        for (int b = a; b * TILE_SIZE < n; b++) {
+            final int fromB = b * TILE_SIZE, toB = Math.min(fromB + TILE_SIZE, n);
+            Arrays.fill(tileAX, 0);
+            Arrays.fill(tileAY, 0);
+            Arrays.fill(tileBX, 0);
+            Arrays.fill(tileBY, 0);
+            kernel.calculateTiles(slotX, slotY, slotMass, closeEncounters ? slotRadius : null, (float) softening2, fromA, toA, fromB, toB, (float) (tileOriginX[b] - tileOriginX[a]), (float) (tileOriginY[b] - tileOriginY[a]), tileAX, tileAY, tileBX, tileBY);
+            for (int i = fromA; i < toA; i++) {
+                ax[i] += tileAX[i - fromA];
+                ay[i] += tileAY[i - fromA];
+            }
+            for (int j = fromB; j < toB; j++) {
+                ax[j] += tileBX[j - fromB];
+                ay[j] += tileBY[j - fromB];
+            }
+        }
+    }
+
+    /**
+     * float precision only: sorts the points along a Z-order curve, so that
+     * the points in each tile are close to each other, then stores their
+     * coordinates relative to the center of their tile
+     *
+     * @param points points
+     */
+    private void sortPoints(PointStore points) {
+        final int n = points.size;
+        final double[] x = points.x, y = points.y, mass = points.mass;
+        if (slotPoint.length < n) {
+            final int capacity = Math.max(n, slotPoint.length * 2);
+            slotPoint = new int[capacity];
+            slotKey = new int[capacity];
+            sortKey = new int[capacity];
+            sortPoint = new int[capacity];
+            slotX = new float[capacity];
+            slotY = new float[capacity];
+            slotMass = new float[capacity];
+            slotRadius = new float[capacity];
+        }
+        if (tileOriginX.length < nTiles) {
+            tileOriginX = new double[Math.max(nTiles, tileOriginX.length * 2)];
+            tileOriginY = new double[tileOriginX.length];
+        }
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, x[i]);
+            minY = Math.min(minY, y[i]);
+            maxX = Math.max(maxX, x[i]);
+            maxY = Math.max(maxY, y[i]);
+        }
+        final double scale = 65535 / Math.max(Math.max(maxX - minX, maxY - minY), Double.MIN_NORMAL);
+        for (int i = 0; i < n; i++) {
+            slotPoint[i] = i;
+            slotKey[i] = interleave((int) ((x[i] - minX) * scale)) | (interleave((int) ((y[i] - minY) * scale)) << 1);
+        }
+        //radix sort, 8 bits at a time. keys are unsigned
+        for (int shift = 0; shift < 32; shift += 8) {
+            Arrays.fill(radixCount, 0);
+            for (int i = 0; i < n; i++) {
+                radixCount[((slotKey[i] >>> shift) & 0xFF) + 1]++;
+            }
+            for (int d = 0; d < 256; d++) {
+                radixCount[d + 1] += radixCount[d];
+            }
+            for (int i = 0; i < n; i++) {
+                final int k = radixCount[(slotKey[i] >>> shift) & 0xFF]++;
+                sortKey[k] = slotKey[i];
+                sortPoint[k] = slotPoint[i];
+            }
+            int[] t = slotKey;
+            slotKey = sortKey;
+            sortKey = t;
+            t = slotPoint;
+            slotPoint = sortPoint;
+            sortPoint = t;
+        }
+        for (int t = 0; t < nTiles; t++) {
+            final int from = t * TILE_SIZE, to = Math.min(from + TILE_SIZE, n);
+            double tMinX = Double.POSITIVE_INFINITY, tMinY = Double.POSITIVE_INFINITY, tMaxX = Double.NEGATIVE_INFINITY, tMaxY = Double.NEGATIVE_INFINITY;
+            for (int s = from; s < to; s++) {
+                final int i = slotPoint[s];
+                tMinX = Math.min(tMinX, x[i]);
+                tMinY = Math.min(tMinY, y[i]);
+                tMaxX = Math.max(tMaxX, x[i]);
+                tMaxY = Math.max(tMaxY, y[i]);
+            }
+            final double originX = (tMinX + tMaxX) / 2, originY = (tMinY + tMaxY) / 2;
+            tileOriginX[t] = originX;
+            tileOriginY[t] = originY;
+            for (int s = from; s < to; s++) {
+                final int i = slotPoint[s];
+                slotX[s] = (float) (x[i] - originX);
+                slotY[s] = (float) (y[i] - originY);
+                slotMass[s] = (float) mass[i];
+                slotRadius[s] = (float) points.radius[i];
+            }
+        }
+    }
+
+    /**
+     * spreads the lowest 16 bits of v on the even bits
+     *
+     * @param v value
+     * @return interleaved value
+     */
+    private static int interleave(int v) {
+        v &= 0xFFFF;
+        v = (v | (v << 8)) & 0x00FF00FF;
+        v = (v | (v << 4)) & 0x0F0F0F0F;
+        v = (v | (v << 2)) & 0x33333333;
+        v = (v | (v << 1)) & 0x55555555;
+        return v;
+    }
+
+    /**
+     * runs a scene twice without collisions, in double and in float
+     * precision, with a LeapfrogIntegrator (which conserves energy well, so
+     * the drift comes from the attraction vectors), and reports how the total
+     * energy changes. use it to decide if float precision is acceptable for a
+     * scene.<br>
+     * the energy is calculated directly, in O(N²).
+     *
+     * @param scene points, which are copied and not modified
+     * @param timeStep timestep
+     * @param nSteps number of steps
+     * @param nReports number of times the energy is measured, after the
+     * start
+     * @return for each report (and at the start): {simulated time, relative
+     * energy drift in double precision, relative energy drift in float
+     * precision}. the drift is |E-E0|/|E0|
+     */
+    public static double[][] measureFloatDrift(Point[] scene, double timeStep, int nSteps, int nReports) {
+        if (nReports < 1) {
+            nReports = 1;
+        }
+        final double[][] report = new double[nReports + 1][3];
+        for (int mode = 0; mode < 2; mode++) {
+            final PointStore points = new PointStore();
+            for (Point p : scene) {
+                points.add(p.clone());
+            }
+            final DirectSumEngine engine = new DirectSumEngine(mode == 1);
+            final Integrator integrator = new LeapfrogIntegrator();
+            final int n = points.size;
+            final double e0 = getEnergy(points);
+            int step = 0;
+            for (int r = 0; r <= nReports; r++) {
+                final int until = (int) ((long) nSteps * r / nReports);
+                for (; step < until; step++) {
+                    integrator.prepare(points);
+                    for (int stage = 0; stage < integrator.getStages(); stage++) {
+                        integrator.prepareStage(points, stage, timeStep);
+                        if (integrator.hasBeforeForces(stage)) {
+                            integrator.beforeForces(points, 0, n, stage, timeStep);
+                        }
+                        engine.prepare(points, StepExecutor.SERIAL);
+                        engine.calculateAllAttractions(points, StepExecutor.SERIAL);
+                        integrator.afterForces(points, 0, n, stage, timeStep);
+                    }
+                }
+                report[r][0] = step * timeStep;
+                report[r][1 + mode] = Math.abs((getEnergy(points) - e0) / e0);
+            }
+        }
+        return report;
+    }
+
+    /**
+     *
+     * @param points points
+     * @return kinetic + potential energy of the points
+     */
+    private static double getEnergy(PointStore points) {
+        final int n = points.size;
+        final double[] x = points.x, y = points.y, velX = points.velX, velY = points.velY, mass = points.mass;
+        double kinetic = 0, potential = 0;
+        for (int i = 0; i < n; i++) {
+            kinetic += mass[i] * (velX[i] * velX[i] + velY[i] * velY[i]) / 2;
+            for (int j = i + 1; j < n; j++) {
+                final double diffX = x[j] - x[i], diffY = y[j] - y[i];
+                potential -= mass[i] * mass[j] / Math.sqrt(diffX * diffX + diffY * diffY);
+            }
+        }
+        return kinetic + potential * Settings.G;
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+/**
+ * Disjoint sets of indexes (union-find), used to group colliding Points.<br>
+ * Sets are joined by size and paths are halved while looking for the root, so
+ * any sequence of joins and finds takes practically linear time.<br>
+ * The arrays are reused, so it can be used every step without creating
+ * garbage, and only the indexes that are added are touched, so the cost
+ * doesn't depend on how many indexes there could be.
+ *
+ * @author Federico
+ */
+class DisjointSets {
+
+    /**
+     * parent of each index. roots are their own parent
+     */
+    private int[] parent = new int[0];
+
+    /**
+     * number of indexes in each set, only valid for roots
+     */
+    private int[] size = new int[0];
+
+    /**
+     * makes room for indexes from 0 to n-1. they're not in any set until
+     * they're added
+     *
+     * @param n number of indexes
+     */
+    void ensureCapacity(int n) {
+        if (parent.length < n) {
+            final int capacity = Math.max(n, parent.length * 2);
+            parent = new int[capacity];
+            size = new int[capacity];
+        }
+    }
+
+    /**
+     * puts an index in its own set, forgetting the one it was in. must be
+     * called before the index is used in find or union
+     *
+     * @param i index
+     */
+    void add(int i) {
+        parent[i] = i;
+        size[i] = 1;
+    }
+
+    /**
+     *
+     * @param i index
+     * @return root of the set that contains i
+     */
+    int find(int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * joins the sets that contain i and j
+     *
+     * @param i index
+     * @param j index
+     */
+    void union(int i, int j) {
+        i = find(i);
+        j = find(j);
+        if (i == j) {
+            return;
+        }
+        if (size[i] < size[j]) {
+            final int t = i;
+            i = j;
+            j = t;
+        }
+        parent[j] = i;
+        size[i] += size[j];
+    }
+}
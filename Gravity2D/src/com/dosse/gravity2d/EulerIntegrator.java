@@ -0,0 +1,32 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+/**
+ * Semi-implicit Euler: first the velocity is updated, then the position with
+ * the new velocity.<br>
+ * First order, one attraction calculation per step. It needs small steps to
+ * keep orbits stable, but it's the cheapest. This is the default integrator.
+ *
+ * @author Federico
+ */
+public class EulerIntegrator extends Integrator {
+
+    @Override
+    public int getStages() {
+        return 1;
+    }
+
+    @Override
+    protected void afterForces(PointStore points, int from, int to, int stage, double dt) {
+        final double[] x = points.x, y = points.y, velX = points.velX, velY = points.velY, ax = points.ax, ay = points.ay;
+        for (int i = from; i < to; i++) {
+            velX[i] += ax[i] * dt;
+            velY[i] += ay[i] * dt;
+            x[i] += velX[i] * dt;
+            y[i] += velY[i] * dt;
+        }
+    }
+
+}
@@ -0,0 +1,928 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+import java.util.Arrays;
+
+/**
+ * Fast multipole method O(N) engine.<br>
+ * Like the Barnes-Hut engine it builds a quadtree, but instead of
+ * approximating each far node as a single Point for each Point, the tree is
+ * traversed against itself once per step: when 2 nodes are far enough from
+ * each other, the multipole expansion of one is converted to a local
+ * expansion in the other (and vice versa), and the local expansions are then
+ * pushed down the tree to the leaves. Each Point then gets the attraction of
+ * everything far away from the local expansion of its leaf, and calculates
+ * the attraction of the Points in the nearby leaves directly.<br>
+ * <br>
+ * Positions are complex numbers. The attraction of a mass m at distance w is
+ * m*w/|w|^3 = m*w^(-1/2)*conj(w)^(-3/2), which isn't analytic, so the
+ * expansions are series in both w and conj(w): a multipole expansion has the
+ * moments sum(m*s^k*conj(s)^l) of the masses around its center, and a local
+ * expansion is a polynomial in u and conj(u), where u is the offset from its
+ * center. Both are truncated at k+l&lt;=order.<br>
+ * 2 nodes of radius r1 and r2 at distance d interact through expansions if
+ * (r1+r2)/d &lt; theta, and the error is about theta^(order+1). Higher orders
+ * are more precise and slower: use measureError or measureOrderError to see
+ * how precise a given order is.<br>
+ * Softening and close encounter regularization only apply to the Points in
+ * nearby leaves: the expansions assume that far away Points are far enough
+ * for them not to matter.<br>
+ * <br>
+ * The expansions are calculated in parallel by the executor of the
+ * simulation. The tree is built by the master.
+ *
+ * @author Federico
+ */
+public class FmmEngine extends ForceEngine {
+
+    public static final int DEFAULT_ORDER = 6;
+    public static final double DEFAULT_THETA = 0.5;
+
+
+    /**
+     * maximum depth of the tree. Points closer than this can resolve end up in
+     * the same leaf
+     */
+    private static final int MAX_DEPTH = 48;
+
+    public static final int MAX_ORDER = 20;
+
+    private volatile int order;
+    private volatile double theta;
+
+    /**
+     * order and opening angle used in the current step, number of terms in an
+     * expansion, and index of each term (k,l) in an expansion
+     */
+    private int stepOrder = -1, nTerms;
+    private double stepTheta;
+
+    /**
+     * with close encounter regularization, twice the radius of the largest
+     * point: nodes closer than this always interact directly, so that
+     * overlapping points are never in expansions
+     */
+    private double stepReach;
+
+    /**
+     * maximum number of points in a leaf, unless it's at MAX_DEPTH. higher
+     * orders make the expansions more expensive, and the direct calculation
+     * of nearby points relatively cheaper, so they use larger leaves
+     */
+    private int leafSize;
+    private int[] termK, termL, termIndex;
+
+    /**
+     * binomial coefficients, binom[n*(order+1)+i], and coefficients of the
+     * multipole to local conversion, m2lK[k*(order+1)+n] and
+     * m2lL[l*(order+1)+q] (see multipolesToLocal)
+     */
+    private double[] binom, m2lK, m2lL;
+
+    /**
+     * the tree is stored in parallel arrays instead of objects, so it can be
+     * rebuilt every step without creating garbage.<br>
+     * nodeGX,nodeGY,nodeHalf: geometric center and half the size of the
+     * node<br>
+     * nodeX,nodeY,nodeMass,nodeRadius: center of mass (the center of the
+     * expansions), total mass, and distance of the farthest point from the
+     * center<br>
+     * nodeStart,nodeEnd: the points in the node are in slots nodeStart to
+     * nodeEnd-1 of the tree<br>
+     * nodeChild: 4 children per node, -1 if there is no child in that
+     * quadrant. leaves have no children<br>
+     * nodeParent,nodeLevel: parent (-1 for the root) and depth<br>
+     * nodes are created level by level, the nodes on level l are levelStart[l]
+     * to levelStart[l+1]-1
+     */
+    private double[] nodeGX, nodeGY, nodeHalf, nodeX, nodeY, nodeMass, nodeRadius;
+    private int[] nodeStart, nodeEnd, nodeChild, nodeParent, nodeLevel;
+    private int nNodes;
+    private final int[] levelStart = new int[MAX_DEPTH + 2];
+    private int nLevels;
+
+    /**
+     * multipole and local expansions, nTerms complex numbers per node
+     */
+    private double[] multRe = new double[0], multIm = new double[0], locRe = new double[0], locIm = new double[0];
+
+    /**
+     * the points sorted in tree order: slot k has point slotPoint[k], with
+     * coordinates slotX[k],slotY[k] and mass slotMass[k]. leafOf[i] and
+     * slotOf[i] are the leaf and slot of point i. tmp is used to sort them
+     */
+    private int[] slotPoint = new int[0], tmp = new int[0], leafOf = new int[0], slotOf = new int[0];
+    private double[] slotX = new double[0], slotY = new double[0], slotMass = new double[0];
+
+    /**
+     * interaction lists of each node, as couples (target, source) while they
+     * are collected, then sorted by target: the sources of node a are
+     * xxxSource[xxxStart[a]] to xxxSource[xxxStart[a+1]-1]. m2l are far nodes,
+     * near are nearby leaves (only for leaves)
+     */
+    private int[] m2lTarget = new int[0], m2lSource = new int[0], m2lStart = new int[1], nearTarget = new int[0], nearSource = new int[0], nearStart = new int[1];
+    private int nM2L, nNear;
+
+    /**
+     * stack of couples of nodes to visit while building the interaction
+     * lists
+     */
+    private int[] pairStack = new int[0];
+
+    /**
+     * first slot and next free slot of each quadrant, while splitting a node
+     */
+    private final int[] splitStart = new int[4], splitCursor = new int[4];
+
+    /**
+     * nodes processed by the current level task
+     */
+    private int levelFrom;
+
+    /**
+     * temporary powers of complex numbers, and values of the kernel
+     * derivatives for a multipole to local conversion, one set per thread
+     */
+    private final ThreadLocal<double[][]> scratch = new ThreadLocal<double[][]>() {
+        @Override
+        protected double[][] initialValue() {
+            return new double[8][0];
+        }
+    };
+
+    private final StepExecutor.RangeTask upward = new StepExecutor.RangeTask() {
+        @Override
+        public void run(int from, int to) {
+            for (int a = levelFrom + from; a < levelFrom + to; a++) {
+                if (isLeaf(a)) {
+                    leafToMultipole(a);
+                } else {
+                    childrenToMultipole(a);
+                }
+            }
+        }
+    }, farField = new StepExecutor.RangeTask() {
+        @Override
+        public void run(int from, int to) {
+            for (int a = from; a < to; a++) {
+                multipolesToLocal(a);
+            }
+        }
+    }, downward = new StepExecutor.RangeTask() {
+        @Override
+        public void run(int from, int to) {
+            for (int a = levelFrom + from; a < levelFrom + to; a++) {
+                parentToLocal(a);
+            }
+        }
+    };
+
+    /**
+     * creates a new FMM engine with the default order and opening angle
+     */
+    public FmmEngine() {
+        this(DEFAULT_ORDER, DEFAULT_THETA);
+    }
+
+    /**
+     * creates a new FMM engine
+     *
+     * @param order expansion order (1-MAX_ORDER)
+     * @param theta opening angle (&gt;0, &lt;1)
+     */
+    public FmmEngine(int order, double theta) {
+        setOrder(order);
+        setTheta(theta);
+        allocateNodes(16);
+    }
+
+    /**
+     *
+     * @return expansion order
+     */
+    public int getOrder() {
+        return order;
+    }
+
+    /**
+     * note: the new value will be used from the next simulation step
+     *
+     * @param order expansion order (1-MAX_ORDER)
+     */
+    public void setOrder(int order) {
+        if (order < 1 || order > MAX_ORDER) {
+            throw new IllegalArgumentException("Order must be 1-" + MAX_ORDER);
+        }
+        this.order = order;
+    }
+
+    /**
+     *
+     * @return opening angle
+     */
+    public double getTheta() {
+        return theta;
+    }
+
+    /**
+     * note: the new value will be used from the next simulation step
+     *
+     * @param theta opening angle (&gt;0, &lt;1)
+     */
+    public void setTheta(double theta) {
+        if (!(theta > 0 && theta < 1)) {
+            throw new IllegalArgumentException("Theta must be >0 and <1");
+        }
+        this.theta = theta;
+    }
+
+    /**
+     * generalized binomial coefficient
+     *
+     * @param a any real number
+     * @param n n&gt;=0
+     * @return a*(a-1)*...*(a-n+1)/n!
+     */
+    private static double binomial(double a, int n) {
+        double c = 1;
+        for (int i = 0; i < n; i++) {
+            c *= (a - i) / (i + 1);
+        }
+        return c;
+    }
+
+    /**
+     * calculates the tables for an order
+     *
+     * @param p order
+     */
+    private void setupOrder(int p) {
+        stepOrder = p;
+        nTerms = (p + 1) * (p + 2) / 2;
+        leafSize = Math.max(16, Math.min(2 * nTerms, 64));
+        termK = new int[nTerms];
+        termL = new int[nTerms];
+        termIndex = new int[(p + 1) * (p + 1)];
+        Arrays.fill(termIndex, -1);
+        int t = 0;
+        for (int degree = 0; degree <= p; degree++) {
+            for (int k = degree; k >= 0; k--) {
+                termK[t] = k;
+                termL[t] = degree - k;
+                termIndex[k * (p + 1) + degree - k] = t;
+                t++;
+            }
+        }
+        binom = new double[(p + 1) * (p + 1)];
+        for (int n = 0; n <= p; n++) {
+            for (int i = 0; i <= n; i++) {
+                binom[n * (p + 1) + i] = binomial(n, i);
+            }
+        }
+        //the attraction of moment (k,l) at distance w is a_k*b_l*w^(-1/2-k)*conj(w)^(-3/2-l). around the target center, w=W-u, and each power is expanded in u
+        m2lK = new double[(p + 1) * (p + 1)];
+        m2lL = new double[(p + 1) * (p + 1)];
+        for (int k = 0; k <= p; k++) {
+            for (int n = 0; n <= p; n++) {
+                final double sign = n % 2 == 0 ? 1 : -1;
+                m2lK[k * (p + 1) + n] = binomial(-0.5, k) * sign * binomial(-0.5 - k, n);
+                m2lL[k * (p + 1) + n] = binomial(-1.5, k) * sign * binomial(-1.5 - k, n);
+            }
+        }
+    }
+
+    private void allocateNodes(int capacity) {
+        if (nodeGX != null && nodeGX.length >= capacity) {
+            return;
+        }
+        capacity = Math.max(capacity, nodeGX == null ? 0 : nodeGX.length * 2);
+        if (nodeGX == null) {
+            nodeGX = new double[capacity];
+            nodeGY = new double[capacity];
+            nodeHalf = new double[capacity];
+            nodeX = new double[capacity];
+            nodeY = new double[capacity];
+            nodeMass = new double[capacity];
+            nodeRadius = new double[capacity];
+            nodeStart = new int[capacity];
+            nodeEnd = new int[capacity];
+            nodeParent = new int[capacity];
+            nodeLevel = new int[capacity];
+            nodeChild = new int[capacity * 4];
+        } else {
+            nodeGX = Arrays.copyOf(nodeGX, capacity);
+            nodeGY = Arrays.copyOf(nodeGY, capacity);
+            nodeHalf = Arrays.copyOf(nodeHalf, capacity);
+            nodeX = Arrays.copyOf(nodeX, capacity);
+            nodeY = Arrays.copyOf(nodeY, capacity);
+            nodeMass = Arrays.copyOf(nodeMass, capacity);
+            nodeRadius = Arrays.copyOf(nodeRadius, capacity);
+            nodeStart = Arrays.copyOf(nodeStart, capacity);
+            nodeEnd = Arrays.copyOf(nodeEnd, capacity);
+            nodeParent = Arrays.copyOf(nodeParent, capacity);
+            nodeLevel = Arrays.copyOf(nodeLevel, capacity);
+            nodeChild = Arrays.copyOf(nodeChild, capacity * 4);
+        }
+    }
+
+    private int newNode(double gx, double gy, double half, int start, int end, int parent) {
+        if (nNodes == nodeGX.length) {
+            allocateNodes(nNodes + 1);
+        }
+        final int a = nNodes++;
+        nodeGX[a] = gx;
+        nodeGY[a] = gy;
+        nodeHalf[a] = half;
+        nodeStart[a] = start;
+        nodeEnd[a] = end;
+        nodeParent[a] = parent;
+        nodeLevel[a] = parent == -1 ? 0 : nodeLevel[parent] + 1;
+        nodeChild[4 * a] = -1;
+        nodeChild[4 * a + 1] = -1;
+        nodeChild[4 * a + 2] = -1;
+        nodeChild[4 * a + 3] = -1;
+        return a;
+    }
+
+    private boolean isLeaf(int a) {
+        return nodeChild[4 * a] == -1 && nodeChild[4 * a + 1] == -1 && nodeChild[4 * a + 2] == -1 && nodeChild[4 * a + 3] == -1;
+    }
+
+    @Override
+    protected void prepare(PointStore points) {
+        prepare(points, null);
+    }
+
+    /**
+     * builds the tree and calculates the local expansions of all the leaves
+     *
+     * @param points points
+     * @param executor executor used to calculate the expansions, or null to
+     * calculate them on this thread
+     */
+    @Override
+    protected void prepare(PointStore points, StepExecutor executor) {
+        if (order != stepOrder) {
+            setupOrder(order);
+        }
+        stepTheta = theta;
+        final int n = points.size();
+        double maxRadius = 0;
+        if (closeEncounters) {
+            for (int i = 0; i < n; i++) {
+                maxRadius = Math.max(maxRadius, points.radius[i]);
+            }
+        }
+        stepReach = 2 * maxRadius;
+        if (slotPoint.length < n) {
+            final int capacity = Math.max(n, slotPoint.length * 2);
+            slotPoint = new int[capacity];
+            tmp = new int[capacity];
+            leafOf = new int[capacity];
+            slotOf = new int[capacity];
+            slotX = new double[capacity];
+            slotY = new double[capacity];
+            slotMass = new double[capacity];
+        }
+        nNodes = 0;
+        nLevels = 0;
+        nM2L = 0;
+        nNear = 0;
+        if (n == 0) {
+            return;
+        }
+        buildTree(points);
+        if (multRe.length < nNodes * nTerms) {
+            final int capacity = Math.max(nNodes * nTerms, multRe.length * 2);
+            multRe = new double[capacity];
+            multIm = new double[capacity];
+            locRe = new double[capacity];
+            locIm = new double[capacity];
+        }
+        //multipoles, from the leaves to the root
+        for (int l = nLevels - 1; l >= 0; l--) {
+            levelFrom = levelStart[l];
+            run(executor, levelStart[l + 1] - levelStart[l], (long) nTerms * leafSize, upward);
+        }
+        buildInteractionLists();
+        //local expansions of the far nodes, then from the root to the leaves
+        run(executor, nNodes, (long) nTerms * (stepOrder + 1) * Math.max(1, nM2L / nNodes), farField);
+        for (int l = 1; l < nLevels; l++) {
+            levelFrom = levelStart[l];
+            run(executor, levelStart[l + 1] - levelStart[l], (long) nTerms * nTerms, downward);
+        }
+    }
+
+    private static void run(StepExecutor executor, int n, long cost, StepExecutor.RangeTask task) {
+        if (executor == null) {
+            if (n > 0) {
+                task.run(0, n);
+            }
+        } else {
+            executor.run(n, cost, task);
+        }
+    }
+
+    /**
+     * builds the tree level by level, sorting the points by node
+     *
+     * @param points points
+     */
+    private void buildTree(PointStore points) {
+        final int n = points.size();
+        final double[] x = points.x, y = points.y;
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            slotPoint[i] = i;
+            minX = Math.min(minX, x[i]);
+            minY = Math.min(minY, y[i]);
+            maxX = Math.max(maxX, x[i]);
+            maxY = Math.max(maxY, y[i]);
+        }
+        allocateNodes(2 * (n / leafSize + 1));
+        final double half = Math.max(Math.max(maxX - minX, maxY - minY) / 2 * 1.0001, Double.MIN_NORMAL);
+        newNode((minX + maxX) / 2, (minY + maxY) / 2, half, 0, n, -1);
+        //nodes are split in the order they're created, so the children of the nodes on a level make the next level
+        levelStart[0] = 0;
+        for (int a = 0; a < nNodes; a++) {
+            if (a > 0 && nodeLevel[a] != nodeLevel[a - 1]) {
+                levelStart[++nLevels] = a;
+            }
+            if (nodeEnd[a] - nodeStart[a] > leafSize && nodeLevel[a] < MAX_DEPTH) {
+                split(a, x, y);
+            }
+        }
+        levelStart[++nLevels] = nNodes;
+        for (int k = 0; k < n; k++) {
+            final int i = slotPoint[k];
+            slotX[k] = x[i];
+            slotY[k] = y[i];
+            slotMass[k] = points.mass[i];
+            slotOf[i] = k;
+        }
+    }
+
+    /**
+     * splits the points of a node in 4 quadrants, and creates a child for
+     * each quadrant that is not empty
+     *
+     * @param a node
+     * @param x x coordinates of the points
+     * @param y y coordinates of the points
+     */
+    private void split(int a, double[] x, double[] y) {
+        final int start = nodeStart[a], end = nodeEnd[a];
+        final double gx = nodeGX[a], gy = nodeGY[a];
+        int c0 = 0, c1 = 0, c2 = 0;
+        for (int k = start; k < end; k++) {
+            final int q = quadrant(x[slotPoint[k]], y[slotPoint[k]], gx, gy);
+            if (q == 0) {
+                c0++;
+            } else if (q == 1) {
+                c1++;
+            } else if (q == 2) {
+                c2++;
+            }
+        }
+        final int[] qStart = splitStart, cursor = splitCursor;
+        qStart[0] = start;
+        qStart[1] = start + c0;
+        qStart[2] = start + c0 + c1;
+        qStart[3] = start + c0 + c1 + c2;
+        System.arraycopy(qStart, 0, cursor, 0, 4);
+        for (int k = start; k < end; k++) {
+            final int i = slotPoint[k];
+            tmp[cursor[quadrant(x[i], y[i], gx, gy)]++] = i;
+        }
+        System.arraycopy(tmp, start, slotPoint, start, end - start);
+        final double h = nodeHalf[a] / 2;
+        for (int q = 0; q < 4; q++) {
+            final int qEnd = q == 3 ? end : qStart[q + 1];
+            if (qEnd > qStart[q]) {
+                nodeChild[4 * a + q] = newNode(gx + ((q & 1) == 0 ? -h : h), gy + ((q & 2) == 0 ? -h : h), h, qStart[q], qEnd, a);
+            }
+        }
+    }
+
+    private static int quadrant(double x, double y, double gx, double gy) {
+        return (x < gx ? 0 : 1) + (y < gy ? 0 : 2);
+    }
+
+    /**
+     * makes sure the scratch arrays of this thread are large enough
+     *
+     * @return {power re, power im, inverse power re, inverse power im, scaled
+     * moments re, scaled moments im, partial sums re, partial sums im}
+     */
+    private double[][] scratch() {
+        final double[][] s = scratch.get();
+        final int size = (stepOrder + 1) * (stepOrder + 1);
+        if (s[0].length < size) {
+            for (int i = 0; i < s.length; i++) {
+                s[i] = new double[size];
+            }
+        }
+        return s;
+    }
+
+    /**
+     * powers of a complex number, from 0 to p
+     */
+    private static void powers(double re, double im, int p, double[] powRe, double[] powIm) {
+        powRe[0] = 1;
+        powIm[0] = 0;
+        for (int k = 1; k <= p; k++) {
+            powRe[k] = powRe[k - 1] * re - powIm[k - 1] * im;
+            powIm[k] = powRe[k - 1] * im + powIm[k - 1] * re;
+        }
+    }
+
+    /**
+     * center of mass, radius and multipole expansion of a leaf, from its
+     * points
+     *
+     * @param a leaf
+     */
+    private void leafToMultipole(int a) {
+        final int start = nodeStart[a], end = nodeEnd[a], p = stepOrder, base = a * nTerms;
+        double m = 0, cx = 0, cy = 0;
+        for (int k = start; k < end; k++) {
+            m += slotMass[k];
+            cx += slotX[k] * slotMass[k];
+            cy += slotY[k] * slotMass[k];
+            leafOf[slotPoint[k]] = a;
+        }
+        cx /= m;
+        cy /= m;
+        double r2 = 0;
+        final double[][] s = scratch();
+        final double[] powRe = s[0], powIm = s[1];
+        Arrays.fill(multRe, base, base + nTerms, 0);
+        Arrays.fill(multIm, base, base + nTerms, 0);
+        for (int k = start; k < end; k++) {
+            final double dx = slotX[k] - cx, dy = slotY[k] - cy, mk = slotMass[k];
+            r2 = Math.max(r2, dx * dx + dy * dy);
+            powers(dx, dy, p, powRe, powIm);
+            for (int t = 0; t < nTerms; t++) {
+                //s^k*conj(s)^l
+                final int i = termK[t], j = termL[t];
+                multRe[base + t] += mk * (powRe[i] * powRe[j] + powIm[i] * powIm[j]);
+                multIm[base + t] += mk * (powIm[i] * powRe[j] - powRe[i] * powIm[j]);
+            }
+        }
+        nodeMass[a] = m;
+        nodeX[a] = cx;
+        nodeY[a] = cy;
+        nodeRadius[a] = Math.sqrt(r2);
+    }
+
+    /**
+     * center of mass, radius and multipole expansion of a node, from its
+     * children
+     *
+     * @param a node
+     */
+    private void childrenToMultipole(int a) {
+        final int p = stepOrder, base = a * nTerms;
+        double m = 0, cx = 0, cy = 0;
+        for (int q = 0; q < 4; q++) {
+            final int c = nodeChild[4 * a + q];
+            if (c != -1) {
+                m += nodeMass[c];
+                cx += nodeX[c] * nodeMass[c];
+                cy += nodeY[c] * nodeMass[c];
+            }
+        }
+        cx /= m;
+        cy /= m;
+        double r = 0;
+        final double[][] s = scratch();
+        final double[] powRe = s[0], powIm = s[1];
+        Arrays.fill(multRe, base, base + nTerms, 0);
+        Arrays.fill(multIm, base, base + nTerms, 0);
+        for (int q = 0; q < 4; q++) {
+            final int c = nodeChild[4 * a + q];
+            if (c == -1) {
+                continue;
+            }
+            final double dx = nodeX[c] - cx, dy = nodeY[c] - cy;
+            r = Math.max(r, Math.sqrt(dx * dx + dy * dy) + nodeRadius[c]);
+            //(s+d)^k*conj(s+d)^l, expanded with the binomial theorem
+            powers(dx, dy, p, powRe, powIm);
+            final int cBase = c * nTerms;
+            for (int t = 0; t < nTerms; t++) {
+                final int k = termK[t], l = termL[t];
+                double re = 0, im = 0;
+                for (int i = 0; i <= k; i++) {
+                    for (int j = 0; j <= l; j++) {
+                        final int ct = cBase + termIndex[i * (p + 1) + j];
+                        final double b = binom[k * (p + 1) + i] * binom[l * (p + 1) + j];
+                        final int u = k - i, v = l - j;
+                        final double eRe = b * (powRe[u] * powRe[v] + powIm[u] * powIm[v]), eIm = b * (powIm[u] * powRe[v] - powRe[u] * powIm[v]);
+                        re += eRe * multRe[ct] - eIm * multIm[ct];
+                        im += eRe * multIm[ct] + eIm * multRe[ct];
+                    }
+                }
+                multRe[base + t] += re;
+                multIm[base + t] += im;
+            }
+        }
+        nodeMass[a] = m;
+        nodeX[a] = cx;
+        nodeY[a] = cy;
+        nodeRadius[a] = r;
+    }
+
+    private boolean wellSeparated(int a, int b) {
+        final double dx = nodeX[b] - nodeX[a], dy = nodeY[b] - nodeY[a], r = nodeRadius[a] + nodeRadius[b];
+        final double d2 = dx * dx + dy * dy;
+        return r * r < stepTheta * stepTheta * d2 && (r + stepReach) * (r + stepReach) < d2;
+    }
+
+    private void addM2L(int target, int source) {
+        if (nM2L == m2lTarget.length) {
+            m2lTarget = Arrays.copyOf(m2lTarget, Math.max(16, nM2L * 2));
+            m2lSource = Arrays.copyOf(m2lSource, m2lTarget.length);
+        }
+        m2lTarget[nM2L] = target;
+        m2lSource[nM2L++] = source;
+    }
+
+    private void addNear(int target, int source) {
+        if (nNear == nearTarget.length) {
+            nearTarget = Arrays.copyOf(nearTarget, Math.max(16, nNear * 2));
+            nearSource = Arrays.copyOf(nearSource, nearTarget.length);
+        }
+        nearTarget[nNear] = target;
+        nearSource[nNear++] = source;
+    }
+
+    /**
+     * traverses the tree against itself, starting from (root, root): couples
+     * of nodes that are far enough interact through expansions, couples of
+     * leaves that are too close interact directly, the others are split
+     */
+    private void buildInteractionLists() {
+        int sp = 0;
+        if (pairStack.length < 2) {
+            pairStack = new int[64];
+        }
+        pairStack[sp++] = 0;
+        pairStack[sp++] = 0;
+        while (sp > 0) {
+            final int b = pairStack[--sp], a = pairStack[--sp];
+            if (pairStack.length < sp + 32) {
+                pairStack = Arrays.copyOf(pairStack, pairStack.length * 2);
+            }
+            if (a == b) {
+                if (isLeaf(a)) {
+                    addNear(a, a);
+                    continue;
+                }
+                for (int i = 0; i < 4; i++) {
+                    final int ci = nodeChild[4 * a + i];
+                    if (ci == -1) {
+                        continue;
+                    }
+                    for (int j = i; j < 4; j++) {
+                        final int cj = nodeChild[4 * a + j];
+                        if (cj != -1) {
+                            pairStack[sp++] = ci;
+                            pairStack[sp++] = cj;
+                        }
+                    }
+                }
+                continue;
+            }
+            if (wellSeparated(a, b)) {
+                addM2L(a, b);
+                addM2L(b, a);
+                continue;
+            }
+            final boolean leafA = isLeaf(a), leafB = isLeaf(b);
+            if (leafA && leafB) {
+                addNear(a, b);
+                addNear(b, a);
+                continue;
+            }
+            //split the largest one
+            final boolean splitA = leafB || !leafA && nodeRadius[a] >= nodeRadius[b];
+            final int split = splitA ? a : b, other = splitA ? b : a;
+            for (int q = 0; q < 4; q++) {
+                final int c = nodeChild[4 * split + q];
+                if (c != -1) {
+                    pairStack[sp++] = c;
+                    pairStack[sp++] = other;
+                }
+            }
+        }
+        if (m2lStart.length < nNodes + 1) {
+            m2lStart = new int[Math.max(nNodes + 1, m2lStart.length * 2)];
+            nearStart = new int[m2lStart.length];
+        }
+        if (tmp.length < Math.max(nM2L, nNear)) {
+            tmp = new int[Math.max(Math.max(nM2L, nNear), tmp.length * 2)];
+        }
+        sortByTarget(m2lTarget, m2lSource, nM2L, m2lStart);
+        sortByTarget(nearTarget, nearSource, nNear, nearStart);
+    }
+
+    /**
+     * sorts the sources of a list of couples by target, using tmp
+     *
+     * @param target targets
+     * @param source sources, sorted when done
+     * @param count number of couples
+     * @param start where the sources of each target start
+     */
+    private void sortByTarget(int[] target, int[] source, int count, int[] start) {
+        Arrays.fill(start, 0, nNodes + 1, 0);
+        for (int k = 0; k < count; k++) {
+            start[target[k] + 1]++;
+        }
+        for (int a = 0; a < nNodes; a++) {
+            start[a + 1] += start[a];
+        }
+        for (int k = 0; k < count; k++) {
+            tmp[start[target[k]]++] = source[k];
+        }
+        for (int a = nNodes; a > 0; a--) {
+            start[a] = start[a - 1];
+        }
+        start[0] = 0;
+        System.arraycopy(tmp, 0, source, 0, count);
+    }
+
+    /**
+     * local expansion of a node from the multipole expansions of the far
+     * nodes in its list.<br>
+     * with W=source center-target center, g=W/|W|^3 and E(i,j)=W^-i*conj(W)^-j,
+     * the conversion is<br>
+     * L(n,q)=g*E(n,q)*sum_k(m2lK(k,n)*sum_l(m2lL(l,q)*M(k,l)*E(k,l)))<br>
+     * so the sums can be done one index at a time, in O(order^3) instead of
+     * O(order^4)
+     *
+     * @param a node
+     */
+    private void multipolesToLocal(int a) {
+        final int p = stepOrder, p1 = p + 1, base = a * nTerms;
+        Arrays.fill(locRe, base, base + nTerms, 0);
+        Arrays.fill(locIm, base, base + nTerms, 0);
+        final double[][] s = scratch();
+        final double[] invRe = s[2], invIm = s[3], bRe = s[4], bIm = s[5], yRe = s[6], yIm = s[7];
+        for (int e = m2lStart[a], end = m2lStart[a + 1]; e < end; e++) {
+            final int b = m2lSource[e], sBase = b * nTerms;
+            final double wx = nodeX[b] - nodeX[a], wy = nodeY[b] - nodeY[a];
+            final double w2 = wx * wx + wy * wy, w = Math.sqrt(w2), w3 = w2 * w;
+            final double gRe = wx / w3, gIm = wy / w3;
+            powers(wx / w2, -wy / w2, p, invRe, invIm);
+            //B(k,l)=M(k,l)*E(k,l)
+            for (int t = 0; t < nTerms; t++) {
+                final int k = termK[t], l = termL[t];
+                final double eRe = invRe[k] * invRe[l] + invIm[k] * invIm[l], eIm = invIm[k] * invRe[l] - invRe[k] * invIm[l];
+                final double mRe = multRe[sBase + t], mIm = multIm[sBase + t];
+                bRe[t] = mRe * eRe - mIm * eIm;
+                bIm[t] = mRe * eIm + mIm * eRe;
+            }
+            //Y(k,q)=sum_l(m2lL(l,q)*B(k,l))
+            for (int k = 0; k <= p; k++) {
+                for (int q = 0; q <= p; q++) {
+                    double re = 0, im = 0;
+                    for (int l = 0; l <= p - k; l++) {
+                        final double c = m2lL[l * p1 + q];
+                        final int t = termIndex[k * p1 + l];
+                        re += c * bRe[t];
+                        im += c * bIm[t];
+                    }
+                    yRe[k * p1 + q] = re;
+                    yIm[k * p1 + q] = im;
+                }
+            }
+            //L(n,q)=g*E(n,q)*sum_k(m2lK(k,n)*Y(k,q))
+            for (int d = 0; d < nTerms; d++) {
+                final int n = termK[d], q = termL[d];
+                double re = 0, im = 0;
+                for (int k = 0; k <= p; k++) {
+                    final double c = m2lK[k * p1 + n];
+                    re += c * yRe[k * p1 + q];
+                    im += c * yIm[k * p1 + q];
+                }
+                final double eRe = invRe[n] * invRe[q] + invIm[n] * invIm[q], eIm = invIm[n] * invRe[q] - invRe[n] * invIm[q];
+                final double fRe = gRe * eRe - gIm * eIm, fIm = gRe * eIm + gIm * eRe;
+                locRe[base + d] += re * fRe - im * fIm;
+                locIm[base + d] += re * fIm + im * fRe;
+            }
+        }
+    }
+
+    /**
+     * adds the local expansion of the parent of a node, shifted to the center
+     * of the node
+     *
+     * @param a node
+     */
+    private void parentToLocal(int a) {
+        final int p = stepOrder, base = a * nTerms, parent = nodeParent[a], pBase = parent * nTerms;
+        final double[][] s = scratch();
+        final double[] powRe = s[0], powIm = s[1];
+        powers(nodeX[a] - nodeX[parent], nodeY[a] - nodeY[parent], p, powRe, powIm);
+        for (int t = 0; t < nTerms; t++) {
+            final int i = termK[t], j = termL[t];
+            double re = 0, im = 0;
+            //(u+d)^n*conj(u+d)^q, expanded with the binomial theorem
+            for (int n = i; n <= p; n++) {
+                for (int q = j; n + q <= p; q++) {
+                    final int pt = pBase + termIndex[n * (p + 1) + q];
+                    final double b = binom[n * (p + 1) + i] * binom[q * (p + 1) + j];
+                    final int u = n - i, v = q - j;
+                    final double eRe = b * (powRe[u] * powRe[v] + powIm[u] * powIm[v]), eIm = b * (powIm[u] * powRe[v] - powRe[u] * powIm[v]);
+                    re += eRe * locRe[pt] - eIm * locIm[pt];
+                    im += eRe * locIm[pt] + eIm * locRe[pt];
+                }
+            }
+            locRe[base + t] += re;
+            locIm[base + t] += im;
+        }
+    }
+
+    @Override
+    protected long getCostPerPoint(PointStore points) {
+        //the nearby leaves, and the local expansion
+        return 9L * leafSize + nTerms;
+    }
+
+    @Override
+    protected void calculateAttraction(PointStore points, int from, int to) {
+        final int p = stepOrder;
+        final double[][] s = scratch();
+        final double[] powRe = s[0], powIm = s[1];
+        final double softening2 = this.softening2;
+        final double[] radius = closeEncounters ? points.radius : null;
+        for (int i = from; i < to; i++) {
+            final int a = leafOf[i], self = slotOf[i], base = a * nTerms;
+            final double px = slotX[self], py = slotY[self], pr = radius != null ? radius[i] : 0;
+            double dx = 0, dy = 0;
+            //far: local expansion of the leaf
+            powers(px - nodeX[a], py - nodeY[a], p, powRe, powIm);
+            for (int t = 0; t < nTerms; t++) {
+                final int n = termK[t], q = termL[t];
+                final double eRe = powRe[n] * powRe[q] + powIm[n] * powIm[q], eIm = powIm[n] * powRe[q] - powRe[n] * powIm[q];
+                dx += eRe * locRe[base + t] - eIm * locIm[base + t];
+                dy += eRe * locIm[base + t] + eIm * locRe[base + t];
+            }
+            //near: directly
+            for (int e = nearStart[a], end = nearStart[a + 1]; e < end; e++) {
+                final int b = nearSource[e];
+                for (int k = nodeStart[b], kEnd = nodeEnd[b]; k < kEnd; k++) {
+                    if (k == self) {
+                        continue;
+                    }
+                    final double diffX = slotX[k] - px, diffY = slotY[k] - py;
+                    double distance2 = diffX * diffX + diffY * diffY;
+                    if (radius != null) {
+                        final double contact = pr + radius[slotPoint[k]];
+                        distance2 = Math.max(distance2, contact * contact);
+                    }
+                    distance2 += softening2;
+                    final double f = 1 / (distance2 * Math.sqrt(distance2));
+                    dx += slotMass[k] * diffX * f;
+                    dy += slotMass[k] * diffY * f;
+                }
+            }
+            setAttractionVector(points, i, dx * g, dy * g);
+        }
+    }
+
+    /**
+     * compares the engine to the direct-sum on a scene, for each order from 1
+     * to maxOrder, to choose the order for a kind of scene
+     *
+     * @param scene points of the scene (they're copied, not modified)
+     * @param theta opening angle
+     * @param maxOrder maximum order to check
+     * @param nSamples number of points to check, 0 or less = all of them
+     * @return for each order from 1 to maxOrder, {order, maximum relative
+     * error, RMS relative error, nanoseconds to calculate the attraction of
+     * all the points}
+     */
+    public static double[][] measureOrderError(Point[] scene, double theta, int maxOrder, int nSamples) {
+        final PointStore points = new PointStore();
+        for (Point p : scene) {
+            points.add(p.clone());
+        }
+        final double[][] report = new double[maxOrder][];
+        for (int p = 1; p <= maxOrder; p++) {
+            final FmmEngine e = new FmmEngine(p, theta);
+            final long t = System.nanoTime();
+            e.prepare(points);
+            e.calculateAttraction(points, 0, points.size());
+            final long time = System.nanoTime() - t;
+            final double[] err = e.measureError(points, nSamples);
+            report[p - 1] = new double[]{p, err[0], err[1], time};
+        }
+        return report;
+    }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+import java.util.Arrays;
+
+/**
+ * A ForceEngine calculates the attraction vectors of the Points in a
+ * Simulation.<br>
+ * Each simulation step, the master thread calls prepare(points, executor)
+ * once, then calculateAllAttractions(points, executor). If the engine doesn't
+ * implement it, the threads of the executor call calculateAttraction(points,
+ * from, to) on ranges of Points instead.<br>
+ * An engine instance belongs to a single Simulation and must not be shared.
+ *
+ * @author Federico
+ */
+public abstract class ForceEngine {
+
+    /**
+     * kernel for direct calculations between couples of points, chosen by the
+     * Simulation before each step. engines that calculate couples of tiles
+     * should use it
+     */
+    PairKernel pairKernel = PairKernel.SCALAR;
+
+    /**
+     * softening length squared, and whether close encounters are
+     * regularized, chosen by the Simulation before each step (see
+     * Simulation.setSoftening and Simulation.setCloseEncounterRegularization).
+     * <br>
+     * engines calculate the attraction of a mass m at distance d as m/d'^2,
+     * where d'^2 = d^2 + softening2 (Plummer softening). with
+     * closeEncounters, if the 2 points overlap (d is less than the sum of
+     * their radiuses), d is replaced with the sum of their radiuses, so the
+     * attraction stops growing. this only applies to couples calculated
+     * directly: far away groups of points are always calculated with
+     * softening only
+     */
+    double softening2 = 0;
+    boolean closeEncounters = false;
+
+    /**
+     * set by the Simulation before each step (see
+     * Simulation.setDeterministic). engines that sum the partial results of
+     * several threads must then split the work and sum the results in an
+     * order that doesn't depend on the number of threads
+     */
+    boolean deterministic = false;
+
+    /**
+     * gravitational constant of the Simulation, set before each step
+     */
+    double g = Settings.G;
+
+    /**
+     * called by the master thread before attraction vectors are calculated.
+     * the points will not change until the next call.<br>
+     * engines that build acceleration structures should do it here.
+     *
+     * @param points all the points in the simulation
+     */
+    protected void prepare(PointStore points) {
+
+    }
+
+    /**
+     * like prepare(points), but engines that do a lot of work here can split
+     * it between the threads of the executor. called by the Simulation,
+     * instead of prepare(points). the default just calls prepare(points)
+     *
+     * @param points all the points in the simulation
+     * @param executor executor of the simulation, only to be used during this
+     * call
+     */
+    protected void prepare(PointStore points, StepExecutor executor) {
+        prepare(points);
+    }
+
+    /**
+     * calculates how much all the points attract the points from index from
+     * to index to-1, and stores it in their attraction vectors using
+     * setAttractionVector.<br>
+     * called concurrently by several threads on different ranges, so it
+     * must not modify the state of the engine.
+     *
+     * @param points all the points in the simulation
+     * @param from first point (inclusive)
+     * @param to last point (exclusive)
+     */
+    protected abstract void calculateAttraction(PointStore points, int from, int to);
+
+    /**
+     * calculates the attraction vectors of all the points, splitting the work
+     * between the threads of the executor however the engine wants. engines
+     * that can share work between points (for instance, computing each couple
+     * only once) implement this.<br>
+     * called by the master thread after prepare, when all the points need
+     * their attraction vectors. the default does nothing and returns false, so
+     * calculateAttraction(points, from, to) is used.
+     *
+     * @param points all the points in the simulation
+     * @param executor executor of the simulation, only to be used during this
+     * call
+     * @return true if the attraction vectors were calculated, false if
+     * calculateAttraction(points, from, to) must be used
+     */
+    protected boolean calculateAllAttractions(PointStore points, StepExecutor executor) {
+        return false;
+    }
+
+    /**
+     * calculates the attraction vectors of the points with the given indexes,
+     * from indexes[from] to indexes[to-1]. used when only some points need
+     * them (for instance, with block timesteps).<br>
+     * called concurrently by several threads on different ranges, so it must
+     * not modify the state of the engine.
+     *
+     * @param points all the points in the simulation
+     * @param indexes indexes of the points
+     * @param from first index (inclusive)
+     * @param to last index (exclusive)
+     */
+    protected void calculateAttraction(PointStore points, int[] indexes, int from, int to) {
+        for (int k = from; k < to; k++) {
+            calculateAttraction(points, indexes[k], indexes[k] + 1);
+        }
+    }
+
+    /**
+     * estimated cost of calculating the attraction vector of a single point,
+     * used to decide how to split the work between threads. the default is the
+     * number of points, like a direct-sum
+     *
+     * @param points all the points in the simulation
+     * @return cost &gt;=1
+     */
+    protected long getCostPerPoint(PointStore points) {
+        return Math.max(points.size(), 1);
+    }
+
+    /**
+     * engines multiply the attraction vectors by this
+     *
+     * @return gravitational constant of the simulation that uses this engine
+     * (Settings.G by default)
+     */
+    protected final double getG() {
+        return g;
+    }
+
+    /**
+     * stores the attraction vector of a point
+     *
+     * @param points points
+     * @param i index of the point
+     * @param dx attraction on x
+     * @param dy attraction on y
+     */
+    protected static void setAttractionVector(PointStore points, int i, double dx, double dy) {
+        points.ax[i] = dx;
+        points.ay[i] = dy;
+    }
+
+    /**
+     * compares this engine to the exact direct-sum on the given points.<br>
+     * the attraction vectors of the points are overwritten, so it must not be
+     * called while the simulation is calculating them.
+     *
+     * @param points points
+     * @param nSamples number of points to check, evenly spaced in the store. 0
+     * or less = all of them
+     * @return {maximum relative error, RMS relative error} of the attraction
+     * vectors
+     */
+    public double[] measureError(PointStore points, int nSamples) {
+        final int n = points.size();
+        if (n < 2) {
+            return new double[]{0, 0};
+        }
+        if (nSamples <= 0 || nSamples > n) {
+            nSamples = n;
+        }
+        final ForceEngine reference = new DirectSumEngine();
+        reference.g = g;
+        reference.softening2 = softening2;
+        reference.closeEncounters = closeEncounters;
+        prepare(points);
+        //if the engine calculates all the points at once, compare those results
+        double[] allX = null, allY = null;
+        if (calculateAllAttractions(points, StepExecutor.SERIAL)) {
+            allX = Arrays.copyOf(points.ax, n);
+            allY = Arrays.copyOf(points.ay, n);
+        }
+        double maxErr = 0, sumErr2 = 0;
+        int nChecked = 0;
+        for (int s = 0; s < nSamples; s++) {
+            final int i = (int) ((long) s * n / nSamples);
+            final double ex, ey;
+            if (allX != null) {
+                ex = allX[i];
+                ey = allY[i];
+            } else {
+                calculateAttraction(points, i, i + 1);
+                ex = points.ax[i];
+                ey = points.ay[i];
+            }
+            reference.calculateAttraction(points, i, i + 1);
+            final double rx = points.ax[i], ry = points.ay[i];
+            final double ref = Math.sqrt(rx * rx + ry * ry);
+            if (!(ref > 0) || Double.isInfinite(ref)) {
+                continue; //no attraction, or overlapping points
+            }
+            final double err = Math.sqrt((ex - rx) * (ex - rx) + (ey - ry) * (ey - ry)) / ref;
+            if (err > maxErr) {
+                maxErr = err;
+            }
+            sumErr2 += err * err;
+            nChecked++;
+        }
+        return new double[]{maxErr, nChecked == 0 ? 0 : Math.sqrt(sumErr2 / nChecked)};
+    }
+}
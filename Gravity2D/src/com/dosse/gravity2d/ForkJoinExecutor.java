@@ -0,0 +1,316 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Executor that runs the phases on a ForkJoinPool, with work stealing.<br>
+ * A phase is not split in a fixed number of ranges: each worker keeps splitting
+ * its range in half as long as the other workers are running out of work
+ * (lazy splitting), down to a minimum chunk size that depends on the cost of
+ * the items. This way the chunk size adapts to the number of points, the
+ * number of cores and how uneven the work is (for instance, collision
+ * detection in dense clusters), and idle workers steal work from busy
+ * ones.<br>
+ * The ranges are recycled from one phase to the next, so once there are
+ * enough of them, running a phase doesn't create garbage.<br>
+ * This is the default executor.
+ *
+ * @author Federico
+ */
+public class ForkJoinExecutor extends StepExecutor {
+
+    /**
+     * chunks cheaper than this (in items*cost) are not split further
+     */
+    private static final long MIN_CHUNK_COST = 5000;
+
+    /**
+     * a worker splits its range while it has fewer than this many chunks
+     * waiting to be stolen
+     */
+    private static final int MAX_SURPLUS = 2;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * true if the pool was created by this executor, and must be shut down
+     * with it
+     */
+    private final boolean ownPool;
+
+    /**
+     * live workers of the pool (only if it's our own), and bytes allocated by
+     * the workers that have terminated
+     */
+    private final ArrayList<Thread> workers = new ArrayList<Thread>();
+    private long retiredBytes = 0;
+
+    /**
+     * ranges that can be used in the current phase, and how many have been
+     * taken. if they run out, new ones are created and the array is enlarged
+     * after the phase
+     */
+    private RangeAction[] actions = new RangeAction[0];
+    private final AtomicInteger actionsTaken = new AtomicInteger();
+
+    /**
+     * set when the first range of the current phase (and so all the others)
+     * is completed, with the error it threw, if any. the caller waits for it
+     * parked, instead of using invoke, which may allocate memory
+     */
+    private volatile boolean phaseDone;
+    private volatile Throwable phaseError;
+
+    /**
+     * creates an executor with one worker per core
+     */
+    public ForkJoinExecutor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * creates an executor with its own pool
+     *
+     * @param parallelism number of workers &gt;0
+     */
+    public ForkJoinExecutor(int parallelism) {
+        this(parallelism, Settings.SLAVE_PRIORITY_ACTIVE);
+    }
+
+    /**
+     * creates an executor with its own pool
+     *
+     * @param parallelism number of workers &gt;0
+     * @param priority priority of the workers
+     */
+    public ForkJoinExecutor(int parallelism, final int priority) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be >0");
+        }
+        pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                final ForkJoinWorkerThread t = new ForkJoinWorkerThread(pool) {
+                    @Override
+                    protected void onStart() {
+                        super.onStart();
+                        synchronized (workers) {
+                            workers.add(this);
+                        }
+                    }
+
+                    @Override
+                    protected void onTermination(Throwable exception) {
+                        synchronized (workers) {
+                            workers.remove(this);
+                            final long b = Utils.getAllocatedBytes(this);
+                            if (b > 0) {
+                                retiredBytes += b;
+                            }
+                        }
+                        super.onTermination(exception);
+                    }
+                };
+                t.setName("Gravity - Worker Thread");
+                t.setPriority(priority);
+                return t;
+            }
+        }, null, false);
+        ownPool = true;
+    }
+
+    /**
+     * creates an executor that uses an existing pool. the pool will not be
+     * shut down with the simulation
+     *
+     * @param pool pool
+     */
+    public ForkJoinExecutor(ForkJoinPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("Pool can't be null");
+        }
+        this.pool = pool;
+        ownPool = false;
+    }
+
+    /**
+     * a range of items. splits itself while there are idle workers
+     */
+    private class RangeAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private RangeTask task;
+        private int from, to, grain;
+
+        /**
+         * next forked range, to join them in reverse order without a list
+         */
+        private RangeAction next;
+
+        /**
+         * thread waiting for this range, only for the first range of a phase
+         */
+        private Thread caller;
+
+        RangeAction set(RangeTask task, int from, int to, int grain, RangeAction next) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.next = next;
+            return this;
+        }
+
+        @Override
+        protected void compute() {
+            if (caller == null) {
+                computeRange();
+                return;
+            }
+            try {
+                computeRange();
+            } catch (Throwable t) {
+                phaseError = t;
+            } finally {
+                phaseDone = true;
+                LockSupport.unpark(caller);
+            }
+        }
+
+        private void computeRange() {
+            int hi = to;
+            RangeAction forked = null;
+            while (hi - from > grain && getSurplusQueuedTaskCount() < MAX_SURPLUS) {
+                final int mid = (from + hi) >>> 1;
+                forked = takeAction().set(task, mid, hi, grain, forked);
+                forked.fork();
+                hi = mid;
+            }
+            //if a range fails, the forked ones must still be completed before the phase ends, they're reused by the next one
+            Throwable error = null;
+            try {
+                task.run(from, hi);
+            } catch (Throwable t) {
+                error = t;
+            }
+            while (forked != null) {
+                try {
+                    if (forked.tryUnfork()) {
+                        forked.compute(); //nobody stole it, run it here
+                    } else {
+                        forked.join();
+                    }
+                } catch (Throwable t) {
+                    if (error == null) {
+                        error = t;
+                    }
+                }
+                forked = forked.next;
+            }
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            } else if (error instanceof Error) {
+                throw (Error) error;
+            } else if (error != null) {
+                throw new IllegalStateException("Worker thread failed", error);
+            }
+        }
+    }
+
+    /**
+     * takes a range from the ones available in this phase, or creates a new
+     * one if there are none left. can be called by several threads
+     *
+     * @return range
+     */
+    private RangeAction takeAction() {
+        final int i = actionsTaken.getAndIncrement();
+        return i < actions.length ? actions[i] : new RangeAction();
+    }
+
+    @Override
+    protected void execute(int n, long cost, RangeTask task) {
+        final int grain = (int) Math.max(1, Math.min(n, MIN_CHUNK_COST / cost));
+        actionsTaken.set(0);
+        final RangeAction root = takeAction().set(task, 0, n, grain, null);
+        final Thread current = Thread.currentThread();
+        try {
+            if (current instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) current).getPool() == pool) {
+                pool.invoke(root); //a worker can't park, it has to help
+            } else {
+                phaseDone = false;
+                root.caller = current;
+                pool.execute(root);
+                while (!phaseDone) {
+                    LockSupport.park(this);
+                }
+                //the worker may still be marking the first range as completed, it must be done before it's reused
+                while (!root.isDone()) {
+                    Utils.releaseCPU();
+                }
+                final Throwable t = phaseError;
+                if (t != null) {
+                    phaseError = null;
+                    throw new IllegalStateException("Worker thread failed", t);
+                }
+            }
+        } finally {
+            root.caller = null;
+            //all the ranges are completed, get them ready for the next phase
+            final int taken = actionsTaken.get();
+            final int reused = Math.min(taken, actions.length);
+            for (int i = 0; i < reused; i++) {
+                actions[i].set(null, 0, 0, 0, null);
+                actions[i].reinitialize();
+            }
+            if (taken > actions.length) {
+                final int old = actions.length;
+                actions = Arrays.copyOf(actions, Math.max(taken, old * 2));
+                for (int i = old; i < actions.length; i++) {
+                    actions[i] = new RangeAction();
+                }
+            }
+        }
+    }
+
+    @Override
+    protected long getAllocatedBytes() {
+        if (!ownPool) {
+            return -1; //don't know who the workers are
+        }
+        synchronized (workers) {
+            long total = retiredBytes;
+            for (int i = 0; i < workers.size(); i++) {
+                final long b = Utils.getAllocatedBytes(workers.get(i));
+                if (b < 0) {
+                    return -1;
+                }
+                total += b;
+            }
+            return total;
+        }
+    }
+
+    @Override
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    @Override
+    protected void shutdown() {
+        if (ownPool) {
+            pool.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+/**
+ * An Integrator moves the Points of a Simulation forward in time, using the
+ * attraction vectors calculated by the ForceEngine.<br>
+ * A step is made of one or more stages. In each stage:<br>
+ * -prepareStage is run by the master thread<br>
+ * -beforeForces is run on all the points (only if hasBeforeForces(stage) is
+ * true)<br>
+ * -the ForceEngine calculates the attraction vectors with the current
+ * positions, for all the points or only for the active ones (see
+ * getActiveCount)<br>
+ * -afterForces is run on all the points<br>
+ * Collisions are handled once per step, before the first stage.<br>
+ * The attraction vectors are accelerations: a point moves by velocity*dt and
+ * its velocity changes by attraction*dt.<br>
+ * An integrator instance belongs to a single Simulation and must not be
+ * shared.
+ *
+ * @author Federico
+ */
+public abstract class Integrator {
+
+    /**
+     *
+     * @return number of stages (attraction calculations) in a step
+     */
+    public abstract int getStages();
+
+    /**
+     * called by the master thread at the beginning of each step, before any
+     * stage. integrators that need extra data for each point should allocate
+     * it here.
+     *
+     * @param points all the points in the simulation
+     */
+    protected void prepare(PointStore points) {
+
+    }
+
+    /**
+     * called by the master thread at the beginning of each stage.
+     *
+     * @param points all the points in the simulation
+     * @param stage stage
+     * @param dt timestep
+     */
+    protected void prepareStage(PointStore points, int stage, double dt) {
+
+    }
+
+    /**
+     * number of points that need their attraction vector in the current
+     * stage. valid after prepareStage
+     *
+     * @return -1 if all the points need it (default), 0 to skip the stage,
+     * otherwise the number of elements in getActivePoints()
+     */
+    protected int getActiveCount() {
+        return -1;
+    }
+
+    /**
+     * indexes of the points that need their attraction vector in the current
+     * stage. valid after prepareStage, only if getActiveCount()&gt;0
+     *
+     * @return indexes
+     */
+    protected int[] getActivePoints() {
+        return null;
+    }
+
+    /**
+     *
+     * @param stage stage
+     * @return true if beforeForces has to be called in this stage
+     */
+    protected boolean hasBeforeForces(int stage) {
+        return false;
+    }
+
+    /**
+     * called before attraction vectors are calculated, on ranges of points,
+     * by several threads
+     *
+     * @param points all the points in the simulation
+     * @param from first point (inclusive)
+     * @param to last point (exclusive)
+     * @param stage stage
+     * @param dt timestep
+     */
+    protected void beforeForces(PointStore points, int from, int to, int stage, double dt) {
+
+    }
+
+    /**
+     * called after attraction vectors are calculated, on ranges of points, by
+     * several threads
+     *
+     * @param points all the points in the simulation
+     * @param from first point (inclusive)
+     * @param to last point (exclusive)
+     * @param stage stage
+     * @param dt timestep
+     */
+    protected abstract void afterForces(PointStore points, int from, int to, int stage, double dt);
+
+    /**
+     * moves positions by velocity*dt
+     *
+     * @param points all the points in the simulation
+     * @param from first point (inclusive)
+     * @param to last point (exclusive)
+     * @param dt time
+     */
+    protected static void drift(PointStore points, int from, int to, double dt) {
+        final double[] x = points.x, y = points.y, velX = points.velX, velY = points.velY;
+        for (int i = from; i < to; i++) {
+            x[i] += velX[i] * dt;
+            y[i] += velY[i] * dt;
+        }
+    }
+
+    /**
+     * changes velocities by attraction*dt
+     *
+     * @param points all the points in the simulation
+     * @param from first point (inclusive)
+     * @param to last point (exclusive)
+     * @param dt time
+     */
+    protected static void kick(PointStore points, int from, int to, double dt) {
+        final double[] velX = points.velX, velY = points.velY, ax = points.ax, ay = points.ay;
+        for (int i = from; i < to; i++) {
+            velX[i] += ax[i] * dt;
+            velY[i] += ay[i] * dt;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+/**
+ * Leapfrog (Verlet) in drift-kick-drift form: half a step of movement, a full
+ * velocity update, and another half step of movement.<br>
+ * Second order and symplectic (energy errors don't accumulate over time), one
+ * attraction calculation per step, so it's about as cheap as Euler but allows
+ * much larger steps.
+ *
+ * @author Federico
+ */
+public class LeapfrogIntegrator extends Integrator {
+
+    @Override
+    public int getStages() {
+        return 1;
+    }
+
+    @Override
+    protected boolean hasBeforeForces(int stage) {
+        return true;
+    }
+
+    @Override
+    protected void beforeForces(PointStore points, int from, int to, int stage, double dt) {
+        drift(points, from, to, dt / 2);
+    }
+
+    @Override
+    protected void afterForces(PointStore points, int from, int to, int stage, double dt) {
+        kick(points, from, to, dt);
+        drift(points, from, to, dt / 2);
+    }
+
+}
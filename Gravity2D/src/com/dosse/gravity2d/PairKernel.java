@@ -0,0 +1,167 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+/**
+ * Innermost loop of the direct-sum: calculates the couples of points between
+ * 2 tiles, in double or float precision.<br>
+ * SCALAR is plain Java and always available. VECTOR uses the Vector API
+ * (jdk.incubator.vector) to calculate several couples with each instruction;
+ * it's in the src-vector folder, which is only compiled with Java 17 or
+ * newer, and it's only available when the program is started with
+ * --add-modules jdk.incubator.vector. Otherwise, VECTOR is null.
+ *
+ * @author Federico
+ */
+abstract class PairKernel {
+
+    /**
+     * calculates each couple (i,j) with i in tile A, j in tile B and i&lt;j
+     * once, adding the attraction to i and subtracting it from j
+     *
+     * @param x x coordinates
+     * @param y y coordinates
+     * @param mass masses
+     * @param radius radiuses, only for close encounter regularization, null
+     * otherwise (see ForceEngine.closeEncounters)
+     * @param softening2 softening length squared
+     * @param ax accumulated attraction on x (without G)
+     * @param ay accumulated attraction on y (without G)
+     * @param fromA first point of tile A (inclusive)
+     * @param toA last point of tile A (exclusive)
+     * @param fromB first point of tile B (inclusive), fromB&gt;=fromA
+     * @param toB last point of tile B (exclusive)
+     */
+    abstract void calculateTiles(double[] x, double[] y, double[] mass, double[] radius, double softening2, double[] ax, double[] ay, int fromA, int toA, int fromB, int toB);
+
+    /**
+     * like calculateTiles, in float precision. the coordinates of each tile
+     * are relative to an origin (usually its center), so that they keep their
+     * precision no matter how far the points are from 0,0. the attractions
+     * are added to per-tile arrays (indexed from 0), that the caller sums in
+     * double precision
+     *
+     * @param x x coordinates, relative to the origin of their tile
+     * @param y y coordinates, relative to the origin of their tile
+     * @param mass masses
+     * @param radius radiuses, or null
+     * @param softening2 softening length squared
+     * @param fromA first point of tile A (inclusive)
+     * @param toA last point of tile A (exclusive)
+     * @param fromB first point of tile B (inclusive), fromB&gt;=fromA
+     * @param toB last point of tile B (exclusive)
+     * @param offsetX origin of tile B - origin of tile A, on x
+     * @param offsetY origin of tile B - origin of tile A, on y
+     * @param ax attraction on x of the points of tile A (without G)
+     * @param ay attraction on y of the points of tile A (without G)
+     * @param bx attraction on x of the points of tile B (without G)
+     * @param by attraction on y of the points of tile B (without G)
+     */
+    abstract void calculateTiles(float[] x, float[] y, float[] mass, float[] radius, float softening2, int fromA, int toA, int fromB, int toB, float offsetX, float offsetY, float[] ax, float[] ay, float[] bx, float[] by);
+
+    static final PairKernel SCALAR = new PairKernel() {
+        @Override
+        void calculateTiles(double[] x, double[] y, double[] mass, double[] radius, double softening2, double[] ax, double[] ay, int fromA, int toA, int fromB, int toB) {
+            for (int i = fromA; i < toA; i++) {
+                final double px = x[i], py = y[i], pm = mass[i], pr = radius != null ? radius[i] : 0;
+                double dx = 0, dy = 0;
+                for (int j = Math.max(fromB, i + 1); j < toB; j++) {
+                    final double diffX = x[j] - px, diffY = y[j] - py;
+                    double distance2 = diffX * diffX + diffY * diffY;
+                    if (radius != null) {
+                        final double contact = pr + radius[j];
+                        distance2 = Math.max(distance2, contact * contact);
+                    }
+                    distance2 += softening2;
+                    final double f = 1 / (distance2 * Math.sqrt(distance2));
+                    final double fx = diffX * f, fy = diffY * f;
+                    dx += mass[j] * fx;
+                    dy += mass[j] * fy;
+                    ax[j] -= pm * fx;
+                    ay[j] -= pm * fy;
+                }
+                ax[i] += dx;
+                ay[i] += dy;
+            }
+        }
+
+        @Override
+        void calculateTiles(float[] x, float[] y, float[] mass, float[] radius, float softening2, int fromA, int toA, int fromB, int toB, float offsetX, float offsetY, float[] ax, float[] ay, float[] bx, float[] by) {
+            for (int i = fromA; i < toA; i++) {
+                //position of i relative to the origin of tile B
+                final float px = x[i] - offsetX, py = y[i] - offsetY, pm = mass[i], pr = radius != null ? radius[i] : 0;
+                float dx = 0, dy = 0;
+                for (int j = Math.max(fromB, i + 1); j < toB; j++) {
+                    final float diffX = x[j] - px, diffY = y[j] - py;
+                    float distance2 = diffX * diffX + diffY * diffY;
+                    if (radius != null) {
+                        final float contact = pr + radius[j];
+                        distance2 = Math.max(distance2, contact * contact);
+                    }
+                    distance2 += softening2;
+                    final float f = 1 / (distance2 * (float) Math.sqrt(distance2));
+                    final float fx = diffX * f, fy = diffY * f;
+                    dx += mass[j] * fx;
+                    dy += mass[j] * fy;
+                    bx[j - fromB] -= pm * fx;
+                    by[j - fromB] -= pm * fy;
+                }
+                ax[i - fromA] += dx;
+                ay[i - fromA] += dy;
+            }
+        }
+    };
+
+    static final PairKernel VECTOR = loadVector();
+
+    /**
+     * loads the Vector API kernel and checks that it gives the same results
+     * as SCALAR
+     *
+     * @return the kernel, or null if it's not available
+     */
+    private static PairKernel loadVector() {
+        final PairKernel k;
+        try {
+            k = (PairKernel) Class.forName("com.dosse.gravity2d.VectorPairKernel").getDeclaredConstructor().newInstance();
+        } catch (Throwable t) {
+            return null; //not compiled, old JVM, or module not present
+        }
+        final int n = 37;
+        final double[] x = new double[n], y = new double[n], mass = new double[n], radius = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = Math.cos(i * 2.1) * (i + 1);
+            y[i] = Math.sin(i * 1.3) * (i + 2);
+            mass[i] = 1 + i % 5;
+            radius[i] = 0.2 * (i % 3);
+        }
+        final double[] ax = new double[n], ay = new double[n], vx = new double[n], vy = new double[n];
+        final float[] fx = new float[n], fy = new float[n], fMass = new float[n], fRadius = new float[n];
+        for (int i = 0; i < n; i++) {
+            fx[i] = (float) x[i];
+            fy[i] = (float) y[i];
+            fMass[i] = (float) mass[i];
+            fRadius[i] = (float) radius[i];
+        }
+        final float[] sx = new float[n], sy = new float[n], kx = new float[n], ky = new float[n];
+        SCALAR.calculateTiles(x, y, mass, radius, 0.01, ax, ay, 0, n, 0, n);
+        SCALAR.calculateTiles(fx, fy, fMass, fRadius, 0.01f, 0, n, 0, n, 0, 0, sx, sy, sx, sy);
+        try {
+            k.calculateTiles(x, y, mass, radius, 0.01, vx, vy, 0, n, 0, n);
+            k.calculateTiles(fx, fy, fMass, fRadius, 0.01f, 0, n, 0, n, 0, 0, kx, ky, kx, ky);
+        } catch (Throwable t) {
+            return null;
+        }
+        for (int i = 0; i < n; i++) {
+            if (!close(vx[i], ax[i], 1e-9) || !close(vy[i], ay[i], 1e-9) || !close(kx[i], sx[i], 1e-4) || !close(ky[i], sy[i], 1e-4)) {
+                return null;
+            }
+        }
+        return k;
+    }
+
+    private static boolean close(double a, double b, double tolerance) {
+        return Math.abs(a - b) <= tolerance * (Math.abs(b) + 1e-3);
+    }
+}
@@ -12,7 +12,8 @@ import java.io.ObjectOutput;
  * A Point in the gravity simulation.<br>
  * Has x,y, velocity vector, mass and density.<br>
  * <br>
- * Also responsible for attraction calculations and collision detection
+ * While it's in a Simulation, its data is kept in the PointStore of the
+ * simulation, and this object is just a view of it.
  *
  *
  * @author Federico
@@ -20,7 +21,8 @@ import java.io.ObjectOutput;
 public class Point implements Externalizable {
 
     /**
-     * coordinates, velocity vector, mass and density
+     * coordinates, velocity vector, mass and density. only used while the
+     * point is not in a simulation
      */
     private double x, y, velX, velY, mass, density;
 
@@ -29,6 +31,13 @@ public class Point implements Externalizable {
      */
     private double radius;
 
+    /**
+     * store that contains the data of this point, and index of this point in
+     * it. null/-1 if the point is not in a simulation
+     */
+    PointStore store = null;
+    int index = -1;
+
     /**
      * create a new point
      *
@@ -60,8 +69,64 @@ public class Point implements Externalizable {
         this(0, 0, 0, 0, 1, 1);
     }
 
+    /**
+     * creates the owner of slot i of a store, whose data is already there (or
+     * will be written there)
+     *
+     * @param s store
+     * @param i index
+     */
+    Point(PointStore s, int i) {
+        store = s;
+        index = i;
+    }
+
     protected void recalcRadius() {
-        radius = density == 0 ? 0 : Math.sqrt(Math.PI * mass / density);
+        final double m = getMass(), d = getDensity();
+        final double r = d == 0 ? 0 : Math.sqrt(Math.PI * m / d);
+        if (store == null) {
+            radius = r;
+        } else {
+            store.radius[index] = r;
+        }
+    }
+
+    /**
+     * moves the data of this point into slot i of a store
+     *
+     * @param s store
+     * @param i index
+     */
+    void attach(PointStore s, int i) {
+        s.x[i] = x;
+        s.y[i] = y;
+        s.velX[i] = velX;
+        s.velY[i] = velY;
+        s.mass[i] = mass;
+        s.density[i] = density;
+        s.radius[i] = radius;
+        s.ax[i] = 0;
+        s.ay[i] = 0;
+        s.stale[i] = true;
+        s.level[i] = 0;
+        s.owners[i] = this;
+        store = s;
+        index = i;
+    }
+
+    /**
+     * takes the data of this point back from its store
+     */
+    void detach() {
+        x = store.x[index];
+        y = store.y[index];
+        velX = store.velX[index];
+        velY = store.velY[index];
+        mass = store.mass[index];
+        density = store.density[index];
+        radius = store.radius[index];
+        store = null;
+        index = -1;
     }
 
     /**
@@ -69,7 +134,7 @@ public class Point implements Externalizable {
      * @return density
      */
     public double getDensity() {
-        return density;
+        return store == null ? density : store.density[index];
     }
 
     /**
@@ -81,7 +146,12 @@ public class Point implements Externalizable {
         if (density <= 0) {
             throw new IllegalArgumentException("Density must be >0");
         }
-        this.density = density;
+        if (store == null) {
+            this.density = density;
+        } else {
+            store.density[index] = density;
+            store.stale[index] = true;
+        }
         recalcRadius();
     }
 
@@ -90,7 +160,7 @@ public class Point implements Externalizable {
      * @return mass
      */
     public double getMass() {
-        return mass;
+        return store == null ? mass : store.mass[index];
     }
 
     /**
@@ -102,7 +172,12 @@ public class Point implements Externalizable {
         if (mass <= 0) {
             throw new IllegalArgumentException("Mass must be >0");
         }
-        this.mass = mass;
+        if (store == null) {
+            this.mass = mass;
+        } else {
+            store.mass[index] = mass;
+            store.stale[index] = true;
+        }
         recalcRadius();
     }
 
@@ -111,7 +186,7 @@ public class Point implements Externalizable {
      * @return x coordinate
      */
     public double getX() {
-        return x;
+        return store == null ? x : store.x[index];
     }
 
     /**
@@ -119,7 +194,7 @@ public class Point implements Externalizable {
      * @return y coordinate
      */
     public double getY() {
-        return y;
+        return store == null ? y : store.y[index];
     }
 
     /**
@@ -127,7 +202,12 @@ public class Point implements Externalizable {
      * @param x x coordinate
      */
     public void setX(double x) {
-        this.x = x;
+        if (store == null) {
+            this.x = x;
+        } else {
+            store.x[index] = x;
+            store.stale[index] = true;
+        }
     }
 
     /**
@@ -135,7 +215,12 @@ public class Point implements Externalizable {
      * @param y y coordinate
      */
     public void setY(double y) {
-        this.y = y;
+        if (store == null) {
+            this.y = y;
+        } else {
+            store.y[index] = y;
+            store.stale[index] = true;
+        }
     }
 
     /**
@@ -143,7 +228,11 @@ public class Point implements Externalizable {
      * @param velX velocity on x
      */
     public void setVelX(double velX) {
-        this.velX = velX;
+        if (store == null) {
+            this.velX = velX;
+        } else {
+            store.velX[index] = velX;
+        }
     }
 
     /**
@@ -151,7 +240,11 @@ public class Point implements Externalizable {
      * @param velY velocity on y
      */
     public void setVelY(double velY) {
-        this.velY = velY;
+        if (store == null) {
+            this.velY = velY;
+        } else {
+            store.velY[index] = velY;
+        }
     }
 
     /**
@@ -159,7 +252,7 @@ public class Point implements Externalizable {
      * @return velocity on x
      */
     public double getVelX() {
-        return velX;
+        return store == null ? velX : store.velX[index];
     }
 
     /**
@@ -167,49 +260,7 @@ public class Point implements Externalizable {
      * @return velocity on y
      */
     public double getVelY() {
-        return velY;
-    }
-
-    /**
-     * attraction vector, calculated by calculateAttraction(points)
-     */
-    private double dx, dy;
-
-    /**
-     * this method calculates attraction between this point and all the points
-     * in the list, and stores it in the attraction vector of this point.<br>
-     * in other words, it calculates how much the other points attract this
-     * one<br>
-     *
-     * @param points points
-     */
-    protected void calculateAttraction(Iterable<Point> points) {
-        double distance, diffX, diffY, distance3;
-        dx = 0;
-        dy = 0;
-        for (Point p : points) {
-            if (p == this) {
-                continue;
-            }
-            diffX = p.x - x;
-            diffY = p.y - y;
-            distance = Math.sqrt(diffX * diffX + diffY * diffY);
-            distance3 = distance * distance * distance;
-            dx += (p.mass * diffX) / distance3;
-            dy += (p.mass * diffY) / distance3;
-        }
-        dx *= Settings.G;
-        dy *= Settings.G;
-    }
-
-    /**
-     * applies the calculated attraction vector
-     */
-    protected void applyAttractionVector() {
-        velX += dx;
-        velY += dy;
-        x += velX;
-        y += velY;
+        return store == null ? velY : store.velY[index];
     }
 
     /**
@@ -222,7 +273,7 @@ public class Point implements Externalizable {
      * @return true if colliding, false otherwise
      */
     public boolean collidesWith(Point p) {
-        final double diffX = p.x - x, diffY = p.y - y, rads = radius + p.radius;
+        final double diffX = p.getX() - getX(), diffY = p.getY() - getY(), rads = getRadius() + p.getRadius();
         return diffX * diffX + diffY * diffY <= rads * rads;
     }
 
@@ -233,7 +284,7 @@ public class Point implements Externalizable {
      * @return
      */
     public double getRadius() {
-        return radius;
+        return store == null ? radius : store.radius[index];
     }
 
     /**
@@ -250,7 +301,7 @@ public class Point implements Externalizable {
      */
     @Override
     public Point clone() {
-        return new Point(x, y, velX, velY, mass, density);
+        return new Point(getX(), getY(), getVelX(), getVelY(), getMass(), getDensity());
     }
 
     /**
@@ -260,12 +311,12 @@ public class Point implements Externalizable {
     @Override
     public int hashCode() {
         int hash = 5;
-        hash = 89 * hash + (int) (Double.doubleToLongBits(this.x) ^ (Double.doubleToLongBits(this.x) >>> 32));
-        hash = 89 * hash + (int) (Double.doubleToLongBits(this.y) ^ (Double.doubleToLongBits(this.y) >>> 32));
-        hash = 89 * hash + (int) (Double.doubleToLongBits(this.velX) ^ (Double.doubleToLongBits(this.velX) >>> 32));
-        hash = 89 * hash + (int) (Double.doubleToLongBits(this.velY) ^ (Double.doubleToLongBits(this.velY) >>> 32));
-        hash = 89 * hash + (int) (Double.doubleToLongBits(this.mass) ^ (Double.doubleToLongBits(this.mass) >>> 32));
-        hash = 89 * hash + (int) (Double.doubleToLongBits(this.density) ^ (Double.doubleToLongBits(this.density) >>> 32));
+        hash = 89 * hash + (int) (Double.doubleToLongBits(getX()) ^ (Double.doubleToLongBits(getX()) >>> 32));
+        hash = 89 * hash + (int) (Double.doubleToLongBits(getY()) ^ (Double.doubleToLongBits(getY()) >>> 32));
+        hash = 89 * hash + (int) (Double.doubleToLongBits(getVelX()) ^ (Double.doubleToLongBits(getVelX()) >>> 32));
+        hash = 89 * hash + (int) (Double.doubleToLongBits(getVelY()) ^ (Double.doubleToLongBits(getVelY()) >>> 32));
+        hash = 89 * hash + (int) (Double.doubleToLongBits(getMass()) ^ (Double.doubleToLongBits(getMass()) >>> 32));
+        hash = 89 * hash + (int) (Double.doubleToLongBits(getDensity()) ^ (Double.doubleToLongBits(getDensity()) >>> 32));
         return hash;
     }
 
@@ -279,7 +330,7 @@ public class Point implements Externalizable {
     public boolean equals(Object o) {
         if (o instanceof Point) {
             final Point p = (Point) o;
-            return p.x == x && p.y == y && p.velX == velX && p.velY == velY && p.mass == mass && p.density == density;
+            return p.getX() == getX() && p.getY() == getY() && p.getVelX() == getVelX() && p.getVelY() == getVelY() && p.getMass() == getMass() && p.getDensity() == getDensity();
         } else {
             return false;
         }
@@ -294,12 +345,12 @@ public class Point implements Externalizable {
     @Override
     public void writeExternal(ObjectOutput out) throws IOException {
         out.writeChar('d'); //this save contains double-precision data
-        out.writeDouble(x);
-        out.writeDouble(y);
-        out.writeDouble(velX);
-        out.writeDouble(velY);
-        out.writeDouble(mass);
-        out.writeDouble(density);
+        out.writeDouble(getX());
+        out.writeDouble(getY());
+        out.writeDouble(getVelX());
+        out.writeDouble(getVelY());
+        out.writeDouble(getMass());
+        out.writeDouble(getDensity());
     }
 
     /**
@@ -0,0 +1,295 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Contains the data of all the Points in a Simulation.<br>
+ * Instead of one object per Point, data is stored in parallel arrays (one per
+ * attribute), so the calculations can run through them sequentially. Point i
+ * has coordinates x[i],y[i], velocity velX[i],velY[i], and so on.<br>
+ * The Point objects are still there, but while they're in a simulation they
+ * read and write their data from here.<br>
+ * <br>
+ * Only the master thread modifies the store. Points can be added and removed
+ * only between simulation steps. Removing a point moves the last point into
+ * its slot, so the order of the points is not preserved.
+ *
+ * @author Federico
+ */
+public class PointStore implements Iterable<Point> {
+
+    /**
+     * coordinates, velocity vector, mass, density and radius
+     */
+    double[] x, y, velX, velY, mass, density, radius;
+
+    /**
+     * attraction vectors, calculated by the ForceEngine
+     */
+    double[] ax, ay;
+
+    /**
+     * true if the attraction vector of a point is out of date: the point was
+     * just added, or its position, mass or density were changed from outside
+     * the integrator (for instance, it was joined with other points), or the
+     * engine settings changed. integrators that reuse the attraction vectors
+     * from the end of the previous step recalculate these, and clear the flag
+     */
+    boolean[] stale;
+
+    /**
+     * timestep level of each point, for integrators that give each point its
+     * own timestep (see BlockTimestepIntegrator). it moves with the point, so
+     * it's kept from one step to the next
+     */
+    int[] level;
+
+    /**
+     * the Point objects that own each slot
+     */
+    Point[] owners;
+
+    /**
+     * unique id of each point, given when it's added to the store. it moves
+     * with the point when the point is moved to another slot, so it can be
+     * used to follow the points from one step to the next
+     */
+    int[] id;
+    private int nextId = 0;
+
+    /**
+     * number of points
+     */
+    int size = 0;
+
+    PointStore() {
+        allocate(16);
+    }
+
+    private void allocate(int capacity) {
+        if (owners == null) {
+            x = new double[capacity];
+            y = new double[capacity];
+            velX = new double[capacity];
+            velY = new double[capacity];
+            mass = new double[capacity];
+            density = new double[capacity];
+            radius = new double[capacity];
+            ax = new double[capacity];
+            ay = new double[capacity];
+            stale = new boolean[capacity];
+            level = new int[capacity];
+            owners = new Point[capacity];
+            id = new int[capacity];
+        } else {
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            velX = Arrays.copyOf(velX, capacity);
+            velY = Arrays.copyOf(velY, capacity);
+            mass = Arrays.copyOf(mass, capacity);
+            density = Arrays.copyOf(density, capacity);
+            radius = Arrays.copyOf(radius, capacity);
+            ax = Arrays.copyOf(ax, capacity);
+            ay = Arrays.copyOf(ay, capacity);
+            stale = Arrays.copyOf(stale, capacity);
+            level = Arrays.copyOf(level, capacity);
+            owners = Arrays.copyOf(owners, capacity);
+            id = Arrays.copyOf(id, capacity);
+        }
+    }
+
+    /**
+     * adds a point at the end of the store. the point must not be in another
+     * store
+     *
+     * @param p point
+     */
+    void add(Point p) {
+        if (size == owners.length) {
+            allocate(size * 2);
+        }
+        id[size] = nextId++;
+        p.attach(this, size++);
+    }
+
+    /**
+     * removes a point, moving the last point into its slot. O(1)
+     *
+     * @param p point
+     * @return index that the point had, or -1 if it wasn't in this store
+     */
+    int remove(Point p) {
+        if (p.store != this) {
+            return -1;
+        }
+        final int i = p.index;
+        p.detach();
+        size--;
+        if (i != size) {
+            x[i] = x[size];
+            y[i] = y[size];
+            velX[i] = velX[size];
+            velY[i] = velY[size];
+            mass[i] = mass[size];
+            density[i] = density[size];
+            radius[i] = radius[size];
+            ax[i] = ax[size];
+            ay[i] = ay[size];
+            stale[i] = stale[size];
+            level[i] = level[size];
+            owners[i] = owners[size];
+            owners[i].index = i;
+            id[i] = id[size];
+        }
+        owners[size] = null;
+        return i;
+    }
+
+    /**
+     * removes all the points in a list, one swap each. points that are not in
+     * this store (or appear more than once) are ignored. O(number of points in
+     * the list), no matter how many points are in the store
+     *
+     * @param list points to remove
+     * @return number of removed points
+     */
+    int removeAll(List<Point> list) {
+        int n = 0;
+        for (int i = 0, count = list.size(); i < count; i++) {
+            if (remove(list.get(i)) != -1) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * removes all points
+     */
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            owners[i].detach();
+            owners[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * replaces all the points with n new ones, so that a saved state can be
+     * read straight into the arrays. the caller then writes x, y, velX, velY,
+     * mass and density of the new points, and calls recalcRadiuses()
+     *
+     * @param n number of points
+     */
+    void reset(int n) {
+        clear();
+        if (n > owners.length) {
+            allocate(n);
+        }
+        for (int i = 0; i < n; i++) {
+            owners[i] = new Point(this, i);
+            id[i] = nextId++;
+        }
+        Arrays.fill(ax, 0, n, 0);
+        Arrays.fill(ay, 0, n, 0);
+        Arrays.fill(stale, 0, n, true);
+        Arrays.fill(level, 0, n, 0);
+        size = n;
+    }
+
+    /**
+     * marks the attraction vectors of all the points as out of date
+     */
+    void invalidate() {
+        Arrays.fill(stale, 0, size, true);
+    }
+
+    /**
+     * recalculates the radius of all the points, after their mass and density
+     * have been written in the arrays
+     */
+    void recalcRadiuses() {
+        for (int i = 0; i < size; i++) {
+            owners[i].recalcRadius();
+        }
+    }
+
+    /**
+     * @return hash of the bits of the coordinates, velocities, masses and
+     * densities of all the points, in order
+     */
+    long checksum() {
+        long h = size;
+        for (int i = 0; i < size; i++) {
+            h = mix(h, x[i]);
+            h = mix(h, y[i]);
+            h = mix(h, velX[i]);
+            h = mix(h, velY[i]);
+            h = mix(h, mass[i]);
+            h = mix(h, density[i]);
+        }
+        return h;
+    }
+
+    static long mix(long h, double v) {
+        return Long.rotateLeft(h ^ Double.doubleToLongBits(v) * 0x87C37B91114253D5L, 31) * 0x4CF5AD432745937FL;
+    }
+
+    /**
+     *
+     * @return number of points
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     *
+     * @param i index
+     * @return the point in slot i
+     */
+    public Point get(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("" + i);
+        }
+        return owners[i];
+    }
+
+    /**
+     * iterates through the points. like the other read methods, it is not
+     * synchronized with the simulation
+     *
+     * @return iterator
+     */
+    @Override
+    public Iterator<Point> iterator() {
+        return new Iterator<Point>() {
+            private int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return i < size;
+            }
+
+            @Override
+            public Point next() {
+                if (i >= size) {
+                    throw new NoSuchElementException();
+                }
+                return owners[i++];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Use Simulation.remove(Point)");
+            }
+        };
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+/**
+ * Classic 4th order Runge-Kutta.<br>
+ * Four attraction calculations per step. Very precise over short times, but
+ * it's not symplectic, so energy slowly drifts in long runs: prefer
+ * YoshidaIntegrator for long orbits.
+ *
+ * @author Federico
+ */
+public class RK4Integrator extends Integrator {
+
+    /**
+     * position and velocity at the beginning of the step
+     */
+    private double[] x0 = new double[0], y0 = new double[0], velX0 = new double[0], velY0 = new double[0];
+
+    /**
+     * weighted sum of the derivatives of the completed stages
+     */
+    private double[] sumX = new double[0], sumY = new double[0], sumVelX = new double[0], sumVelY = new double[0];
+
+    @Override
+    public int getStages() {
+        return 4;
+    }
+
+    @Override
+    protected void prepare(PointStore points) {
+        final int n = points.size();
+        if (x0.length < n) {
+            final int capacity = Math.max(n, x0.length * 2);
+            x0 = new double[capacity];
+            y0 = new double[capacity];
+            velX0 = new double[capacity];
+            velY0 = new double[capacity];
+            sumX = new double[capacity];
+            sumY = new double[capacity];
+            sumVelX = new double[capacity];
+            sumVelY = new double[capacity];
+        }
+    }
+
+    @Override
+    protected boolean hasBeforeForces(int stage) {
+        return stage == 0;
+    }
+
+    @Override
+    protected void beforeForces(PointStore points, int from, int to, int stage, double dt) {
+        System.arraycopy(points.x, from, x0, from, to - from);
+        System.arraycopy(points.y, from, y0, from, to - from);
+        System.arraycopy(points.velX, from, velX0, from, to - from);
+        System.arraycopy(points.velY, from, velY0, from, to - from);
+    }
+
+    @Override
+    protected void afterForces(PointStore points, int from, int to, int stage, double dt) {
+        final double[] x = points.x, y = points.y, velX = points.velX, velY = points.velY, ax = points.ax, ay = points.ay;
+        //derivatives of this stage: position changes by velocity, velocity by attraction
+        final double weight = stage == 0 || stage == 3 ? 1 : 2;
+        final double h = stage == 2 ? dt : dt / 2;
+        for (int i = from; i < to; i++) {
+            final double kx = velX[i], ky = velY[i], kvx = ax[i], kvy = ay[i];
+            if (stage == 0) {
+                sumX[i] = kx;
+                sumY[i] = ky;
+                sumVelX[i] = kvx;
+                sumVelY[i] = kvy;
+            } else {
+                sumX[i] += weight * kx;
+                sumY[i] += weight * ky;
+                sumVelX[i] += weight * kvx;
+                sumVelY[i] += weight * kvy;
+            }
+            if (stage == 3) {
+                x[i] = x0[i] + dt / 6 * sumX[i];
+                y[i] = y0[i] + dt / 6 * sumY[i];
+                velX[i] = velX0[i] + dt / 6 * sumVelX[i];
+                velY[i] = velY0[i] + dt / 6 * sumVelY[i];
+            } else {
+                //state for the next stage
+                x[i] = x0[i] + h * kx;
+                y[i] = y0[i] + h * ky;
+                velX[i] = velX0[i] + h * kvx;
+                velY[i] = velY0[i] + h * kvy;
+            }
+        }
+    }
+
+}
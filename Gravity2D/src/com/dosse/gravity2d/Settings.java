@@ -4,7 +4,9 @@
 package com.dosse.gravity2d;
 
 /**
- * Settings used in the gravity simulation
+ * Default settings used in the gravity simulation. Each Simulation can
+ * override G, the SPS limit and the thread priorities with a
+ * SimulationConfig.
  *
  * @author Federico
  */
@@ -21,44 +23,18 @@ public class Settings {
      * limits the number of simulations per second. invalid values = no limit
      */
     public static final long SPS_LIMIT = 100;
-    /**
-     * load balancing enabled
-     */
-    public static final boolean ENABLE_POINT_REDIST = true;
-    /**
-     * load balancing setting
-     */
-    public static final float POINT_REDIST_THRESHOLD = 1.1f;
-    /**
-     * load balancing setting
-     */
-    public static final int POINT_REDIST_MIN_POINTS = 10;
     /**
      * if set to true, threads will release the CPU using a 1ns sleep instead of
      * Thread.yield()
      */
     public static final boolean CPU_RELEASE_WORKAROUND = false;
     /**
-     * if set to true, slave threads will receive interrupt() calls from their
-     * master when they have something to do, resulting in reduced CPU usage and
-     * increased performance.<br>
-     * Only tested on MS Windows.
-     */
-    public static final boolean INTERRUPT_SLAVE_THREADS = true;
-    /**
-     * priority of slave threads while doing calculations
+     * priority of slave threads. waiting threads are parked, so they don't need
+     * a lower priority
      */
     public static final int SLAVE_PRIORITY_ACTIVE = Thread.NORM_PRIORITY + 1;
     /**
-     * priority of slave threads while waiting
-     */
-    public static final int SLAVE_PRIORITY_INACTIVE = Thread.MIN_PRIORITY;
-    /**
-     * priority of master thread while doing calculations
+     * priority of master thread
      */
     public static final int MASTER_PRIORITY_ACTIVE = Thread.NORM_PRIORITY + 2;
-    /**
-     * priority of master thread while waiting
-     */
-    public static final int MASTER_PRIORITY_INACTIVE = Thread.MIN_PRIORITY;
 }
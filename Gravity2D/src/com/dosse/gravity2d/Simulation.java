@@ -3,10 +3,12 @@
  */
 package com.dosse.gravity2d;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Simulates gravity attraction between all Points in a 2D environment.<br>
@@ -17,254 +19,287 @@ import java.util.List;
 public class Simulation extends Thread {
 
     /**
-     * this list contains ALL the points of the simulation
+     * this store contains ALL the points of the simulation
      */
-    protected final ArrayList<Point> points = new ArrayList<Point>();
+    protected final PointStore points = new PointStore();
 
     /**
-     * this list contains a bunch of couples (Point, Point): each couple
+     * this list contains a bunch of couples (index, index): each couple
      * represents 2 Points that are colliding.<br>
-     * it is filled by several SlaveThreads and used by handleCollisions() to
+     * it is filled by the collision detection phase and used by handleCollisions() to
      * join all colliding Points (even if there are more than 2 colliding
      * together)<br>
      */
-    private final ArrayList<Point[]> collisionCouples = new ArrayList<Point[]>();
+    private final ContactList collisionCouples = new ContactList();
+
+    /**
+     * collision couples found by each thread, before they're added to
+     * collisionCouples. reused every step
+     */
+    private final ThreadLocal<ContactList> threadCollisions = new ThreadLocal<ContactList>() {
+        @Override
+        protected ContactList initialValue() {
+            return new ContactList();
+        }
+    };
+
+    /**
+     * used by handleCollisions() to group colliding points: disjoint sets of
+     * point indexes, the indexes that appear in collisionCouples (each one
+     * once), and for each group (in the slot of its root) the total mass,
+     * mass-weighted sums and most massive point. colliding is a flag for each
+     * slot, always all false between steps
+     */
+    private final DisjointSets collisionGroups = new DisjointSets();
+    private int[] collidingPoints = new int[0];
+    private int nColliding;
+    private double[] groupMass = new double[0], groupX = new double[0], groupY = new double[0], groupVelX = new double[0], groupVelY = new double[0], groupDensity = new double[0];
+    private int[] groupHeaviest = new int[0];
+    private boolean[] colliding = new boolean[0];
+
+    /**
+     * points joined into other points by handleCollisions(), removed all at
+     * once at the end
+     */
+    private final ArrayList<Point> mergedPoints = new ArrayList<Point>();
+
+    /**
+     * spatial hash used to find collisions. rebuilt by
+     * the master before each collision detection
+     */
+    private final CollisionGrid collisionGrid = new CollisionGrid();
 
     /**
      * set to true to safely stop the thread, then wait until isAlive()==false
      */
-    public boolean stopASAP = false;
+    public volatile boolean stopASAP = false;
 
     /**
      * set to true to pause the simulation (it will pause after the current step
      * is completed)<br>
-     * add/remove operations are handled even while paused.
-     */
-    public boolean pause = false;
-
-    /**
-     * List of Slave threads
-     */
-    private SlaveThread[] slaves;
-
-    /**
-     * Slave threads do all the dirty work coming from the Master thread.<br>
-     * Each SlaveThread manages some of the Points in the simulation.<br>
-     * Communication with Master is done via the setState(int) and
-     * getThreadState() methods.<br>
-     * STATE_READY means that the thread is ready to receive orders. when a
-     * thread is started, it is in this state. add/remove operations can only be
-     * done when the thread is in this state<br>
-     * STATE_CALCULATE_GRAVITY generates attraction vectors for all assigned
-     * Points<br>
-     * STATE_APPLY_GRAVITY applies the calculated attraction vectors<br>
-     * STATE_DETECT_COLLISIONS runs collision detection for all assigned
-     * Points.<br>
-     * Note that the actual code of these operations is in the Point class.<br>
-     *
-     */
-    public class SlaveThread extends Thread {
-
-        /**
-         * List of Points assigned to this thread
-         */
-        private ArrayList<Point> threadPoints = new ArrayList<Point>();
-
-        /**
-         * STATE_READY means that the thread is ready to receive orders. when a
-         * thread is started, it is in this state<br>
-         * STATE_CALCULATE_GRAVITY generates attraction vectors for all assigned
-         * Points<br>
-         * STATE_APPLY_GRAVITY applies the calculated attraction vectors<br>
-         * STATE_DETECT_COLLISIONS runs collision detection for all assigned
-         * Points.<br>
-         */
-        public static final int STATE_READY = 0, STATE_CALCULATE_GRAVITY = 1, STATE_APPLY_GRAVITY = 2, STATE_DETECT_COLLISIONS = 3;
-        /**
-         * current state
-         */
-        private int state = STATE_READY;
-
-        /**
-         * get current state<br>
-         * STATE_READY means that the thread is ready to receive orders. when a
-         * thread is started, it is in this state<br>
-         * STATE_CALCULATE_GRAVITY generates attraction vectors for all assigned
-         * Points<br>
-         * STATE_APPLY_GRAVITY applies the calculated attraction vectors<br>
-         * STATE_DETECT_COLLISIONS runs collision detection for all assigned
-         * Points.<br>
-         *
-         * @return state
-         */
-        public int getThreadState() {
-            return state;
-        }
+     * add/remove operations are handled even while paused.<br>
+     * while paused, the master is parked, and only wakes up
+     * every PAUSE_POLL_INTERVAL nanoseconds to see if it has to resume.
+     */
+    public volatile boolean pause = false;
 
-        /**
-         * set new state<br/>
-         * can only be used in STATE_READY
-         *
-         * @param newState
-         */
-        public void setState(int newState) {
-            synchronized (threadPoints) {
-                if (state == STATE_READY) {
-                    state = newState;
-                    if (Settings.INTERRUPT_SLAVE_THREADS) {
-                        interrupt();
-                    }
-                } else {
-                    throw new IllegalStateException("Tried setting state while an operation was in progress");
-                }
-            }
-        }
+    /**
+     * how often the master checks if it has to resume, while paused
+     * (nanoseconds)
+     */
+    private static final long PAUSE_POLL_INTERVAL = 10000000L;
 
-        /**
-         * set to true to safely stop thread, then wait until isAlive()==false
-         */
-        public boolean stopASAP = false;
-
-        /**
-         * creates and starts a new SlaveThread, with no assigned points and in
-         * STATE_READY
-         */
-        public SlaveThread() {
-            start();
-        }
-
-        /**
-         * add a Point<br>
-         * can only be used in STATE_READY
-         *
-         * @param p Point to add
-         */
-        public void add(Point p) {
-            synchronized (threadPoints) {
-                if (state == STATE_READY) {
-                    threadPoints.add(p);
-                } else {
-                    throw new IllegalStateException("Tried adding a Point while doing calculations");
-                }
-            }
-        }
+    /**
+     * engine used to calculate attraction vectors. can be changed at any time
+     * with setForceEngine, the change is applied at the next step
+     */
+    private volatile ForceEngine engine;
 
-        /**
-         * remove a Point from thread list<br>
-         * can only be used in STATE_READY
-         *
-         * @param p Point to remove
-         */
-        public void remove(Point p) {
-            synchronized (threadPoints) {
-                if (state == STATE_READY) {
-                    threadPoints.remove(p);
-                } else {
-                    throw new IllegalStateException("Tried removing a Point while doing calculations");
-                }
-            }
-        }
+    /**
+     * engine used in the current step, so that all threads use the same one
+     */
+    private ForceEngine stepEngine;
 
-        /**
-         * removes all Points from thread list<br>
-         * can only be used in STATE_READY
-         *
-         */
-        public void reset() {
-            synchronized (threadPoints) {
-                if (state == STATE_READY) {
-                    threadPoints.clear();
-                } else {
-                    throw new IllegalStateException("Tried resetting while doing calculations");
-                }
-            }
-        }
+    /**
+     * whether engines should use the Vector API kernel, when it's available
+     */
+    private volatile boolean vectorKernel;
+
+    /**
+     * softening length and close encounter regularization, applied to the
+     * engine at each step
+     */
+    private volatile double softening;
+    private volatile boolean closeEncounters;
+
+    /**
+     * if true, the results don't depend on the number of threads or on their
+     * timing. see setDeterministic
+     */
+    private volatile boolean deterministic;
+
+    /**
+     * gravitational constant and SPS limit. can be changed at any time
+     */
+    private volatile double g;
+    private volatile long spsLimit;
+
+    /**
+     * takes checkpoints at the end of the steps, if not null
+     */
+    private volatile Checkpointer checkpointer;
+
+    /**
+     * records the trajectories at the end of the steps, if not null
+     */
+    private volatile TrajectoryRecorder recorder;
+
+    /**
+     * configuration the simulation was created with
+     */
+    private final SimulationConfig config;
+
+    /**
+     * integrator used to move the points, and timestep. can be changed at any
+     * time, the change is applied at the next step
+     */
+    private volatile Integrator integrator;
+    private volatile double timeStep;
+
+    /**
+     * integrator, timestep and stage used in the current step, so that all
+     * threads use the same ones
+     */
+    private Integrator stepIntegrator;
+    private double stepTimeStep;
+    private int stage;
+
+    /**
+     * points that need their attraction vector in the current stage, if not
+     * all of them
+     */
+    private int[] activePoints;
+
+    /**
+     * number of attraction vectors calculated in the last step
+     */
+    private volatile long forceEvaluations = 0;
+
+    /**
+     * snapshots for renderers and other readers: the last published one, and
+     * all the ones created so far. each step, the master writes the points in
+     * one that is not published and not used by readers, then publishes it.
+     * with 3 of them, there is always a free one unless the readers keep them
+     * for more than a step; if there isn't, a new one is created.<br>
+     * snapshotDirty is set when the points change, and is only used while
+     * holding the lock on points
+     */
+    private Snapshot[] snapshots = {new Snapshot(), new Snapshot(), new Snapshot()};
+    private volatile Snapshot snapshot = snapshots[0];
+    private boolean snapshotDirty = false;
+
+    /**
+     * bytes allocated by the master and the executor in the last step. should
+     * be 0 when no points are added
+     */
+    private volatile long allocatedBytes = -1;
 
-        /**
-         * Here lies the actual code of the Slave
-         */
+    /**
+     * simulated time, increased by the timestep after each step
+     */
+    private volatile double time = 0;
+
+    /**
+     * runs the phases of each step in parallel
+     */
+    private final StepExecutor executor;
+
+    /**
+     * set when the executor has been shut down. written while holding the
+     * lock on points
+     */
+    private volatile boolean shutDown = false;
+
+    /**
+     * the phases of a simulation step. each one is run by the executor on
+     * ranges of points
+     */
+    private final StepExecutor.RangeTask detectCollisions = new StepExecutor.RangeTask() {
         @Override
-        public void run() {
-            setName("Gravity - Slave Thread");
-            for (;;) {
-                if (state == STATE_READY) {
-                    //nothing to do
-                    setPriority(Settings.SLAVE_PRIORITY_INACTIVE);
-                    if (Settings.INTERRUPT_SLAVE_THREADS) {
-                        Utils.sleep(10, 0);
-                    } else {
-                        Utils.releaseCPU();
-                    }
-                    if (stopASAP) {
-                        return;
-                    }
-                }
-                if (state == STATE_CALCULATE_GRAVITY) {
-                    //calculate attraction vectors
-                    setPriority(Settings.SLAVE_PRIORITY_ACTIVE);
-                    for (Point p : threadPoints) {
-                        p.calculateAttraction(points);
-                    }
-                    state = STATE_READY;
-                }
-                if (state == STATE_APPLY_GRAVITY) {
-                    //apply attraction vectors
-                    setPriority(Settings.SLAVE_PRIORITY_ACTIVE);
-                    for (Point p : threadPoints) {
-                        p.applyAttractionVector();
-                    }
-                    state = STATE_READY;
-                }
-                if (state == STATE_DETECT_COLLISIONS) {
-                    //detect collisions
-                    setPriority(Settings.SLAVE_PRIORITY_ACTIVE);
-                    final LinkedList<Point[]> collisions = new LinkedList<Point[]>();
-                    for (Point p : threadPoints) {
-                        for (Point p2 : points) {
-                            if (p == p2) {
-                                continue;
-                            }
-                            if (p.collidesWith(p2)) {
-                                collisions.add(new Point[]{p, p2});
-                            }
-                        }
-                    }
-                    if (!collisions.isEmpty()) {
-                        //add all detected collision couples to main list. collisions are first stored in a temporary list so synchronization has to be done only once instead of once per couple
-                        synchronized (collisionCouples) {
-                            collisionCouples.addAll(collisions);
-                        }
-                    }
-                    state = STATE_READY;
+        public void run(int from, int to) {
+            final ContactList collisions = threadCollisions.get();
+            collisions.clear();
+            collisionGrid.findCollisions(points, from, to, collisions);
+            if (!collisions.isEmpty()) {
+                //add all detected collision couples to main list. collisions are first stored in a temporary list so synchronization has to be done only once instead of once per couple
+                synchronized (collisionCouples) {
+                    collisionCouples.addAll(collisions);
                 }
             }
         }
-    }
+    }, calculateGravity = new StepExecutor.RangeTask() {
+        @Override
+        public void run(int from, int to) {
+            stepEngine.calculateAttraction(points, from, to);
+        }
+    }, calculateGravityActive = new StepExecutor.RangeTask() {
+        @Override
+        public void run(int from, int to) {
+            stepEngine.calculateAttraction(points, activePoints, from, to);
+        }
+    }, beforeForces = new StepExecutor.RangeTask() {
+        @Override
+        public void run(int from, int to) {
+            stepIntegrator.beforeForces(points, from, to, stage, stepTimeStep);
+        }
+    }, afterForces = new StepExecutor.RangeTask() {
+        @Override
+        public void run(int from, int to) {
+            stepIntegrator.afterForces(points, from, to, stage, stepTimeStep);
+        }
+    };
+
+    /**
+     * estimated cost of collision detection for a single point (a few nearby
+     * cells)
+     */
+    private static final long COLLISION_COST = 16;
 
     /**
-     * Create a new simulation. Use start() to actually start it<br>
-     * By default, it uses nCores slave threads
+     * Create a new simulation with the default configuration. Use start() to
+     * actually start it<br>
+     * By default, it uses a ForkJoinExecutor with one thread per core
      */
     public Simulation() {
-        int nCores = Runtime.getRuntime().availableProcessors();
-        int nThreads = nCores * 2;//may seem stupid, but it slightly improves performance
-        slaves = new SlaveThread[nThreads];
-        for (int i = 0; i < nThreads; i++) {
-            slaves[i] = new SlaveThread();
-        }
+        this(SimulationConfig.DEFAULT);
     }
 
     /**
-     * waits for all slave threads to be in STATE_READY
+     * Create a new simulation. Use start() to actually start it
+     *
+     * @param config configuration: executor, engine, integrator, G, and so on
      */
-    private void sync() {
-        setPriority(Settings.MASTER_PRIORITY_INACTIVE);
-        for (SlaveThread t : slaves) {
-            while (t.getThreadState() != SlaveThread.STATE_READY) {
-                Utils.releaseCPU();
-            }
+    public Simulation(SimulationConfig config) {
+        this(config.createExecutor(), config);
+    }
+
+    /**
+     * Create a new simulation with the default configuration. Use start() to
+     * actually start it
+     *
+     * @param executor executor used to run the simulation. it will be shut
+     * down when the simulation stops
+     */
+    public Simulation(StepExecutor executor) {
+        this(executor, SimulationConfig.DEFAULT);
+    }
+
+    /**
+     * Create a new simulation. Use start() to actually start it
+     *
+     * @param executor executor used to run the simulation, instead of the one
+     * in the configuration. it will be shut down when the simulation stops
+     * @param config configuration
+     */
+    public Simulation(StepExecutor executor, SimulationConfig config) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor can't be null");
         }
-        setPriority(Settings.MASTER_PRIORITY_ACTIVE);
+        if (config == null) {
+            throw new IllegalArgumentException("Configuration can't be null");
+        }
+        this.executor = executor;
+        this.config = config;
+        engine = config.createEngine();
+        integrator = config.createIntegrator();
+        timeStep = config.getTimeStep();
+        vectorKernel = config.isVectorKernel();
+        softening = config.getSoftening();
+        closeEncounters = config.isCloseEncounters();
+        deterministic = config.isDeterministic();
+        g = config.getG();
+        spsLimit = config.getSpsLimit();
+        setPriority(config.getMasterPriority());
     }
 
     /**
@@ -287,220 +322,329 @@ public class Simulation extends Thread {
     @Override
     public void run() {
         setName("Gravity - Master Thread");
-        for (;;) {
-            long timestamp = System.nanoTime();
-            if (stopASAP) {
-                for (SlaveThread t : slaves) {
-                    t.stopASAP = true;
-                    while (t.isAlive()) {
-                        Utils.releaseCPU();
+        try {
+            for (;;) {
+                long timestamp = System.nanoTime();
+                if (stopASAP || shutDown) {
+                    return;
+                }
+                if (!doStep(!pause)) {
+                    //wait without holding the lock. add/remove/reset wake the master up
+                    LockSupport.parkNanos(this, PAUSE_POLL_INTERVAL);
+                    continue;
+                }
+                onStepComplete(System.nanoTime() - timestamp); //step completed. callback method
+                //apply SPS limit
+                final long limit = spsLimit;
+                if (limit >= 1) {
+                    final long minT = 1000000000L / limit;
+                    final long tDiff = System.nanoTime() - timestamp;
+                    if (tDiff < minT) {
+                        Utils.sleep(minT - tDiff);
                     }
                 }
-                return;
+                //update SPS
+                SPS = (int) (1000000000L / (System.nanoTime() - timestamp));
             }
-            boolean doPointRedist = false;
-            synchronized (points) {
-                //do queued add/remove operations
-                synchronized (pendingAdds) {
-                    if (!pendingAdds.isEmpty()) {
-                        for (Point p : pendingAdds) {
-                            addPoint(p);
-                        }
-                        pendingAdds.clear();
-                        doPointRedist = true;
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * runs n simulation steps on the calling thread (and the executor), then
+     * returns. there are no sleeps: the SPS limit and pause don't apply, and
+     * onStepComplete is called after each step, as usual.<br>
+     * meant for simulations that are driven by the caller (game loops, tests,
+     * batch runs) and never started. if the master thread is running, the
+     * steps are interleaved with its own.<br>
+     * queued add/remove operations are done before each step.
+     *
+     * @param n number of steps &gt;=0
+     * @throws IllegalStateException if the simulation has been shut down
+     */
+    public void step(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("Number of steps must be >=0");
+        }
+        for (int i = 0; i < n; i++) {
+            final long timestamp = System.nanoTime();
+            doStep(true);
+            final long t = System.nanoTime() - timestamp;
+            onStepComplete(t);
+            SPS = (int) (1000000000L / Math.max(1, t));
+        }
+    }
+
+    /**
+     * releases the threads of the executor. a started simulation does it by
+     * itself when it stops; call this when a simulation driven with step() is
+     * not needed anymore. it can't be used after this
+     */
+    public void shutdown() {
+        synchronized (points) {
+            if (!shutDown) {
+                shutDown = true;
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * does the queued add/remove operations and, if advance is true, a
+     * simulation step, then publishes a snapshot if needed and measures the
+     * allocated memory. used by the master thread and by step()
+     *
+     * @param advance true to run a step, false to only do the add/remove
+     * operations (when paused)
+     * @return advance
+     */
+    private boolean doStep(boolean advance) {
+        final Thread current = Thread.currentThread();
+        //measure the executor first and the current thread last, so the measurements are not included
+        final long executorBytes = executor.getAllocatedBytes(), masterBytes = Utils.getAllocatedBytes(current);
+        synchronized (points) {
+            if (shutDown) {
+                throw new IllegalStateException("Simulation has been shut down");
+            }
+            //do queued add/remove operations
+            synchronized (pendingAdds) {
+                if (!pendingAdds.isEmpty()) {
+                    for (int i = 0; i < pendingAdds.size(); i++) {
+                        addPoint(pendingAdds.get(i));
                     }
+                    snapshotDirty = true;
+                    pendingAdds.clear();
                 }
-                synchronized (pendingRemovals) {
-                    if (!pendingRemovals.isEmpty()) {
-                        for (Point p : pendingRemovals) {
-                            removePoint(p);
-                            p.onDestroy();
-                        }
-                        pendingRemovals.clear();
-                        doPointRedist = true;
+            }
+            synchronized (pendingRemovals) {
+                if (!pendingRemovals.isEmpty()) {
+                    points.removeAll(pendingRemovals);
+                    snapshotDirty = true;
+                    for (int i = 0; i < pendingRemovals.size(); i++) {
+                        pendingRemovals.get(i).onDestroy();
                     }
+                    pendingRemovals.clear();
                 }
-                if (pause) {
-                    Utils.releaseCPU();
-                    continue;
-                }
+            }
+            if (advance) {
                 //see if some points are colliding
                 collisionCouples.clear();
-                for (SlaveThread t : slaves) {
-                    t.setState(SlaveThread.STATE_DETECT_COLLISIONS);
-                }
-                sync();
-                if (!collisionCouples.isEmpty()) {
-                    doPointRedist = true;
+                collisionGrid.build(points);
+                executor.run(points.size(), COLLISION_COST, detectCollisions);
+                if (deterministic) {
+                    //the threads add their couples in the order they finish. the order decides which point a group is merged into, and the order of the sums
+                    collisionCouples.sort();
                 }
                 //join colliding points
                 handleCollisions();
-                //calculate attraction vectors
-                for (SlaveThread t : slaves) {
-                    t.setState(SlaveThread.STATE_CALCULATE_GRAVITY);
+                //move the points, calculating attraction vectors once per stage
+                final ForceEngine e = engine;
+                final Integrator in = integrator;
+                //integrators may reuse the attraction vectors of the previous step, unless they were calculated differently
+                if (configureEngine(e) | e != stepEngine | in != stepIntegrator) {
+                    points.invalidate();
+                }
+                stepEngine = e;
+                stepIntegrator = in;
+                stepTimeStep = timeStep;
+                stepIntegrator.prepare(points);
+                long evaluations = 0;
+                for (stage = 0; stage < stepIntegrator.getStages(); stage++) {
+                    stepIntegrator.prepareStage(points, stage, stepTimeStep);
+                    final int nActive = stepIntegrator.getActiveCount();
+                    if (nActive == 0) {
+                        continue; //nothing to do in this stage
+                    }
+                    if (stepIntegrator.hasBeforeForces(stage)) {
+                        executor.run(points.size(), 1, beforeForces);
+                    }
+                    stepEngine.prepare(points, executor);
+                    if (nActive < 0) {
+                        if (!stepEngine.calculateAllAttractions(points, executor)) {
+                            executor.run(points.size(), stepEngine.getCostPerPoint(points), calculateGravity);
+                        }
+                        evaluations += points.size();
+                    } else {
+                        activePoints = stepIntegrator.getActivePoints();
+                        executor.run(nActive, stepEngine.getCostPerPoint(points), calculateGravityActive);
+                        evaluations += nActive;
+                    }
+                    executor.run(points.size(), 1, afterForces);
                 }
-                sync();
-                //apply attraction vectors
-                for (SlaveThread t : slaves) {
-                    t.setState(SlaveThread.STATE_APPLY_GRAVITY);
+                forceEvaluations = evaluations;
+                time += stepTimeStep;
+                snapshotDirty = true;
+                final Checkpointer c = checkpointer;
+                if (c != null) {
+                    c.capture(points, time);
                 }
-                sync();
-                //if point redist is enabled, and redist may be necessary, balances load by redistributes points across threads to keep them at about the same amount of points
-                if (Settings.ENABLE_POINT_REDIST && doPointRedist) {
-                    pointRedist();
+                final TrajectoryRecorder r = recorder;
+                if (r != null) {
+                    r.capture(points, time);
                 }
             }
-            onStepComplete(System.nanoTime() - timestamp); //step completed. callback method
-            //apply SPS limit
-            if (Settings.SPS_LIMIT >= 1) {
-                final long minT = 1000000000L / Settings.SPS_LIMIT;
-                final long tDiff = System.nanoTime() - timestamp;
-                if (tDiff < minT) {
-                    Utils.sleep(minT - tDiff);
-                }
+            if (snapshotDirty) {
+                publishSnapshot();
+                snapshotDirty = false;
             }
-            //update SPS
-            SPS = (int) (1000000000L / (System.nanoTime() - timestamp));
         }
+        final long masterBytes2 = Utils.getAllocatedBytes(current), executorBytes2 = executor.getAllocatedBytes();
+        if (masterBytes < 0 || masterBytes2 < 0) {
+            allocatedBytes = -1;
+        } else if (executorBytes < 0 || executorBytes2 < 0) {
+            allocatedBytes = masterBytes2 - masterBytes;
+        } else {
+            allocatedBytes = masterBytes2 - masterBytes + executorBytes2 - executorBytes;
+        }
+        return advance;
     }
 
     /**
      * this method analyzes the list of collision couples to detects collsion
      * groups and joins them. a collision group is a bunch of points that are
      * currently colliding (2+ points, of course).<br>
-     * detection is done in this way:<br>
-     * -take first collision couple and remove it from list<br>
-     * -add those 2 points to collision group<br>
-     * -for each collision couple, if one of the points in the couple is already
-     * in the collision group, add the other one to the collision group and
-     * remove the couple from the list<br>
-     * -repeat until no new points are added<br>
+     * detection is done with disjoint sets of point indexes: the 2 points of
+     * each collision couple are put in the same set, so at the end each set
+     * with more than one point is a collision group.<br>
      * after detection, the points are joined:<br>
-     * -all the points in the collision group are removed from all lists<br>
      * -coordinates, mass, velocity and density for the joined point are
      * calculated and assigned to the most massive point in the collision
      * group<br>
-     * -the point is added back<br>
-     * detection and joining is repeated until the list of collision couples is
-     * empty.<br>
-     * this may seem complex but it is not run very often, and no, it cannot be
-     * done with multiple threads
+     * -all the other points in the collision group are removed, all at once
+     * at the end. each removal moves the last point into the free slot, so it
+     * costs the same no matter how many points there are<br>
+     * everything is linear in the number of collision couples, so even a whole
+     * asteroid belt collapsing into a planet in a single step is handled
+     * quickly. no, it cannot be done with multiple threads
      *
      */
     private void handleCollisions() {
-        while (!collisionCouples.isEmpty()) {
-            int nElements = 0;
-            final ArrayList<Point> currentCollisionGroup = new ArrayList<Point>();
-            final Point[] firstCouple = collisionCouples.get(0);
-            collisionCouples.remove(0);
-            currentCollisionGroup.add(firstCouple[0]);
-            currentCollisionGroup.add(firstCouple[1]);
-            do {
-                nElements = currentCollisionGroup.size();
-                for (int i = 0; i < currentCollisionGroup.size(); i++) {
-                    final Point p = currentCollisionGroup.get(i);
-                    for (int j = 0; j < collisionCouples.size(); j++) {
-                        final Point[] couple = collisionCouples.get(j);
-                        if (couple[0] == p) {
-                            currentCollisionGroup.add(couple[1]);
-                            collisionCouples.remove(j--);
-                        } else if (couple[1] == p) {
-                            currentCollisionGroup.add(couple[0]);
-                            collisionCouples.remove(j--);
-                        }
-                    }
-                }
-            } while (nElements != currentCollisionGroup.size() && nElements != 0);
-            for (int i = 0; i < currentCollisionGroup.size(); i++) {
-                for (int j = 0; j < currentCollisionGroup.size(); j++) {
-                    if (i != j && currentCollisionGroup.get(i) == currentCollisionGroup.get(j)) {
-                        currentCollisionGroup.remove(j--);
-                    }
-                }
+        if (collisionCouples.isEmpty()) {
+            return;
+        }
+        final int n = points.size();
+        collisionGroups.ensureCapacity(n);
+        if (groupMass.length < n) {
+            final int capacity = Math.max(n, groupMass.length * 2);
+            groupMass = new double[capacity];
+            groupX = new double[capacity];
+            groupY = new double[capacity];
+            groupVelX = new double[capacity];
+            groupVelY = new double[capacity];
+            groupDensity = new double[capacity];
+            groupHeaviest = new int[capacity];
+            colliding = new boolean[capacity];
+            collidingPoints = new int[capacity];
+        }
+        //list each colliding point once, and join the groups
+        nColliding = 0;
+        for (int k = 0; k < collisionCouples.size(); k++) {
+            final int i = collisionCouples.first(k), j = collisionCouples.second(k);
+            if (!colliding[i]) {
+                colliding[i] = true;
+                collidingPoints[nColliding++] = i;
+                collisionGroups.add(i);
             }
-            double totalMass = 0, newX = 0, newY = 0, newVX = 0, newVY = 0, newDensity = 0;
-            Point newP = null;
-            for (Point p : currentCollisionGroup) {
-                totalMass += p.getMass();
-                if (newP == null || p.getMass() > newP.getMass()) {
-                    newP = p;
-                }
+            if (!colliding[j]) {
+                colliding[j] = true;
+                collidingPoints[nColliding++] = j;
+                collisionGroups.add(j);
             }
-            for (Point p : currentCollisionGroup) {
-                final double f = p.getMass() / totalMass;
-                newX += p.getX() * f;
-                newY += p.getY() * f;
-                newVX += p.getVelX() * f;
-                newVY += p.getVelY() * f;
-                newDensity += p.getDensity() * f;
+            collisionGroups.union(i, j);
+        }
+        collisionCouples.clear();
+        for (int k = 0; k < nColliding; k++) {
+            colliding[collidingPoints[k]] = false;
+        }
+        //total mass, mass-weighted sums and most massive point of each group, stored in the slot of its root. colliding[r] is now true for the groups already started
+        final double[] x = points.x, y = points.y, velX = points.velX, velY = points.velY, mass = points.mass, density = points.density;
+        for (int k = 0; k < nColliding; k++) {
+            final int i = collidingPoints[k], r = collisionGroups.find(i);
+            if (!colliding[r]) {
+                colliding[r] = true;
+                groupMass[r] = 0;
+                groupX[r] = 0;
+                groupY[r] = 0;
+                groupVelX[r] = 0;
+                groupVelY[r] = 0;
+                groupDensity[r] = 0;
+                groupHeaviest[r] = i;
             }
-            newP.setX(newX);
-            newP.setY(newY);
-            newP.setVelX(newVX);
-            newP.setVelY(newVY);
-            newP.setMass(totalMass);
-            newP.setDensity(newDensity);
-            for (Point p : currentCollisionGroup) {
-                removePoint(p);
-                if (p != newP) {
-                    p.onDestroy(); //onDestroy is a callback method
-                }
+            final double m = mass[i];
+            groupMass[r] += m;
+            groupX[r] += x[i] * m;
+            groupY[r] += y[i] * m;
+            groupVelX[r] += velX[i] * m;
+            groupVelY[r] += velY[i] * m;
+            groupDensity[r] += density[i] * m;
+            if (m > mass[groupHeaviest[r]]) {
+                groupHeaviest[r] = i;
             }
-            addPoint(newP);
         }
+        //assign the joined point to the most massive point of each group, and mark the others for removal
+        for (int k = 0; k < nColliding; k++) {
+            final int i = collidingPoints[k], r = collisionGroups.find(i);
+            colliding[i] = false;
+            final int h = groupHeaviest[r];
+            if (i != h) {
+                mergedPoints.add(points.owners[i]);
+            }
+            if (i == r) {
+                final double totalMass = groupMass[r];
+                final Point newP = points.owners[h];
+                newP.setX(groupX[r] / totalMass);
+                newP.setY(groupY[r] / totalMass);
+                newP.setVelX(groupVelX[r] / totalMass);
+                newP.setVelY(groupVelY[r] / totalMass);
+                newP.setMass(totalMass);
+                newP.setDensity(groupDensity[r] / totalMass);
+            }
+        }
+        //remove the joined points
+        points.removeAll(mergedPoints);
+        for (int k = 0; k < mergedPoints.size(); k++) {
+            mergedPoints.get(k).onDestroy(); //onDestroy is a callback method
+        }
+        mergedPoints.clear();
     }
 
     /**
-     * this method balances load between slave threads<br>
-     * balancing is done by redistributing points across threads to keep them at
-     * about the same amount of points.
+     * copies the points in a free snapshot and publishes it. only called by
+     * the master, while holding the lock on points
      */
-    private void pointRedist() {
-        if (points.size() > slaves.length * Settings.POINT_REDIST_MIN_POINTS) {
-            int min = slaves[0].threadPoints.size(), max = slaves[0].threadPoints.size();
-            for (int i = 1; i < slaves.length; i++) {
-                final int s = slaves[i].threadPoints.size();
-                if (s < min) {
-                    min = s;
-                }
-                if (s > max) {
-                    max = s;
-                }
-            }
-            if (min == 0 || (float) max / (float) min >= Settings.POINT_REDIST_THRESHOLD) {
-                for (SlaveThread t : slaves) {
-                    t.threadPoints.clear();
-                }
-                int i = 0;
-                for (Point p : points) {
-                    slaves[i++ % slaves.length].threadPoints.add(p);
-                }
+    private void publishSnapshot() {
+        final Snapshot current = snapshot;
+        Snapshot s = null;
+        for (Snapshot c : snapshots) {
+            if (c != current && c.readers.compareAndSet(0, -1)) {
+                s = c;
+                break;
             }
         }
+        if (s == null) {
+            //the readers are holding all of them
+            s = new Snapshot();
+            s.readers.set(-1);
+            snapshots = Arrays.copyOf(snapshots, snapshots.length + 1);
+            snapshots[snapshots.length - 1] = s;
+        }
+        s.copy(points, time);
+        s.readers.set(0);
+        snapshot = s;
     }
 
     /**
-     * add point and assign it to a slave. this method is NOT thread safe and is
-     * only used internally! use add(Point) instead
+     * add point to the store. this method is NOT thread safe and is only used
+     * internally! use add(Point) instead
      *
      * @param p point to add
      */
     private void addPoint(Point p) {
-        points.add(p);
-        slaves[Settings.ENABLE_POINT_REDIST ? 0 : (int) (slaves.length * Math.random())].add(p);
-    }
-
-    /**
-     * remove point this method is NOT thread safe and is only used internally!
-     * use remove(Point) instead
-     *
-     * @param p point to remove
-     */
-    private void removePoint(Point p) {
-        points.remove(p);
-        for (SlaveThread t : slaves) {
-            t.remove(p);
+        if (p.store != null) {
+            return; //already in a simulation
         }
+        points.add(p);
     }
 
     /**
@@ -509,9 +653,13 @@ public class Simulation extends Thread {
      * @param p point to add
      */
     public void add(Point p) {
+        if (p.store != null) {
+            throw new IllegalArgumentException("Point is already in a simulation");
+        }
         synchronized (pendingAdds) {
             pendingAdds.add(p);
         }
+        LockSupport.unpark(this);
     }
 
     /**
@@ -523,10 +671,11 @@ public class Simulation extends Thread {
         synchronized (pendingRemovals) {
             pendingRemovals.add(p);
         }
+        LockSupport.unpark(this);
     }
 
     /**
-     * removes all points, clears all lists and runs GC
+     * removes all points, clears all lists and resets the simulated time
      */
     public void reset() {
         synchronized (pendingAdds) {
@@ -537,10 +686,30 @@ public class Simulation extends Thread {
         }
         synchronized (points) {
             points.clear();
-            for (SlaveThread t : slaves) {
-                t.threadPoints.clear();
-            }
+            time = 0;
+            snapshotDirty = true;
+        }
+        LockSupport.unpark(this);
+    }
 
+    /**
+     * gets the positions, radiuses and densities of the points at the end of
+     * the last step, without waiting for the simulation. the snapshot doesn't
+     * change until it's released, so it must be released as soon as
+     * possible:<br>
+     * <code>Snapshot s=sim.acquireSnapshot();<br>
+     * try{ ... }finally{ s.release(); }</code>
+     *
+     * @return snapshot, never null
+     */
+    public Snapshot acquireSnapshot() {
+        for (;;) {
+            final Snapshot s = snapshot;
+            final int r = s.readers.get();
+            //r<0 means that it's being rewritten, so a newer one has been published already
+            if (r >= 0 && s.readers.compareAndSet(r, r + 1)) {
+                return s;
+            }
         }
     }
 
@@ -552,7 +721,11 @@ public class Simulation extends Thread {
      */
     public List<Point> getPoints() {
         synchronized (points) {
-            return (List<Point>) (points.clone());
+            final ArrayList<Point> list = new ArrayList<Point>(points.size());
+            for (Point p : points) {
+                list.add(p);
+            }
+            return list;
         }
     }
 
@@ -583,8 +756,424 @@ public class Simulation extends Thread {
         final boolean paused = pause;
         pause = true;
         reset();
-        pendingAdds.addAll(Arrays.asList(state));
+        synchronized (pendingAdds) {
+            pendingAdds.addAll(Arrays.asList(state));
+        }
         pause = paused;
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * saves the points and the simulated time to a file, in a compact binary
+     * format that is written straight from the arrays of the points (see
+     * StateFile). fast even with millions of points.<br>
+     * the simulation waits while the file is written.
+     *
+     * @param f file, overwritten if it exists
+     * @param view up to 4 values for the application, saved with the state
+     * (for instance, the position of the camera). can be null
+     * @throws IOException if the file can't be written
+     */
+    public void saveState(File f, double[] view) throws IOException {
+        final StateFile sf = new StateFile();
+        if (view != null) {
+            System.arraycopy(view, 0, sf.view, 0, Math.min(view.length, StateFile.VIEW_SIZE));
+        }
+        synchronized (points) {
+            sf.time = time;
+            sf.write(f, points);
+        }
+    }
+
+    /**
+     * replaces the points and the simulated time with the ones saved in a
+     * file with saveState(File, double[]). old .gds files (serialized Point[]
+     * followed by the camera) can be loaded too.<br>
+     * unlike loadState(Point[]), the state is loaded immediately, and queued
+     * add/remove operations are discarded.
+     *
+     * @param f file
+     * @return the 4 application values saved with the state (the camera, for
+     * an old .gds file)
+     * @throws IOException if the file can't be read or it's not valid. the
+     * simulation is then empty
+     */
+    public double[] loadState(File f) throws IOException {
+        final StateFile sf = new StateFile();
+        synchronized (pendingAdds) {
+            pendingAdds.clear();
+        }
+        synchronized (pendingRemovals) {
+            pendingRemovals.clear();
+        }
+        synchronized (points) {
+            try {
+                sf.read(f, points);
+                time = sf.time;
+            } catch (IOException ex) {
+                points.clear();
+                time = 0;
+                throw ex;
+            } finally {
+                snapshotDirty = true;
+            }
+        }
+        LockSupport.unpark(this);
+        return sf.view;
+    }
+
+    /**
+     *
+     * @return the checkpointer attached to this simulation, or null
+     */
+    public Checkpointer getCheckpointer() {
+        return checkpointer;
+    }
+
+    /**
+     * attaches a checkpointer, that saves the points in the background
+     * periodically. a checkpointer must not be attached to 2 simulations at
+     * the same time. it's not closed when the simulation stops
+     *
+     * @param checkpointer checkpointer, or null to stop taking checkpoints
+     */
+    public void setCheckpointer(Checkpointer checkpointer) {
+        this.checkpointer = checkpointer;
+    }
+
+    /**
+     *
+     * @return the trajectory recorder attached to this simulation, or null
+     */
+    public TrajectoryRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * attaches a trajectory recorder, that records the points at the end of
+     * the steps. a recorder must not be attached to 2 simulations at the same
+     * time. it's not closed when the simulation stops
+     *
+     * @param recorder recorder, or null to stop recording
+     */
+    public void setRecorder(TrajectoryRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     *
+     * @return engine used to calculate attraction vectors
+     */
+    public ForceEngine getForceEngine() {
+        return engine;
+    }
+
+    /**
+     * sets the engine used to calculate attraction vectors, for instance a
+     * BarnesHutEngine for large simulations, or a DirectSumEngine for exact
+     * results (default).<br>
+     * the new engine will be used from the next step.
+     *
+     * @param engine engine, not shared with other simulations
+     */
+    public void setForceEngine(ForceEngine engine) {
+        if (engine == null) {
+            throw new IllegalArgumentException("Engine can't be null");
+        }
+        this.engine = engine;
+    }
+
+    /**
+     *
+     * @return true if the Vector API kernel can be used: the program must be
+     * compiled with Java 17 or newer and started with --add-modules
+     * jdk.incubator.vector
+     */
+    public static boolean isVectorKernelAvailable() {
+        return PairKernel.VECTOR != null;
+    }
+
+    /**
+     *
+     * @return true if engines use the Vector API kernel (when it's available)
+     */
+    public boolean isVectorKernelEnabled() {
+        return vectorKernel;
+    }
+
+    /**
+     * chooses whether engines that calculate couples of points directly (like
+     * the DirectSumEngine) use the Vector API kernel, which calculates several
+     * couples at once, or the scalar one. the results differ only by rounding.
+     * <br>
+     * enabled by default, it has no effect if isVectorKernelAvailable() is
+     * false. the change is applied at the next step.
+     *
+     * @param enabled true to use the Vector API kernel when available
+     */
+    public void setVectorKernelEnabled(boolean enabled) {
+        vectorKernel = enabled;
+    }
+
+    /**
+     * applies the kernel, softening and close encounter options to an engine
+     *
+     * @param e engine
+     * @return true if some option changed, so the attraction vectors that
+     * the engine calculated before are out of date
+     */
+    private boolean configureEngine(ForceEngine e) {
+        //the number of couples calculated at once by the vector kernel depends on the CPU, and changes the order of the sums
+        final boolean det = deterministic, close = closeEncounters;
+        final PairKernel kernel = vectorKernel && !det && PairKernel.VECTOR != null ? PairKernel.VECTOR : PairKernel.SCALAR;
+        final double newG = g, soft2 = softening * softening;
+        final boolean changed = e.pairKernel != kernel || e.deterministic != det || e.g != newG || e.softening2 != soft2 || e.closeEncounters != close;
+        e.pairKernel = kernel;
+        e.deterministic = det;
+        e.g = newG;
+        e.softening2 = soft2;
+        e.closeEncounters = close;
+        return changed;
+    }
+
+    /**
+     *
+     * @return true if the results don't depend on the number of threads
+     */
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    /**
+     * chooses whether the results must be exactly the same (bit for bit)
+     * however many threads there are and whatever order they finish in, so
+     * that runs on different machines, or before and after an optimization,
+     * can be compared with getStateChecksum. in deterministic mode:<br>
+     * -collision couples are sorted before they're joined, so the groups and
+     * their sums don't depend on which thread found them first<br>
+     * -engines that sum the partial results of several threads (the
+     * DirectSumEngine) split the work in a fixed number of parts and sum them
+     * in order<br>
+     * -the Vector API kernel is not used, since how many couples it
+     * calculates at once depends on the CPU<br>
+     * it's a little slower. the results still depend on the engine, the
+     * integrator and the other settings.<br>
+     * disabled by default. the change is applied at the next step.
+     *
+     * @param enabled true for deterministic results
+     */
+    public void setDeterministic(boolean enabled) {
+        deterministic = enabled;
+    }
+
+    /**
+     * a checksum of the state of the simulation: the bits of the position,
+     * velocity, mass and density of every point, in order, and the simulated
+     * time. in deterministic mode, the same points simulated for the same
+     * steps give the same checksum with any number of threads.<br>
+     * waits for the current step to complete.
+     *
+     * @return checksum
+     */
+    public long getStateChecksum() {
+        synchronized (points) {
+            return PointStore.mix(points.checksum(), time);
+        }
+    }
+
+    /**
+     *
+     * @return configuration the simulation was created with. the values
+     * changed later with the setters are not included
+     */
+    public SimulationConfig getConfig() {
+        return config;
+    }
+
+    /**
+     *
+     * @return gravitational constant
+     */
+    public double getG() {
+        return g;
+    }
+
+    /**
+     * sets the gravitational constant (see Settings.G). the change is applied
+     * at the next step
+     *
+     * @param g gravitational constant
+     */
+    public void setG(double g) {
+        if (Double.isNaN(g) || Double.isInfinite(g)) {
+            throw new IllegalArgumentException("G must be a number");
+        }
+        this.g = g;
+    }
+
+    /**
+     *
+     * @return maximum simulations per second, 0 = no limit
+     */
+    public long getSPSLimit() {
+        return spsLimit;
+    }
+
+    /**
+     * limits the number of simulations per second
+     *
+     * @param spsLimit maximum simulations per second, 0 = no limit
+     */
+    public void setSPSLimit(long spsLimit) {
+        this.spsLimit = Math.max(spsLimit, 0);
+    }
+
+    /**
+     *
+     * @return softening length
+     */
+    public double getSoftening() {
+        return softening;
+    }
+
+    /**
+     * sets the softening length (Plummer softening): the attraction between
+     * 2 points at distance d is calculated as if they were at distance
+     * sqrt(d^2+softening^2), so it never becomes infinite, and points that
+     * pass very close to each other aren't thrown away. a softening about the
+     * size of the smallest points allows larger timesteps in dense
+     * clusters.<br>
+     * the default is 0 (exact gravity). the change is applied at the next
+     * step.
+     *
+     * @param softening softening length &gt;=0
+     */
+    public void setSoftening(double softening) {
+        if (softening < 0 || Double.isNaN(softening) || Double.isInfinite(softening)) {
+            throw new IllegalArgumentException("Softening must be >=0");
+        }
+        this.softening = softening;
+    }
+
+    /**
+     *
+     * @return true if close encounters are regularized
+     */
+    public boolean isCloseEncounterRegularization() {
+        return closeEncounters;
+    }
+
+    /**
+     * chooses whether close encounters are regularized: when 2 points overlap
+     * (they're closer than the sum of their radiuses), they attract each other
+     * as if they were touching, like the inside of a solid body, instead of
+     * more and more the closer they get. this avoids the huge attractions
+     * between points that go through each other during a step, before the
+     * collision is detected. it can be combined with setSoftening.<br>
+     * disabled by default. the change is applied at the next step.
+     *
+     * @param enabled true to regularize close encounters
+     */
+    public void setCloseEncounterRegularization(boolean enabled) {
+        closeEncounters = enabled;
+    }
+
+    /**
+     *
+     * @return integrator used to move the points
+     */
+    public Integrator getIntegrator() {
+        return integrator;
+    }
+
+    /**
+     * sets the integrator used to move the points, for instance a
+     * LeapfrogIntegrator or a YoshidaIntegrator to keep orbits stable with
+     * larger timesteps, or a BlockTimestepIntegrator when only a few points
+     * need small timesteps. the default is an EulerIntegrator.<br>
+     * the new integrator will be used from the next step.
+     *
+     * @param integrator integrator, not shared with other simulations
+     */
+    public void setIntegrator(Integrator integrator) {
+        if (integrator == null) {
+            throw new IllegalArgumentException("Integrator can't be null");
+        }
+        this.integrator = integrator;
+    }
+
+    /**
+     *
+     * @return simulated time of each step
+     */
+    public double getTimeStep() {
+        return timeStep;
+    }
+
+    /**
+     * sets the simulated time of each step. like G, it's a speed/precision
+     * knob: larger steps simulate more time per step, but are less precise.
+     * the default is 1.<br>
+     * the new value will be used from the next step.
+     *
+     * @param timeStep timestep &gt;0
+     */
+    public void setTimeStep(double timeStep) {
+        if (!(timeStep > 0) || Double.isInfinite(timeStep)) {
+            throw new IllegalArgumentException("Timestep must be >0");
+        }
+        this.timeStep = timeStep;
+    }
+
+    /**
+     * useful to see how much work block timesteps save
+     *
+     * @return number of attraction vectors calculated in the last step
+     */
+    public long getForceEvaluations() {
+        return forceEvaluations;
+    }
+
+    /**
+     * useful to check that the simulation is not creating garbage: in a step
+     * where no points are added, it should be 0 (collisions and removals
+     * don't allocate memory once the buffers are large enough).<br>
+     * measured with the ThreadMXBean, on the master thread and on the threads
+     * of the executor (only if the executor can tell which ones they are)
+     *
+     * @return bytes allocated during the last step, -1 if the JVM can't
+     * measure it
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     *
+     * @return simulated time since the simulation was created or reset
+     */
+    public double getSimulatedTime() {
+        return time;
+    }
+
+    /**
+     * compares the current engine to the exact direct-sum, on the current
+     * points.<br>
+     * waits for the current step to complete, and slows down the simulation
+     * if called too often.
+     *
+     * @param nSamples number of points to check. 0 or less = all of them
+     * @return {maximum relative error, RMS relative error} of the attraction
+     * vectors
+     */
+    public double[] measureForceError(int nSamples) {
+        synchronized (points) {
+            final ForceEngine e = engine;
+            configureEngine(e);
+            final double[] err = e.measureError(points, nSamples);
+            points.invalidate(); //the attraction vectors have been overwritten
+            return err;
+        }
     }
 
     /**
@@ -607,10 +1196,10 @@ public class Simulation extends Thread {
 
     /**
      *
-     * @return number of slave threads
+     * @return number of threads used by the executor
      */
     public int getNThreads() {
-        return slaves == null ? 0 : slaves.length;
+        return executor.getParallelism();
     }
 
     /**
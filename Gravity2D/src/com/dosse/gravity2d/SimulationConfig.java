@@ -0,0 +1,627 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Configuration of a Simulation: threads, SPS limit, G, engine, integrator and
+ * so on. Each Simulation gets its own, so differently configured simulations
+ * can run side by side in the same JVM.<br>
+ * A configuration is immutable. Build one with builder(), or load it from a
+ * properties file or the system properties. The defaults are the values in
+ * Settings.<br>
+ * <br>
+ * Properties (all optional):<br>
+ * threads: number of threads, 0 = one per core<br>
+ * executor: fork-join, slaves or shared (WorkerPool.getShared(), threads and
+ * workerPriority are ignored)<br>
+ * spsLimit: maximum simulations per second, 0 = no limit<br>
+ * g: gravitational constant<br>
+ * timeStep: simulated time of each step<br>
+ * engine: direct, barnes-hut or fmm<br>
+ * theta: opening angle of the barnes-hut (&gt;=0) and fmm (&gt;0, &lt;1)
+ * engines<br>
+ * order: order of the fmm engine<br>
+ * floatPrecision: true to run the direct engine in float precision<br>
+ * vectorKernel: false to never use the Vector API kernel<br>
+ * softening: softening length<br>
+ * closeEncounters: true to regularize close encounters<br>
+ * deterministic: true for results that don't depend on the number of threads
+ * (see Simulation.setDeterministic)<br>
+ * integrator: euler, leapfrog, yoshida, rk4 or block<br>
+ * masterPriority, workerPriority: priorities of the threads<br>
+ * In the system properties, the names start with gravity2d. (for instance
+ * -Dgravity2d.engine=fmm).
+ *
+ * @author Federico
+ */
+public final class SimulationConfig {
+
+    public static final String EXECUTOR_FORK_JOIN = "fork-join", EXECUTOR_SLAVES = "slaves", EXECUTOR_SHARED = "shared";
+    public static final String ENGINE_DIRECT = "direct", ENGINE_BARNES_HUT = "barnes-hut", ENGINE_FMM = "fmm";
+    public static final String INTEGRATOR_EULER = "euler", INTEGRATOR_LEAPFROG = "leapfrog", INTEGRATOR_YOSHIDA = "yoshida", INTEGRATOR_RK4 = "rk4", INTEGRATOR_BLOCK = "block";
+
+    /**
+     * prefix of the names of the system properties
+     */
+    public static final String SYSTEM_PREFIX = "gravity2d.";
+
+    /**
+     * the default configuration
+     */
+    public static final SimulationConfig DEFAULT = new Builder().build();
+
+    private final int threads;
+    private final String executor;
+    private final long spsLimit;
+    private final double g, timeStep;
+    private final String engine;
+    private final double theta;
+    private final int order;
+    private final boolean floatPrecision, vectorKernel;
+    private final double softening;
+    private final boolean closeEncounters, deterministic;
+    private final String integrator;
+    private final int masterPriority, workerPriority;
+
+    private SimulationConfig(Builder b) {
+        threads = b.threads;
+        executor = b.executor;
+        spsLimit = b.spsLimit;
+        g = b.g;
+        timeStep = b.timeStep;
+        engine = b.engine;
+        theta = b.theta;
+        order = b.order;
+        floatPrecision = b.floatPrecision;
+        vectorKernel = b.vectorKernel;
+        softening = b.softening;
+        closeEncounters = b.closeEncounters;
+        deterministic = b.deterministic;
+        integrator = b.integrator;
+        masterPriority = b.masterPriority;
+        workerPriority = b.workerPriority;
+    }
+
+    /**
+     *
+     * @return a builder with the default values
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     *
+     * @return a builder with the values of this configuration
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * reads a configuration from properties. missing properties have the
+     * default value
+     *
+     * @param p properties
+     * @return configuration
+     * @throws IllegalArgumentException if a property has an invalid value
+     */
+    public static SimulationConfig fromProperties(Properties p) {
+        return new Builder().load(p, "").build();
+    }
+
+    /**
+     * reads a configuration from a properties file
+     *
+     * @param f file
+     * @return configuration
+     * @throws IOException if the file can't be read
+     * @throws IllegalArgumentException if a property has an invalid value
+     */
+    public static SimulationConfig fromFile(File f) throws IOException {
+        final Properties p = new Properties();
+        final InputStream in = new FileInputStream(f);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+        return fromProperties(p);
+    }
+
+    /**
+     * reads a configuration from the system properties that start with
+     * gravity2d. (for instance -Dgravity2d.threads=4)
+     *
+     * @return configuration
+     * @throws IllegalArgumentException if a property has an invalid value
+     */
+    public static SimulationConfig fromSystemProperties() {
+        return new Builder().load(System.getProperties(), SYSTEM_PREFIX).build();
+    }
+
+    /**
+     *
+     * @return number of threads &gt;0
+     */
+    public int getThreads() {
+        return threads == 0 ? Runtime.getRuntime().availableProcessors() : threads;
+    }
+
+    public String getExecutor() {
+        return executor;
+    }
+
+    public long getSpsLimit() {
+        return spsLimit;
+    }
+
+    public double getG() {
+        return g;
+    }
+
+    public double getTimeStep() {
+        return timeStep;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public double getTheta() {
+        return theta;
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    public boolean isFloatPrecision() {
+        return floatPrecision;
+    }
+
+    public boolean isVectorKernel() {
+        return vectorKernel;
+    }
+
+    public double getSoftening() {
+        return softening;
+    }
+
+    public boolean isCloseEncounters() {
+        return closeEncounters;
+    }
+
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    public String getIntegrator() {
+        return integrator;
+    }
+
+    public int getMasterPriority() {
+        return masterPriority;
+    }
+
+    public int getWorkerPriority() {
+        return workerPriority;
+    }
+
+    /**
+     *
+     * @return a new executor, as configured
+     */
+    public StepExecutor createExecutor() {
+        if (EXECUTOR_SLAVES.equals(executor)) {
+            return new SlaveThreadExecutor(getThreads(), workerPriority);
+        } else if (EXECUTOR_SHARED.equals(executor)) {
+            return WorkerPool.getShared().newExecutor();
+        } else {
+            return new ForkJoinExecutor(getThreads(), workerPriority);
+        }
+    }
+
+    /**
+     *
+     * @return a new engine, as configured
+     */
+    public ForceEngine createEngine() {
+        if (ENGINE_BARNES_HUT.equals(engine)) {
+            return new BarnesHutEngine(theta);
+        } else if (ENGINE_FMM.equals(engine)) {
+            return new FmmEngine(order, theta);
+        } else {
+            return new DirectSumEngine(floatPrecision);
+        }
+    }
+
+    /**
+     *
+     * @return a new integrator, as configured
+     */
+    public Integrator createIntegrator() {
+        if (INTEGRATOR_LEAPFROG.equals(integrator)) {
+            return new LeapfrogIntegrator();
+        } else if (INTEGRATOR_YOSHIDA.equals(integrator)) {
+            return new YoshidaIntegrator();
+        } else if (INTEGRATOR_RK4.equals(integrator)) {
+            return new RK4Integrator();
+        } else if (INTEGRATOR_BLOCK.equals(integrator)) {
+            return new BlockTimestepIntegrator();
+        } else {
+            return new EulerIntegrator();
+        }
+    }
+
+    /**
+     *
+     * @return the configuration as properties, that fromProperties can read
+     */
+    public Properties toProperties() {
+        final Properties p = new Properties();
+        p.setProperty("threads", "" + threads);
+        p.setProperty("executor", executor);
+        p.setProperty("spsLimit", "" + spsLimit);
+        p.setProperty("g", "" + g);
+        p.setProperty("timeStep", "" + timeStep);
+        p.setProperty("engine", engine);
+        p.setProperty("theta", "" + theta);
+        p.setProperty("order", "" + order);
+        p.setProperty("floatPrecision", "" + floatPrecision);
+        p.setProperty("vectorKernel", "" + vectorKernel);
+        p.setProperty("softening", "" + softening);
+        p.setProperty("closeEncounters", "" + closeEncounters);
+        p.setProperty("deterministic", "" + deterministic);
+        p.setProperty("integrator", integrator);
+        p.setProperty("masterPriority", "" + masterPriority);
+        p.setProperty("workerPriority", "" + workerPriority);
+        return p;
+    }
+
+    @Override
+    public String toString() {
+        return "SimulationConfig" + toProperties();
+    }
+
+    /**
+     * Builds a SimulationConfig. Each setter checks its value and throws an
+     * IllegalArgumentException if it's invalid.
+     */
+    public static final class Builder {
+
+        private int threads = 0;
+        private String executor = EXECUTOR_FORK_JOIN;
+        private long spsLimit = Settings.SPS_LIMIT;
+        private double g = Settings.G, timeStep = 1;
+        private String engine = ENGINE_DIRECT;
+        private double theta = BarnesHutEngine.DEFAULT_THETA;
+        private int order = FmmEngine.DEFAULT_ORDER;
+        private boolean floatPrecision = false, vectorKernel = true;
+        private double softening = 0;
+        private boolean closeEncounters = false, deterministic = false;
+        private String integrator = INTEGRATOR_EULER;
+        private int masterPriority = Settings.MASTER_PRIORITY_ACTIVE, workerPriority = Settings.SLAVE_PRIORITY_ACTIVE;
+
+        private Builder() {
+        }
+
+        private Builder(SimulationConfig c) {
+            threads = c.threads;
+            executor = c.executor;
+            spsLimit = c.spsLimit;
+            g = c.g;
+            timeStep = c.timeStep;
+            engine = c.engine;
+            theta = c.theta;
+            order = c.order;
+            floatPrecision = c.floatPrecision;
+            vectorKernel = c.vectorKernel;
+            softening = c.softening;
+            closeEncounters = c.closeEncounters;
+            deterministic = c.deterministic;
+            integrator = c.integrator;
+            masterPriority = c.masterPriority;
+            workerPriority = c.workerPriority;
+        }
+
+        /**
+         *
+         * @param threads number of threads, 0 = one per core
+         * @return this builder
+         */
+        public Builder threads(int threads) {
+            if (threads < 0) {
+                throw new IllegalArgumentException("Threads must be >=0");
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         *
+         * @param executor EXECUTOR_FORK_JOIN, EXECUTOR_SLAVES or EXECUTOR_SHARED
+         * @return this builder
+         */
+        public Builder executor(String executor) {
+            this.executor = choose("executor", executor, EXECUTOR_FORK_JOIN, EXECUTOR_SLAVES, EXECUTOR_SHARED);
+            return this;
+        }
+
+        /**
+         *
+         * @param spsLimit maximum simulations per second, 0 = no limit
+         * @return this builder
+         */
+        public Builder spsLimit(long spsLimit) {
+            this.spsLimit = Math.max(spsLimit, 0);
+            return this;
+        }
+
+        /**
+         *
+         * @param g gravitational constant (see Settings.G)
+         * @return this builder
+         */
+        public Builder g(double g) {
+            if (Double.isNaN(g) || Double.isInfinite(g)) {
+                throw new IllegalArgumentException("G must be a number");
+            }
+            this.g = g;
+            return this;
+        }
+
+        /**
+         *
+         * @param timeStep simulated time of each step &gt;0
+         * @return this builder
+         */
+        public Builder timeStep(double timeStep) {
+            if (!(timeStep > 0) || Double.isInfinite(timeStep)) {
+                throw new IllegalArgumentException("Timestep must be >0");
+            }
+            this.timeStep = timeStep;
+            return this;
+        }
+
+        /**
+         *
+         * @param engine ENGINE_DIRECT, ENGINE_BARNES_HUT or ENGINE_FMM
+         * @return this builder
+         */
+        public Builder engine(String engine) {
+            this.engine = choose("engine", engine, ENGINE_DIRECT, ENGINE_BARNES_HUT, ENGINE_FMM);
+            return this;
+        }
+
+        /**
+         *
+         * @param theta opening angle of the barnes-hut (&gt;=0) and fmm
+         * (&gt;0, &lt;1) engines. checked against the engine in build
+         * @return this builder
+         */
+        public Builder theta(double theta) {
+            if (!(theta >= 0)) {
+                throw new IllegalArgumentException("Theta must be >=0");
+            }
+            this.theta = theta;
+            return this;
+        }
+
+        /**
+         *
+         * @param order order of the fmm engine
+         * @return this builder
+         */
+        public Builder order(int order) {
+            if (order < 1 || order > FmmEngine.MAX_ORDER) {
+                throw new IllegalArgumentException("Order must be 1-" + FmmEngine.MAX_ORDER);
+            }
+            this.order = order;
+            return this;
+        }
+
+        /**
+         *
+         * @param floatPrecision true to run the direct engine in float
+         * precision
+         * @return this builder
+         */
+        public Builder floatPrecision(boolean floatPrecision) {
+            this.floatPrecision = floatPrecision;
+            return this;
+        }
+
+        /**
+         *
+         * @param vectorKernel false to never use the Vector API kernel
+         * @return this builder
+         */
+        public Builder vectorKernel(boolean vectorKernel) {
+            this.vectorKernel = vectorKernel;
+            return this;
+        }
+
+        /**
+         *
+         * @param softening softening length &gt;=0
+         * @return this builder
+         */
+        public Builder softening(double softening) {
+            if (!(softening >= 0) || Double.isInfinite(softening)) {
+                throw new IllegalArgumentException("Softening must be >=0");
+            }
+            this.softening = softening;
+            return this;
+        }
+
+        /**
+         *
+         * @param closeEncounters true to regularize close encounters
+         * @return this builder
+         */
+        public Builder closeEncounters(boolean closeEncounters) {
+            this.closeEncounters = closeEncounters;
+            return this;
+        }
+
+        /**
+         *
+         * @param deterministic true for results that don't depend on the
+         * number of threads
+         * @return this builder
+         */
+        public Builder deterministic(boolean deterministic) {
+            this.deterministic = deterministic;
+            return this;
+        }
+
+        /**
+         *
+         * @param integrator INTEGRATOR_EULER, INTEGRATOR_LEAPFROG,
+         * INTEGRATOR_YOSHIDA, INTEGRATOR_RK4 or INTEGRATOR_BLOCK
+         * @return this builder
+         */
+        public Builder integrator(String integrator) {
+            this.integrator = choose("integrator", integrator, INTEGRATOR_EULER, INTEGRATOR_LEAPFROG, INTEGRATOR_YOSHIDA, INTEGRATOR_RK4, INTEGRATOR_BLOCK);
+            return this;
+        }
+
+        /**
+         *
+         * @param masterPriority priority of the master thread
+         * @return this builder
+         */
+        public Builder masterPriority(int masterPriority) {
+            this.masterPriority = priority(masterPriority);
+            return this;
+        }
+
+        /**
+         *
+         * @param workerPriority priority of the threads of the executor
+         * @return this builder
+         */
+        public Builder workerPriority(int workerPriority) {
+            this.workerPriority = priority(workerPriority);
+            return this;
+        }
+
+        /**
+         * sets the values of the properties that are present. names are
+         * prefix+name, for instance gravity2d.threads
+         *
+         * @param p properties
+         * @param prefix prefix of the names, can be empty
+         * @return this builder
+         * @throws IllegalArgumentException if a property has an invalid
+         * value
+         */
+        public Builder load(Properties p, String prefix) {
+            String v;
+            try {
+                if ((v = get(p, prefix, "threads")) != null) {
+                    threads(Integer.parseInt(v));
+                }
+                if ((v = get(p, prefix, "executor")) != null) {
+                    executor(v);
+                }
+                if ((v = get(p, prefix, "spsLimit")) != null) {
+                    spsLimit(Long.parseLong(v));
+                }
+                if ((v = get(p, prefix, "g")) != null) {
+                    g(Double.parseDouble(v));
+                }
+                if ((v = get(p, prefix, "timeStep")) != null) {
+                    timeStep(Double.parseDouble(v));
+                }
+                if ((v = get(p, prefix, "engine")) != null) {
+                    engine(v);
+                }
+                if ((v = get(p, prefix, "theta")) != null) {
+                    theta(Double.parseDouble(v));
+                }
+                if ((v = get(p, prefix, "order")) != null) {
+                    order(Integer.parseInt(v));
+                }
+                if ((v = get(p, prefix, "floatPrecision")) != null) {
+                    floatPrecision(parseBoolean("floatPrecision", v));
+                }
+                if ((v = get(p, prefix, "vectorKernel")) != null) {
+                    vectorKernel(parseBoolean("vectorKernel", v));
+                }
+                if ((v = get(p, prefix, "softening")) != null) {
+                    softening(Double.parseDouble(v));
+                }
+                if ((v = get(p, prefix, "closeEncounters")) != null) {
+                    closeEncounters(parseBoolean("closeEncounters", v));
+                }
+                if ((v = get(p, prefix, "deterministic")) != null) {
+                    deterministic(parseBoolean("deterministic", v));
+                }
+                if ((v = get(p, prefix, "integrator")) != null) {
+                    integrator(v);
+                }
+                if ((v = get(p, prefix, "masterPriority")) != null) {
+                    masterPriority(Integer.parseInt(v));
+                }
+                if ((v = get(p, prefix, "workerPriority")) != null) {
+                    workerPriority(Integer.parseInt(v));
+                }
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid number in configuration: " + ex.getMessage(), ex);
+            }
+            return this;
+        }
+
+        /**
+         *
+         * @return a configuration with the values of this builder
+         * @throws IllegalArgumentException if the values don't fit together
+         * (for instance, theta &gt;=1 with the fmm engine)
+         */
+        public SimulationConfig build() {
+            if (ENGINE_FMM.equals(engine) && !(theta > 0 && theta < 1)) {
+                throw new IllegalArgumentException("Theta must be >0 and <1 for the fmm engine");
+            }
+            return new SimulationConfig(this);
+        }
+
+        private static String get(Properties p, String prefix, String name) {
+            final String v = p.getProperty(prefix + name);
+            return v == null ? null : v.trim();
+        }
+
+        private static boolean parseBoolean(String name, String v) {
+            if ("true".equalsIgnoreCase(v)) {
+                return true;
+            } else if ("false".equalsIgnoreCase(v)) {
+                return false;
+            }
+            throw new IllegalArgumentException("Invalid " + name + ": " + v);
+        }
+
+        private static int priority(int p) {
+            if (p < Thread.MIN_PRIORITY || p > Thread.MAX_PRIORITY) {
+                throw new IllegalArgumentException("Priority must be " + Thread.MIN_PRIORITY + "-" + Thread.MAX_PRIORITY);
+            }
+            return p;
+        }
+
+        private static String choose(String name, String v, String... allowed) {
+            for (String a : allowed) {
+                if (a.equalsIgnoreCase(v)) {
+                    return a;
+                }
+            }
+            throw new IllegalArgumentException("Invalid " + name + ": " + v);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Executor with a fixed set of slave threads.<br>
+ * Each phase is split in equal ranges, one per slave. This is the fastest way
+ * when the items all cost about the same, and there are no other programs
+ * competing for the CPU. Otherwise use a ForkJoinExecutor.
+ *
+ * @author Federico
+ */
+public class SlaveThreadExecutor extends StepExecutor {
+
+    /**
+     * List of Slave threads
+     */
+    private final SlaveThread[] slaves;
+
+    /**
+     * current task and number of items, written by the caller before it
+     * releases the slaves. a null task terminates the slaves
+     */
+    private volatile RangeTask task;
+    private volatile int n;
+
+    /**
+     * incremented by the caller to release the slaves for a new phase. slaves
+     * wait for it to change parked, so they don't use the CPU
+     */
+    private volatile int generation = 0;
+
+    /**
+     * number of slaves that haven't completed the current phase. the last one
+     * unparks the caller.<br>
+     * waiting threads use park/unpark directly instead of a Phaser, because a
+     * Phaser allocates memory for each waiting thread
+     */
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile Thread caller;
+
+    /**
+     * first error thrown by a slave during the current phase, rethrown by the
+     * caller
+     */
+    private volatile Throwable slaveError = null;
+
+    /**
+     * Slave threads do all the dirty work coming from the Master thread.<br>
+     * Slaves wait until the master releases them, run the
+     * current task on their range, then the last one to complete wakes up the
+     * master.
+     */
+    private class SlaveThread extends Thread {
+
+        /**
+         * index of this thread in slaves
+         */
+        private final int id;
+
+        /**
+         * creates and starts a new SlaveThread
+         *
+         * @param id index of this thread in slaves
+         * @param priority priority of the thread
+         */
+        public SlaveThread(int id, int priority) {
+            this.id = id;
+            setName("Gravity - Slave Thread");
+            setPriority(priority);
+            setDaemon(true);
+            start();
+        }
+
+        /**
+         * Here lies the actual code of the Slave
+         */
+        @Override
+        public void run() {
+            int seen = 0;
+            for (;;) {
+                //wait for orders
+                while (generation == seen) {
+                    LockSupport.park(this);
+                }
+                seen = generation;
+                final RangeTask t = task;
+                if (t == null) {
+                    return;
+                }
+                final int items = n;
+                try {
+                    t.run((int) ((long) items * id / slaves.length), (int) ((long) items * (id + 1) / slaves.length));
+                } catch (Throwable e) {
+                    slaveError = e;
+                }
+                //done
+                if (running.decrementAndGet() == 0) {
+                    LockSupport.unpark(caller);
+                }
+            }
+        }
+    }
+
+    /**
+     * creates an executor with one slave per core
+     */
+    public SlaveThreadExecutor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * creates an executor and starts its slaves
+     *
+     * @param nThreads number of slave threads &gt;0
+     */
+    public SlaveThreadExecutor(int nThreads) {
+        this(nThreads, Settings.SLAVE_PRIORITY_ACTIVE);
+    }
+
+    /**
+     * creates an executor and starts its slaves
+     *
+     * @param nThreads number of slave threads &gt;0
+     * @param priority priority of the slaves
+     */
+    public SlaveThreadExecutor(int nThreads, int priority) {
+        if (nThreads <= 0) {
+            throw new IllegalArgumentException("Number of threads must be >0");
+        }
+        slaves = new SlaveThread[nThreads];
+        for (int i = 0; i < nThreads; i++) {
+            slaves[i] = new SlaveThread(i, priority);
+        }
+    }
+
+    @Override
+    protected void execute(int n, long cost, RangeTask task) {
+        this.n = n;
+        this.task = task;
+        caller = Thread.currentThread();
+        running.set(slaves.length);
+        release();
+        while (running.get() > 0) {
+            LockSupport.park(this); //wait for them to complete
+        }
+        final Throwable t = slaveError;
+        if (t != null) {
+            slaveError = null;
+            throw new IllegalStateException("Slave thread failed", t);
+        }
+    }
+
+    /**
+     * releases the slaves, after task and n are set
+     */
+    private void release() {
+        generation++;
+        for (SlaveThread t : slaves) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    @Override
+    public int getParallelism() {
+        return slaves.length;
+    }
+
+    @Override
+    protected long getAllocatedBytes() {
+        long total = 0;
+        for (SlaveThread t : slaves) {
+            final long b = Utils.getAllocatedBytes(t);
+            if (b < 0) {
+                return -1;
+            }
+            total += b;
+        }
+        return total;
+    }
+
+    /**
+     * stops the slaves and waits until they terminate
+     */
+    @Override
+    protected void shutdown() {
+        task = null;
+        release();
+        for (SlaveThread t : slaves) {
+            for (;;) {
+                try {
+                    t.join();
+                    break;
+                } catch (InterruptedException ex) {
+                }
+            }
+        }
+    }
+
+}
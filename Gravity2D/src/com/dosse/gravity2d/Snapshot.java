@@ -0,0 +1,117 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Positions, radiuses and densities of all the Points of a Simulation at the
+ * end of a step, for renderers and other readers.<br>
+ * Get it with Simulation.acquireSnapshot() and give it back with release()
+ * when done: until then it doesn't change, no matter what the simulation
+ * does. Reading it never locks the simulation.<br>
+ * Snapshots are recycled by the simulation once they're released and newer
+ * ones have been published, so there's no garbage, and a snapshot must not
+ * be used after release().
+ *
+ * @author Federico
+ */
+public final class Snapshot {
+
+    private double[] x = new double[0], y = new double[0], radius = new double[0], density = new double[0];
+    private int size = 0;
+    private double time = 0;
+
+    /**
+     * number of readers using this snapshot. -1 while the simulation is
+     * writing it
+     */
+    final AtomicInteger readers = new AtomicInteger(0);
+
+    Snapshot() {
+    }
+
+    /**
+     * copies the points. only called by the simulation while it owns this
+     * snapshot
+     *
+     * @param points points
+     * @param time simulated time
+     */
+    void copy(PointStore points, double time) {
+        final int n = points.size();
+        if (x.length < n) {
+            final int capacity = Math.max(n, x.length * 2);
+            x = new double[capacity];
+            y = new double[capacity];
+            radius = new double[capacity];
+            density = new double[capacity];
+        }
+        System.arraycopy(points.x, 0, x, 0, n);
+        System.arraycopy(points.y, 0, y, 0, n);
+        System.arraycopy(points.radius, 0, radius, 0, n);
+        System.arraycopy(points.density, 0, density, 0, n);
+        size = n;
+        this.time = time;
+    }
+
+    /**
+     *
+     * @return number of points
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     *
+     * @param i index (0 to size()-1)
+     * @return x coordinate of point i
+     */
+    public double getX(int i) {
+        return x[i];
+    }
+
+    /**
+     *
+     * @param i index (0 to size()-1)
+     * @return y coordinate of point i
+     */
+    public double getY(int i) {
+        return y[i];
+    }
+
+    /**
+     *
+     * @param i index (0 to size()-1)
+     * @return radius of point i
+     */
+    public double getRadius(int i) {
+        return radius[i];
+    }
+
+    /**
+     *
+     * @param i index (0 to size()-1)
+     * @return density of point i
+     */
+    public double getDensity(int i) {
+        return density[i];
+    }
+
+    /**
+     *
+     * @return simulated time when the snapshot was taken
+     */
+    public double getSimulatedTime() {
+        return time;
+    }
+
+    /**
+     * gives the snapshot back to the simulation. it must not be used anymore
+     */
+    public void release() {
+        readers.decrementAndGet();
+    }
+}
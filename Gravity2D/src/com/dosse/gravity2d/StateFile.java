@@ -0,0 +1,275 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary format for the state of a simulation, read and written in large
+ * chunks straight from/into the arrays of a PointStore.<br>
+ * The file is not memory mapped: on Windows, a mapped file stays locked until
+ * the mapping is garbage collected, so a file that was just loaded or saved
+ * could not be overwritten or renamed.<br>
+ * Layout (little endian):<br>
+ * -header, HEADER_SIZE bytes: magic "G2DS", version, header size, number of
+ * points n, number of columns (all ints), simulated time, then VIEW_SIZE
+ * doubles for the application (for instance, the position of the camera)<br>
+ * -the columns, n doubles each, in this order: x, y, velX, velY, mass,
+ * density<br>
+ * New fields are added at the end of the header or as new columns, without
+ * changing the version: readers skip headers and columns that are larger
+ * than what they know. The version only changes when the layout changes in
+ * a way that older readers can't skip, and they refuse those files.<br>
+ * The old .gds files (a serialized Point[] followed by the camera) are still
+ * read: they're recognized by the serialization magic number.
+ *
+ * @author Federico
+ */
+final class StateFile {
+
+    /**
+     * only changed for incompatible layouts, not for fields added at the end
+     */
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 64;
+
+    /**
+     * number of application values in the header
+     */
+    static final int VIEW_SIZE = 4;
+
+    /**
+     * number of columns: x, y, velX, velY, mass, density
+     */
+    static final int N_COLUMNS = 6;
+
+    private static final int MAGIC = 0x53443247; //"G2DS" in little endian
+    private static final short LEGACY_MAGIC = (short) 0xACED; //java serialization
+
+    /**
+     * size of the buffer used to copy the columns (bytes)
+     */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * simulated time and application values
+     */
+    double time;
+    final double[] view = new double[VIEW_SIZE];
+
+    /**
+     * if true, write returns only when the file is on the disk, so it
+     * survives a crash of the OS
+     */
+    boolean sync = false;
+
+    /**
+     * writes the points of a store to a file, overwriting it
+     *
+     * @param f file
+     * @param s store
+     * @throws IOException if it can't be written
+     */
+    void write(File f, PointStore s) throws IOException {
+        write(f, new double[][]{s.x, s.y, s.velX, s.velY, s.mass, s.density}, s.size);
+    }
+
+    /**
+     * writes n points to a file, overwriting it
+     *
+     * @param f file
+     * @param columns x, y, velX, velY, mass and density of the points
+     * @param n number of points
+     * @throws IOException if it can't be written
+     */
+    void write(File f, double[][] columns, int n) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            final FileChannel ch = raf.getChannel();
+            raf.setLength(HEADER_SIZE + 8L * N_COLUMNS * n);
+            final ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            h.putInt(MAGIC).putInt(VERSION).putInt(HEADER_SIZE).putInt(n).putInt(N_COLUMNS).putInt(0).putDouble(time);
+            for (int i = 0; i < VIEW_SIZE; i++) {
+                h.putDouble(view[i]);
+            }
+            h.flip();
+            while (h.hasRemaining()) {
+                ch.write(h, h.position());
+            }
+            final ByteBuffer buffer = newBuffer();
+            long pos = HEADER_SIZE;
+            for (int c = 0; c < N_COLUMNS; c++) {
+                writeColumn(ch, buffer, pos, columns[c], n);
+                pos += 8L * n;
+            }
+            if (sync) {
+                ch.force(true);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * replaces the points of a store with the ones in a file, in this format
+     * or in the old one
+     *
+     * @param f file
+     * @param s store. left as it is if the file is not a valid state file,
+     * emptied if the points can't be read or are not valid
+     * @throws IOException if it can't be read or it's not valid
+     */
+    void read(File f, PointStore s) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            final FileChannel ch = raf.getChannel();
+            final ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (h.hasRemaining() && ch.read(h, h.position()) > 0) {
+            }
+            h.flip();
+            if (h.remaining() >= 2 && h.getShort(0) == Short.reverseBytes(LEGACY_MAGIC)) {
+                readLegacy(f, s);
+                return;
+            }
+            if (h.remaining() < HEADER_SIZE || h.getInt() != MAGIC) {
+                throw new IOException("Not a state file");
+            }
+            if (h.getInt() > VERSION) {
+                throw new IOException("State file was saved by a newer version");
+            }
+            final int headerSize = h.getInt(), n = h.getInt(), nColumns = h.getInt();
+            h.getInt();
+            if (headerSize < HEADER_SIZE || n < 0 || nColumns < N_COLUMNS || ch.size() < headerSize + 8L * nColumns * n) {
+                throw new IOException("Invalid state file");
+            }
+            time = h.getDouble();
+            for (int i = 0; i < VIEW_SIZE; i++) {
+                view[i] = h.getDouble();
+            }
+            s.reset(n);
+            final ByteBuffer buffer = newBuffer();
+            long pos = headerSize;
+            final double[][] columns = {s.x, s.y, s.velX, s.velY, s.mass, s.density};
+            try {
+                for (int c = 0; c < N_COLUMNS; c++) {
+                    readColumn(ch, buffer, pos, columns[c], n);
+                    pos += 8L * n;
+                }
+            } catch (IOException ex) {
+                s.reset(0);
+                throw ex;
+            }
+            for (int i = 0; i < n; i++) {
+                if (!(s.mass[i] > 0) || !(s.density[i] > 0)) {
+                    s.reset(0);
+                    throw new IOException("Invalid state file: point " + i + " has mass or density <=0");
+                }
+            }
+            s.recalcRadiuses();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static ByteBuffer newBuffer() {
+        return ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * writes n doubles from an array to the file, starting at pos
+     *
+     * @param ch file
+     * @param buffer buffer used for the copy
+     * @param pos position in the file
+     * @param column array
+     * @param n number of doubles
+     * @throws IOException if the file can't be written
+     */
+    private static void writeColumn(FileChannel ch, ByteBuffer buffer, long pos, double[] column, int n) throws IOException {
+        for (int from = 0; from < n;) {
+            final int len = Math.min(n - from, BUFFER_SIZE / 8);
+            buffer.clear();
+            buffer.asDoubleBuffer().put(column, from, len);
+            buffer.limit(8 * len);
+            while (buffer.hasRemaining()) {
+                pos += ch.write(buffer, pos);
+            }
+            from += len;
+        }
+    }
+
+    /**
+     * reads n doubles from the file into an array, starting at pos
+     *
+     * @param ch file
+     * @param buffer buffer used for the copy
+     * @param pos position in the file
+     * @param column array
+     * @param n number of doubles
+     * @throws IOException if the file can't be read
+     */
+    private static void readColumn(FileChannel ch, ByteBuffer buffer, long pos, double[] column, int n) throws IOException {
+        for (int from = 0; from < n;) {
+            final int len = Math.min(n - from, BUFFER_SIZE / 8);
+            buffer.clear();
+            buffer.limit(8 * len);
+            while (buffer.hasRemaining()) {
+                final int r = ch.read(buffer, pos);
+                if (r < 0) {
+                    throw new EOFException("Truncated state file");
+                }
+                pos += r;
+            }
+            buffer.flip();
+            buffer.asDoubleBuffer().get(column, from, len);
+            from += len;
+        }
+    }
+
+    /**
+     * reads an old .gds file: a serialized Point[], then cameraX, cameraY and
+     * zoom, which go in the first 3 application values. the time is 0
+     *
+     * @param f file
+     * @param s store
+     * @throws IOException if it can't be read or it's not valid
+     */
+    private void readLegacy(File f, PointStore s) throws IOException {
+        final ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            final Point[] state = (Point[]) ois.readObject();
+            s.reset(0);
+            for (int i = 0; i < state.length; i++) {
+                s.add(state[i]);
+            }
+            time = 0;
+            for (int i = 0; i < VIEW_SIZE; i++) {
+                view[i] = 0;
+            }
+            try {
+                view[0] = ois.readDouble();
+                view[1] = ois.readDouble();
+                view[2] = ois.readDouble();
+            } catch (EOFException ex) {
+                //saved without the camera
+            }
+        } catch (ClassNotFoundException ex) {
+            throw new IOException("Invalid state file", ex);
+        } catch (ClassCastException ex) {
+            throw new IOException("Invalid state file", ex);
+        } finally {
+            ois.close();
+        }
+    }
+}
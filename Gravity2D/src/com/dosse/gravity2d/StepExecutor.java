@@ -0,0 +1,110 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+/**
+ * Runs the phases of a simulation step in parallel.<br>
+ * Each phase is a loop over the points (or over other items, for some
+ * engines): the executor splits it into ranges and runs them on its threads.
+ * <br>
+ * Only one thread at a time (the master of the Simulation) can use an
+ * executor.
+ *
+ * @author Federico
+ */
+public abstract class StepExecutor {
+
+    /**
+     * work that can be split into ranges of items
+     */
+    public interface RangeTask {
+
+        /**
+         * processes the items from index from to index to-1
+         *
+         * @param from first item (inclusive)
+         * @param to last item (exclusive)
+         */
+        void run(int from, int to);
+    }
+
+    /**
+     * loops cheaper than this (in items*cost) are not worth sending to other
+     * threads, and are run directly by the caller
+     */
+    protected static final long MIN_PARALLEL_COST = 20000;
+
+    /**
+     * runs everything on the caller. used to run engines and integrators
+     * outside of a simulation
+     */
+    static final StepExecutor SERIAL = new StepExecutor() {
+        @Override
+        protected void execute(int n, long cost, RangeTask task) {
+            task.run(0, n);
+        }
+
+        @Override
+        public int getParallelism() {
+            return 1;
+        }
+
+        @Override
+        protected void shutdown() {
+        }
+    };
+
+    /**
+     * runs task on all the items from 0 to n-1, and waits until it's done.
+     *
+     * @param n number of items
+     * @param cost estimated cost of processing one item: 1 for simple loops,
+     * about N for loops that go through all the points for each item. used to
+     * decide how to split the work
+     * @param task task
+     */
+    public final void run(int n, long cost, RangeTask task) {
+        if (n <= 0) {
+            return;
+        }
+        if ((long) n * Math.max(cost, 1) <= MIN_PARALLEL_COST) {
+            task.run(0, n);
+        } else {
+            execute(n, Math.max(cost, 1), task);
+        }
+    }
+
+    /**
+     * runs task on all the items from 0 to n-1 using the threads of this
+     * executor, and waits until it's done.
+     *
+     * @param n number of items &gt;0
+     * @param cost estimated cost of processing one item &gt;=1
+     * @param task task
+     */
+    protected abstract void execute(int n, long cost, RangeTask task);
+
+    /**
+     *
+     * @return number of threads that do the work
+     */
+    public abstract int getParallelism();
+
+    /**
+     * used to check that the simulation doesn't create garbage
+     *
+     * @return bytes allocated so far by the threads of this executor (not
+     * including the caller), -1 if it can't be measured
+     */
+    protected long getAllocatedBytes() {
+        return -1;
+    }
+
+    /**
+     * releases the threads of this executor. called by the Simulation when it
+     * stops
+     */
+    protected abstract void shutdown();
+
+}
@@ -0,0 +1,297 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Format of the trajectory files written by TrajectoryRecorder and read by
+ * TrajectoryReader.<br>
+ * Layout (little endian):<br>
+ * -header, HEADER_SIZE bytes: magic "G2DT", version, header size, flags
+ * (FLAG_QUANTIZED, FLAG_COMPRESSED), quantum, recording interval (in
+ * steps)<br>
+ * -blocks of frames. each block has a header of BLOCK_HEADER_SIZE bytes
+ * (magic, flags, first frame, raw length, stored length, number of frames)
+ * followed by the frames, deflated together if compressed. in the raw data,
+ * each frame is its length followed by the frame encoded by Codec. the first
+ * frame of a block is encoded on its own (keyframe), the others as deltas of
+ * the previous one, so a block can be decoded without the ones before it<br>
+ * -the index: offset, first frame and simulated time of the first frame of
+ * each block, then its offset, the number of blocks and INDEX_MAGIC. the
+ * index is written when the recording is closed. if it's missing (the
+ * program crashed), the reader finds the blocks by scanning the file, and
+ * only the last block is lost.
+ *
+ * @author Federico
+ */
+final class TrajectoryFormat {
+
+    static final int MAGIC = 0x54443247; //"G2DT" in little endian
+    static final int BLOCK_MAGIC = 0x4B4C4247; //"GBLK"
+    static final int INDEX_MAGIC = 0x58444947; //"GIDX"
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 64, BLOCK_HEADER_SIZE = 40, INDEX_ENTRY_SIZE = 24, TRAILER_SIZE = 16;
+
+    static final int FLAG_QUANTIZED = 1, FLAG_COMPRESSED = 2;
+
+    /**
+     * columns of a frame, after the ids: x, y, velX, velY, mass, density.
+     * the first 2 are quantized
+     */
+    static final int N_COLUMNS = 6, N_QUANTIZED = 2;
+
+    /**
+     * a block is closed when it has this many frames or this much raw data,
+     * whichever comes first
+     */
+    static final int MAX_BLOCK_FRAMES = 64;
+    static final long MAX_BLOCK_BYTES = 256L << 20;
+
+    private TrajectoryFormat() {
+    }
+
+    /**
+     * Encodes and decodes frames, as deltas of the previous one.<br>
+     * A point is encoded as a delta only if the point in the same slot of the
+     * previous frame has the same id, which is almost always true: the order
+     * of the points only changes when some are removed. ids are encoded as
+     * the difference from the id of the previous frame in the same slot (so
+     * usually 0), positions as the difference of their quantized values if
+     * quantized, and everything else as the XOR of the bits of the double
+     * with the previous value, which has many leading zeros when the value
+     * changed a little (or is all 0 when it didn't change). all of them are
+     * written as variable length integers, except the doubles of points that
+     * are not in the previous frame, which are written as they are.
+     */
+    static final class Codec {
+
+        private final double quantum;
+        private final boolean quantized;
+
+        /**
+         * the previous frame: ids, bits of the doubles (or quantized
+         * positions) and number of points
+         */
+        private int[] prevId = new int[0];
+        private long[][] prev = new long[N_COLUMNS][0];
+        private int prevN = 0;
+
+        Codec(double quantum) {
+            this.quantum = quantum;
+            quantized = quantum > 0;
+        }
+
+        /**
+         * forgets the previous frame, so that the next one is a keyframe
+         */
+        void reset() {
+            prevN = 0;
+        }
+
+        private void ensureCapacity(int n) {
+            if (prevId.length < n) {
+                final int capacity = Math.max(n, prevId.length * 2);
+                prevId = Arrays.copyOf(prevId, capacity);
+                for (int c = 0; c < N_COLUMNS; c++) {
+                    prev[c] = Arrays.copyOf(prev[c], capacity);
+                }
+            }
+        }
+
+        void encode(TrajectoryFrame f, Bytes out) {
+            final int n = f.size;
+            final int[] id = f.id;
+            ensureCapacity(n);
+            out.ensure((int) Math.min(Integer.MAX_VALUE - 8, 30 + n * (10L + 10L * N_COLUMNS)));
+            out.putLong(f.step);
+            out.putLong(Double.doubleToRawLongBits(f.time));
+            out.putVarLong(n);
+            for (int i = 0; i < n; i++) {
+                out.putVarLong(zigzag(id[i] - predictId(id, i)));
+            }
+            for (int c = 0; c < N_COLUMNS; c++) {
+                final double[] col = f.columns[c];
+                final long[] p = prev[c];
+                if (quantized && c < N_QUANTIZED) {
+                    for (int i = 0; i < n; i++) {
+                        final long q = Math.round(col[i] / quantum);
+                        out.putVarLong(zigzag(i < prevN && prevId[i] == id[i] ? q - p[i] : q));
+                        p[i] = q;
+                    }
+                } else {
+                    for (int i = 0; i < n; i++) {
+                        final long bits = Double.doubleToRawLongBits(col[i]);
+                        if (i < prevN && prevId[i] == id[i]) {
+                            out.putVarLong(bits ^ p[i]);
+                        } else {
+                            out.putLong(bits);
+                        }
+                        p[i] = bits;
+                    }
+                }
+            }
+            System.arraycopy(id, 0, prevId, 0, n);
+            prevN = n;
+        }
+
+        void decode(Bytes in, TrajectoryFrame f) throws IOException {
+            f.step = in.getLong();
+            f.time = Double.longBitsToDouble(in.getLong());
+            final long size = in.getVarLong();
+            if (size < 0 || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid frame");
+            }
+            final int n = (int) size;
+            f.ensureCapacity(n);
+            ensureCapacity(n);
+            final int[] id = f.id;
+            for (int i = 0; i < n; i++) {
+                id[i] = (int) (predictId(id, i) + unzigzag(in.getVarLong()));
+            }
+            for (int c = 0; c < N_COLUMNS; c++) {
+                final double[] col = f.columns[c];
+                final long[] p = prev[c];
+                if (quantized && c < N_QUANTIZED) {
+                    for (int i = 0; i < n; i++) {
+                        final long d = unzigzag(in.getVarLong());
+                        p[i] = i < prevN && prevId[i] == id[i] ? p[i] + d : d;
+                        col[i] = p[i] * quantum;
+                    }
+                } else {
+                    for (int i = 0; i < n; i++) {
+                        p[i] = i < prevN && prevId[i] == id[i] ? in.getVarLong() ^ p[i] : in.getLong();
+                        col[i] = Double.longBitsToDouble(p[i]);
+                    }
+                }
+            }
+            System.arraycopy(id, 0, prevId, 0, n);
+            prevN = n;
+            f.size = n;
+        }
+
+        /**
+         * @return what id[i] is expected to be: the id in the same slot of
+         * the previous frame, or the one after id[i-1] for new slots
+         */
+        private long predictId(int[] id, int i) {
+            return i < prevN ? prevId[i] : i > 0 ? id[i - 1] + 1L : 0;
+        }
+
+        private static long zigzag(long v) {
+            return (v << 1) ^ (v >> 63);
+        }
+
+        private static long unzigzag(long v) {
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+
+    /**
+     * A growable byte buffer, with the little endian and variable length
+     * encodings used by Codec
+     */
+    static final class Bytes {
+
+        byte[] buf = new byte[1024];
+        int pos = 0, limit = 0;
+
+        void ensure(int extra) {
+            if (buf.length - pos < extra) {
+                buf = Arrays.copyOf(buf, (int) Math.min(Integer.MAX_VALUE - 8, Math.max((long) pos + extra, buf.length * 2L)));
+            }
+        }
+
+        void putLong(long v) {
+            for (int i = 0; i < 8; i++) {
+                buf[pos++] = (byte) v;
+                v >>>= 8;
+            }
+        }
+
+        void putVarLong(long v) {
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        long getLong() throws IOException {
+            if (limit - pos < 8) {
+                throw new EOFException("Truncated frame");
+            }
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v |= (buf[pos++] & 0xFFL) << (i * 8);
+            }
+            return v;
+        }
+
+        long getVarLong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= limit) {
+                    throw new EOFException("Truncated frame");
+                }
+                final byte b = buf[pos++];
+                v |= (b & 0x7FL) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+            throw new IOException("Invalid frame");
+        }
+
+        /**
+         * writes the bytes from 0 to pos, preceded by their length
+         *
+         * @param out stream
+         * @throws IOException if it can't be written
+         */
+        void writeTo(OutputStream out) throws IOException {
+            out.write(pos);
+            out.write(pos >>> 8);
+            out.write(pos >>> 16);
+            out.write(pos >>> 24);
+            out.write(buf, 0, pos);
+        }
+
+        /**
+         * reads bytes written by writeTo. they can then be read from 0 to
+         * limit
+         *
+         * @param in stream
+         * @throws IOException if it can't be read
+         */
+        void readFrom(InputStream in) throws IOException {
+            int length = 0;
+            for (int i = 0; i < 4; i++) {
+                final int b = in.read();
+                if (b < 0) {
+                    throw new EOFException("Truncated block");
+                }
+                length |= b << (i * 8);
+            }
+            if (length < 0) {
+                throw new IOException("Invalid block");
+            }
+            pos = 0;
+            ensure(length);
+            for (int read = 0; read < length;) {
+                final int r = in.read(buf, read, length - read);
+                if (r < 0) {
+                    throw new EOFException("Truncated block");
+                }
+                read += r;
+            }
+            limit = length;
+        }
+    }
+}
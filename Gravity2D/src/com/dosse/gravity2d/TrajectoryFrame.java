@@ -0,0 +1,165 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+/**
+ * The points of a Simulation at the end of a recorded step: id, position,
+ * velocity, mass and density of each point.<br>
+ * The id of a point stays the same for as long as it's in the simulation,
+ * even if its index changes, so it can be used to follow it from one frame
+ * to the next.<br>
+ * Frames are filled by TrajectoryReader.readFrame, and can be reused for the
+ * next one to avoid creating garbage.
+ *
+ * @author Federico
+ */
+public final class TrajectoryFrame {
+
+    /**
+     * ids of the points, and x, y, velX, velY, mass, density (in this order,
+     * see TrajectoryFormat)
+     */
+    int[] id = new int[0];
+    double[][] columns = new double[TrajectoryFormat.N_COLUMNS][0];
+    int size = 0;
+    long step = 0;
+    double time = 0;
+
+    public TrajectoryFrame() {
+    }
+
+    /**
+     * makes room for n points
+     *
+     * @param n number of points
+     */
+    void ensureCapacity(int n) {
+        if (id.length < n) {
+            final int capacity = Math.max(n, id.length * 2);
+            id = new int[capacity];
+            for (int c = 0; c < columns.length; c++) {
+                columns[c] = new double[capacity];
+            }
+        }
+    }
+
+    /**
+     * copies the points of a store. only called by the recorder
+     *
+     * @param points points
+     * @param step step number
+     * @param time simulated time
+     */
+    void copy(PointStore points, long step, double time) {
+        final int n = points.size();
+        ensureCapacity(n);
+        System.arraycopy(points.id, 0, id, 0, n);
+        System.arraycopy(points.x, 0, columns[0], 0, n);
+        System.arraycopy(points.y, 0, columns[1], 0, n);
+        System.arraycopy(points.velX, 0, columns[2], 0, n);
+        System.arraycopy(points.velY, 0, columns[3], 0, n);
+        System.arraycopy(points.mass, 0, columns[4], 0, n);
+        System.arraycopy(points.density, 0, columns[5], 0, n);
+        size = n;
+        this.step = step;
+        this.time = time;
+    }
+
+    /**
+     *
+     * @return number of points
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     *
+     * @return number of steps between the start of the recording and this
+     * frame
+     */
+    public long getStep() {
+        return step;
+    }
+
+    /**
+     *
+     * @return simulated time
+     */
+    public double getSimulatedTime() {
+        return time;
+    }
+
+    /**
+     *
+     * @param i index
+     * @return id of point i
+     */
+    public int getId(int i) {
+        return id[i];
+    }
+
+    /**
+     *
+     * @param i index
+     * @return x coordinate of point i
+     */
+    public double getX(int i) {
+        return columns[0][i];
+    }
+
+    /**
+     *
+     * @param i index
+     * @return y coordinate of point i
+     */
+    public double getY(int i) {
+        return columns[1][i];
+    }
+
+    /**
+     *
+     * @param i index
+     * @return velocity on x of point i
+     */
+    public double getVelX(int i) {
+        return columns[2][i];
+    }
+
+    /**
+     *
+     * @param i index
+     * @return velocity on y of point i
+     */
+    public double getVelY(int i) {
+        return columns[3][i];
+    }
+
+    /**
+     *
+     * @param i index
+     * @return mass of point i
+     */
+    public double getMass(int i) {
+        return columns[4][i];
+    }
+
+    /**
+     *
+     * @param i index
+     * @return density of point i
+     */
+    public double getDensity(int i) {
+        return columns[5][i];
+    }
+
+    /**
+     *
+     * @param i index
+     * @return radius of point i, calculated like Point does
+     */
+    public double getRadius(int i) {
+        return Math.sqrt(Math.PI * columns[4][i] / columns[5][i]);
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the frames of a file written by TrajectoryRecorder, in any
+ * order.<br>
+ * Frames are grouped in blocks, and each block starts with a keyframe (see
+ * TrajectoryFormat): reading frame i decodes the frames of its block from the
+ * start up to i, unless the previous frame read was in the same block and
+ * before i. Reading the frames in order decodes each one once.<br>
+ * Blocks are memory mapped while they're decoded.<br>
+ * Not thread safe.
+ *
+ * @author Federico
+ */
+public class TrajectoryReader implements Closeable {
+
+    private final RandomAccessFile raf;
+    private final FileChannel ch;
+    private final int interval;
+    private final double quantum;
+
+    /**
+     * offset, first frame, stored length, number of frames and flags of each
+     * block
+     */
+    private long[] blockOffset = new long[16], blockFrame = new long[16], blockStored = new long[16];
+    private int[] blockFrames = new int[16], blockFlags = new int[16];
+    private int nBlocks = 0;
+    private long nFrames = 0;
+
+    /**
+     * block being decoded, and index of the next frame that will come out of
+     * it
+     */
+    private int current = -1;
+    private long next;
+    private InputStream stream;
+    private final Inflater inflater = new Inflater();
+    private final TrajectoryFormat.Codec codec;
+    private final TrajectoryFormat.Bytes raw = new TrajectoryFormat.Bytes();
+
+    /**
+     * opens a trajectory file. if it has no index (the recording was not
+     * closed), the complete blocks are found by scanning it
+     *
+     * @param f file
+     * @throws IOException if it can't be read or it's not a trajectory file
+     */
+    public TrajectoryReader(File f) throws IOException {
+        raf = new RandomAccessFile(f, "r");
+        ch = raf.getChannel();
+        try {
+            final ByteBuffer h = read(0, TrajectoryFormat.HEADER_SIZE);
+            if (h.getInt() != TrajectoryFormat.MAGIC) {
+                throw new IOException("Not a trajectory file");
+            }
+            if (h.getInt() > TrajectoryFormat.VERSION) {
+                throw new IOException("Trajectory file was saved by a newer version");
+            }
+            final int headerSize = h.getInt();
+            final int flags = h.getInt();
+            quantum = h.getDouble();
+            interval = h.getInt();
+            if (headerSize < TrajectoryFormat.HEADER_SIZE || interval <= 0 || ((flags & TrajectoryFormat.FLAG_QUANTIZED) != 0) != quantum > 0) {
+                throw new IOException("Invalid trajectory file");
+            }
+            codec = new TrajectoryFormat.Codec(quantum);
+            if (!readIndex()) {
+                scan(headerSize);
+            }
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * reads n bytes at a position
+     */
+    private ByteBuffer read(long pos, int n) throws IOException {
+        final ByteBuffer b = ByteBuffer.allocate(n).order(ByteOrder.LITTLE_ENDIAN);
+        while (b.hasRemaining()) {
+            if (ch.read(b, pos + b.position()) < 0) {
+                throw new IOException("Truncated trajectory file");
+            }
+        }
+        b.flip();
+        return b;
+    }
+
+    /**
+     * loads the blocks from the index at the end of the file
+     *
+     * @return false if there's no valid index
+     */
+    private boolean readIndex() throws IOException {
+        final long size = ch.size();
+        if (size < TrajectoryFormat.HEADER_SIZE + TrajectoryFormat.TRAILER_SIZE) {
+            return false;
+        }
+        final ByteBuffer t = read(size - TrajectoryFormat.TRAILER_SIZE, TrajectoryFormat.TRAILER_SIZE);
+        final long offset = t.getLong();
+        final int n = t.getInt();
+        if (t.getInt() != TrajectoryFormat.INDEX_MAGIC || n < 0 || offset + (long) n * TrajectoryFormat.INDEX_ENTRY_SIZE + TrajectoryFormat.TRAILER_SIZE != size) {
+            return false;
+        }
+        final ByteBuffer index = read(offset, n * TrajectoryFormat.INDEX_ENTRY_SIZE);
+        for (int i = 0; i < n; i++) {
+            final long pos = index.getLong(), first = index.getLong();
+            index.getDouble(); //time of the first frame
+            if (!addBlock(pos, first, offset)) {
+                throw new IOException("Invalid trajectory file");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * finds the complete blocks by reading their headers one after the
+     * other
+     */
+    private void scan(long pos) throws IOException {
+        final long size = ch.size();
+        while (pos + TrajectoryFormat.BLOCK_HEADER_SIZE <= size && addBlock(pos, nFrames, size)) {
+            pos += TrajectoryFormat.BLOCK_HEADER_SIZE + blockStored[nBlocks - 1];
+        }
+    }
+
+    /**
+     * reads the header of a block and adds it to the list
+     *
+     * @param pos offset of the block
+     * @param first expected first frame
+     * @param end the block must end before this
+     * @return false if the block is not valid
+     */
+    private boolean addBlock(long pos, long first, long end) throws IOException {
+        final ByteBuffer h = read(pos, TrajectoryFormat.BLOCK_HEADER_SIZE);
+        final int magic = h.getInt(), flags = h.getInt();
+        final long firstFrame = h.getLong();
+        h.getLong(); //raw length
+        final long stored = h.getLong();
+        final int frames = h.getInt();
+        if (magic != TrajectoryFormat.BLOCK_MAGIC || firstFrame != first || frames <= 0 || stored < 0 || pos + TrajectoryFormat.BLOCK_HEADER_SIZE + stored > end || stored > Integer.MAX_VALUE) {
+            return false;
+        }
+        if (nBlocks == blockOffset.length) {
+            final int capacity = nBlocks * 2;
+            blockOffset = Arrays.copyOf(blockOffset, capacity);
+            blockFrame = Arrays.copyOf(blockFrame, capacity);
+            blockStored = Arrays.copyOf(blockStored, capacity);
+            blockFrames = Arrays.copyOf(blockFrames, capacity);
+            blockFlags = Arrays.copyOf(blockFlags, capacity);
+        }
+        blockOffset[nBlocks] = pos;
+        blockFrame[nBlocks] = firstFrame;
+        blockStored[nBlocks] = stored;
+        blockFrames[nBlocks] = frames;
+        blockFlags[nBlocks] = flags;
+        nBlocks++;
+        nFrames = firstFrame + frames;
+        return true;
+    }
+
+    /**
+     *
+     * @return number of frames
+     */
+    public long getFrameCount() {
+        return nFrames;
+    }
+
+    /**
+     *
+     * @return number of steps between 2 frames
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     *
+     * @return the positions were rounded to multiples of this, or 0 if they
+     * were not quantized
+     */
+    public double getQuantum() {
+        return quantum;
+    }
+
+    /**
+     * reads a frame
+     *
+     * @param index index of the frame, from 0 to getFrameCount()-1
+     * @param f frame to fill, or null to create a new one
+     * @return the frame
+     * @throws IOException if the file can't be read or it's not valid
+     */
+    public TrajectoryFrame readFrame(long index, TrajectoryFrame f) throws IOException {
+        if (index < 0 || index >= nFrames) {
+            throw new IndexOutOfBoundsException("" + index);
+        }
+        if (f == null) {
+            f = new TrajectoryFrame();
+        }
+        final int b = block(index);
+        if (b != current || index < next) {
+            openBlock(b);
+        }
+        try {
+            while (next <= index) {
+                raw.readFrom(stream);
+                codec.decode(raw, f);
+                next++;
+            }
+        } catch (IOException ex) {
+            current = -1; //start from the keyframe next time
+            throw ex;
+        }
+        return f;
+    }
+
+    /**
+     * @return the block that contains a frame
+     */
+    private int block(long index) {
+        final int b = Arrays.binarySearch(blockFrame, 0, nBlocks, index);
+        return b >= 0 ? b : -b - 2; //the block that starts before index
+    }
+
+    /**
+     * reading a frame decodes the frames from its keyframe. reading frames
+     * backward is fastest if the frames of each block are read in
+     * increasing order
+     *
+     * @param index index of a frame, from 0 to getFrameCount()-1
+     * @return index of the keyframe of the block that contains it
+     */
+    public long getKeyframe(long index) {
+        if (index < 0 || index >= nFrames) {
+            throw new IndexOutOfBoundsException("" + index);
+        }
+        return blockFrame[block(index)];
+    }
+
+    /**
+     * starts decoding a block from its keyframe
+     */
+    private void openBlock(int b) throws IOException {
+        current = -1;
+        final ByteBuffer data = ch.map(FileChannel.MapMode.READ_ONLY, blockOffset[b] + TrajectoryFormat.BLOCK_HEADER_SIZE, blockStored[b]);
+        if ((blockFlags[b] & TrajectoryFormat.FLAG_COMPRESSED) != 0) {
+            inflater.reset();
+            stream = new InflaterInputStream(new ByteBufferInputStream(data), inflater, 1 << 16);
+        } else {
+            stream = new ByteBufferInputStream(data);
+        }
+        codec.reset();
+        current = b;
+        next = blockFrame[b];
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        stream = null;
+        current = -1;
+        raf.close();
+    }
+
+    /**
+     * reads a mapped block
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer b;
+
+        ByteBufferInputStream(ByteBuffer b) {
+            this.b = b;
+        }
+
+        @Override
+        public int read() {
+            return b.hasRemaining() ? b.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!b.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, b.remaining());
+            b.get(buf, off, n);
+            return n;
+        }
+    }
+}
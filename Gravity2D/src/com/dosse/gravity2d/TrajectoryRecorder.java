@@ -0,0 +1,401 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Records the trajectories of all the points of a simulation to a file, one
+ * frame every few steps, to be read with TrajectoryReader.<br>
+ * Attach it with Simulation.setRecorder. At the end of a step, the master
+ * copies the points into a free frame (a few array copies) and goes on; a
+ * background thread encodes the frames as deltas of the previous ones,
+ * optionally with quantized positions, compresses them in blocks and writes
+ * them (see TrajectoryFormat). There are a few frames, so the writer can fall
+ * behind for a few steps; if it falls behind more than that, the master waits
+ * for it instead of dropping frames.<br>
+ * Call close() at the end of the recording, to write the index.
+ *
+ * @author Federico
+ */
+public class TrajectoryRecorder {
+
+    /**
+     * number of frames that can wait to be written
+     */
+    private static final int BUFFERED_FRAMES = 3;
+
+    /**
+     * how often the master, waiting for a free frame, checks that the writer
+     * is still alive (milliseconds)
+     */
+    private static final long POLL_INTERVAL = 100;
+
+    private final int interval;
+    private final boolean compress;
+    private final TrajectoryFormat.Codec codec;
+
+    /**
+     * frames that the master can fill, and frames waiting for the writer.
+     * end is put in full by close()
+     */
+    private final ArrayBlockingQueue<TrajectoryFrame> free = new ArrayBlockingQueue<TrajectoryFrame>(BUFFERED_FRAMES), full = new ArrayBlockingQueue<TrajectoryFrame>(BUFFERED_FRAMES + 1);
+    private final TrajectoryFrame end = new TrajectoryFrame();
+
+    /**
+     * steps seen by the master since the recorder was attached. only used by
+     * the master
+     */
+    private long steps = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * the file, and what the writer has written to it
+     */
+    private final FileOutputStream file;
+    private final CountingOutputStream out;
+    private final TrajectoryFormat.Bytes raw = new TrajectoryFormat.Bytes();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private OutputStream block;
+    private long blockOffset, blockFirstFrame, blockRawBytes;
+    private int blockFrames = 0;
+
+    /**
+     * index of the blocks: offset, first frame and time of the first frame
+     */
+    private long[] indexOffset = new long[16], indexFrame = new long[16];
+    private double[] indexTime = new double[16];
+    private int nBlocks = 0;
+
+    private volatile long frames = 0, stalls = 0;
+    private volatile IOException error = null;
+
+    private final Thread writer = new Thread() {
+        @Override
+        public void run() {
+            try {
+                for (;;) {
+                    final TrajectoryFrame f = take(full);
+                    if (f == end) {
+                        break;
+                    }
+                    //after an error, the frames are only given back, so the master never waits for them
+                    try {
+                        if (error == null) {
+                            write(f);
+                        }
+                    } catch (Throwable t) {
+                        fail(t);
+                    } finally {
+                        free.add(f);
+                    }
+                }
+                if (error == null) {
+                    try {
+                        finish();
+                    } catch (Throwable t) {
+                        fail(t);
+                    }
+                }
+            } finally {
+                deflater.end();
+                try {
+                    file.close();
+                } catch (IOException ex) {
+                    if (error == null) {
+                        error = ex;
+                    }
+                }
+            }
+        }
+    };
+
+    private void fail(Throwable t) {
+        error = t instanceof IOException ? (IOException) t : new IOException("Trajectory writer failed", t);
+    }
+
+    /**
+     * creates a recorder that records every step, without quantization,
+     * compressed
+     *
+     * @param f file, overwritten if it exists
+     * @throws IOException if it can't be created
+     */
+    public TrajectoryRecorder(File f) throws IOException {
+        this(f, 1, 0, true);
+    }
+
+    /**
+     * creates a recorder
+     *
+     * @param f file, overwritten if it exists
+     * @param interval record one step every interval steps &gt;0
+     * @param quantum if &gt;0, positions are rounded to multiples of this,
+     * which makes them much smaller. 0 to keep them as they are
+     * @param compress true to deflate the blocks
+     * @throws IOException if the file can't be created
+     */
+    public TrajectoryRecorder(File f, int interval, double quantum, boolean compress) throws IOException {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Interval must be >0");
+        }
+        if (!(quantum >= 0) || Double.isInfinite(quantum)) {
+            throw new IllegalArgumentException("Quantum must be >=0");
+        }
+        this.interval = interval;
+        this.compress = compress;
+        codec = new TrajectoryFormat.Codec(quantum);
+        for (int i = 0; i < BUFFERED_FRAMES; i++) {
+            free.add(new TrajectoryFrame());
+        }
+        file = new FileOutputStream(f);
+        out = new CountingOutputStream(new BufferedOutputStream(file, 1 << 16));
+        final ByteBuffer h = ByteBuffer.allocate(TrajectoryFormat.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        h.putInt(TrajectoryFormat.MAGIC).putInt(TrajectoryFormat.VERSION).putInt(TrajectoryFormat.HEADER_SIZE);
+        h.putInt((quantum > 0 ? TrajectoryFormat.FLAG_QUANTIZED : 0) | (compress ? TrajectoryFormat.FLAG_COMPRESSED : 0));
+        h.putDouble(quantum).putInt(interval);
+        out.write(h.array());
+        writer.setName("Gravity - Trajectory Writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * called by the master at the end of each step, while holding the lock on
+     * the points. copies them into a free frame, waiting for one if the
+     * writer is behind. nothing is recorded after the writer failed, or if
+     * the master is interrupted while it waits
+     *
+     * @param s points
+     * @param time simulated time
+     */
+    void capture(PointStore s, double time) {
+        final long step = steps++;
+        if (closed || error != null || step % interval != 0) {
+            return;
+        }
+        TrajectoryFrame f = free.poll();
+        if (f == null) {
+            stalls++;
+            while (f == null) {
+                if (error != null || !writer.isAlive()) {
+                    return;
+                }
+                try {
+                    f = free.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        f.copy(s, step, time);
+        full.add(f);
+    }
+
+    /**
+     * waits for a frame, without giving up if interrupted (the writer must
+     * take all of them). the interrupt flag is set again before returning
+     */
+    private static TrajectoryFrame take(ArrayBlockingQueue<TrajectoryFrame> q) {
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                try {
+                    return q.take();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * encodes a frame into the current block, and closes the block if it's
+     * full. writer thread only
+     *
+     * @param f frame
+     * @throws IOException if it can't be written
+     */
+    private void write(TrajectoryFrame f) throws IOException {
+        if (blockFrames == 0) {
+            //new block: a placeholder header, filled when the block is closed
+            out.flush();
+            blockOffset = out.count;
+            blockFirstFrame = frames;
+            blockRawBytes = 0;
+            if (nBlocks == indexOffset.length) {
+                indexOffset = Arrays.copyOf(indexOffset, nBlocks * 2);
+                indexFrame = Arrays.copyOf(indexFrame, nBlocks * 2);
+                indexTime = Arrays.copyOf(indexTime, nBlocks * 2);
+            }
+            indexOffset[nBlocks] = blockOffset;
+            indexFrame[nBlocks] = blockFirstFrame;
+            indexTime[nBlocks] = f.time;
+            out.write(new byte[TrajectoryFormat.BLOCK_HEADER_SIZE]);
+            codec.reset();
+            if (compress) {
+                deflater.reset();
+                block = new DeflaterOutputStream(out, deflater, 1 << 16);
+            } else {
+                block = out;
+            }
+        }
+        raw.pos = 0;
+        codec.encode(f, raw);
+        raw.writeTo(block);
+        blockRawBytes += 4 + raw.pos;
+        blockFrames++;
+        frames++;
+        if (blockFrames == TrajectoryFormat.MAX_BLOCK_FRAMES || blockRawBytes >= TrajectoryFormat.MAX_BLOCK_BYTES) {
+            closeBlock();
+        }
+    }
+
+    /**
+     * finishes the current block and fills its header. writer thread only
+     *
+     * @throws IOException if it can't be written
+     */
+    private void closeBlock() throws IOException {
+        if (block instanceof DeflaterOutputStream) {
+            ((DeflaterOutputStream) block).finish();
+        }
+        out.flush();
+        final ByteBuffer h = ByteBuffer.allocate(TrajectoryFormat.BLOCK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        h.putInt(TrajectoryFormat.BLOCK_MAGIC).putInt(compress ? TrajectoryFormat.FLAG_COMPRESSED : 0);
+        h.putLong(blockFirstFrame).putLong(blockRawBytes).putLong(out.count - blockOffset - TrajectoryFormat.BLOCK_HEADER_SIZE).putInt(blockFrames);
+        h.flip();
+        final FileChannel ch = file.getChannel();
+        while (h.hasRemaining()) {
+            ch.write(h, blockOffset + h.position());
+        }
+        nBlocks++;
+        blockFrames = 0;
+        block = null;
+    }
+
+    /**
+     * closes the last block and writes the index. writer thread only
+     *
+     * @throws IOException if it can't be written
+     */
+    private void finish() throws IOException {
+        if (blockFrames > 0) {
+            closeBlock();
+        }
+        final long offset = out.count;
+        final ByteBuffer b = ByteBuffer.allocate(nBlocks * TrajectoryFormat.INDEX_ENTRY_SIZE + TrajectoryFormat.TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < nBlocks; i++) {
+            b.putLong(indexOffset[i]).putLong(indexFrame[i]).putDouble(indexTime[i]);
+        }
+        b.putLong(offset).putInt(nBlocks).putInt(TrajectoryFormat.INDEX_MAGIC);
+        out.write(b.array());
+        out.flush();
+    }
+
+    /**
+     * waits until all the recorded frames are written, then writes the index
+     * and closes the file. frames are not recorded anymore after this
+     *
+     * @throws IOException if some frames could not be written
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (!closed) {
+                closed = true;
+                //the master may be in capture, adding its last frame: there's room for it and for end
+                while (!full.offer(end) && writer.isAlive()) {
+                    Utils.releaseCPU();
+                }
+            }
+        }
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     *
+     * @return number of frames written so far
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * if this grows, the writer can't keep up with the simulation, and slows
+     * it down
+     *
+     * @return number of times the master had to wait for a free frame
+     */
+    public long getStalls() {
+        return stalls;
+    }
+
+    /**
+     *
+     * @return the error that stopped the recording, or null
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    /**
+     * counts the bytes written, to know the offset of the blocks
+     */
+    private static final class CountingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
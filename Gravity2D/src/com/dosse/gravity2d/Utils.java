@@ -3,6 +3,8 @@
  */
 package com.dosse.gravity2d;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -52,4 +54,34 @@ public class Utils {
         }
     }
 
+    /**
+     * the ThreadMXBean is kept here because getting it allocates memory
+     */
+    private static ThreadMXBean threadBean = null;
+
+    /**
+     * bytes allocated so far by a thread. on recent JVMs, the measurement
+     * doesn't allocate anything itself.<br>
+     * only works on JVMs that support it (like HotSpot)
+     *
+     * @param t thread
+     * @return allocated bytes, -1 if it can't be measured
+     */
+    public static final long getAllocatedBytes(Thread t) {
+        try {
+            if (threadBean == null) {
+                threadBean = ManagementFactory.getThreadMXBean();
+            }
+            final ThreadMXBean bean = threadBean;
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                final com.sun.management.ThreadMXBean b = (com.sun.management.ThreadMXBean) bean;
+                if (b.isThreadAllocatedMemorySupported() && b.isThreadAllocatedMemoryEnabled()) {
+                    return b.getThreadAllocatedBytes(t.getId());
+                }
+            }
+        } catch (Throwable e) {
+        }
+        return -1;
+    }
+
 }
@@ -0,0 +1,258 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A fixed set of worker threads shared by several Simulations.<br>
+ * Each simulation gets its own executor with newExecutor(), and they all run
+ * their phases on the same workers, so running many simulations in the same
+ * JVM doesn't create more threads than cores.<br>
+ * Each phase is split into chunks. The workers take chunks from the phases
+ * that are running in round-robin, one chunk at a time, so each simulation
+ * gets a fair share of the workers no matter how large its phases are.<br>
+ * getShared() returns a pool for the whole JVM, with one worker per core.
+ *
+ * @author Federico
+ */
+public final class WorkerPool {
+
+    /**
+     * chunks cheaper than this (in items*cost) are not split further
+     */
+    private static final long MIN_CHUNK_COST = 20000;
+
+    /**
+     * a phase is split in about this many chunks per worker, so that workers
+     * that finish early can help the others
+     */
+    private static final int CHUNKS_PER_WORKER = 4;
+
+    private static WorkerPool shared;
+
+    private final Worker[] workers;
+
+    /**
+     * executors with chunks that haven't been taken yet, and the next one a
+     * worker will take a chunk from. guarded by this
+     */
+    private PooledExecutor[] active = new PooledExecutor[8];
+    private int nActive = 0, cursor = 0;
+    private boolean shutdown = false;
+
+    /**
+     * creates a pool with one worker per core
+     */
+    public WorkerPool() {
+        this(Runtime.getRuntime().availableProcessors(), Settings.SLAVE_PRIORITY_ACTIVE);
+    }
+
+    /**
+     * creates a pool and starts its workers
+     *
+     * @param nThreads number of workers &gt;0
+     * @param priority priority of the workers
+     */
+    public WorkerPool(int nThreads, int priority) {
+        if (nThreads <= 0) {
+            throw new IllegalArgumentException("Number of threads must be >0");
+        }
+        workers = new Worker[nThreads];
+        for (int i = 0; i < nThreads; i++) {
+            workers[i] = new Worker(priority);
+        }
+    }
+
+    /**
+     *
+     * @return the pool shared by the whole JVM, created the first time with
+     * one worker per core. it's never shut down, its workers are daemons
+     */
+    public static synchronized WorkerPool getShared() {
+        if (shared == null) {
+            shared = new WorkerPool();
+        }
+        return shared;
+    }
+
+    /**
+     * creates an executor that runs on this pool. each simulation needs its
+     * own. shutting down the executor (when the simulation stops) doesn't
+     * shut down the pool
+     *
+     * @return executor
+     */
+    public StepExecutor newExecutor() {
+        return new PooledExecutor();
+    }
+
+    /**
+     *
+     * @return number of workers
+     */
+    public int getParallelism() {
+        return workers.length;
+    }
+
+    /**
+     * stops the workers once the running phases are done. executors of this
+     * pool must not be used anymore
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * takes a chunk from the active executors, in round-robin, waiting if
+     * there are none. called with the lock on the pool held
+     *
+     * @return executor of the chunk, with the chunk in its taken field, or
+     * null if the pool is shut down
+     */
+    private PooledExecutor take() {
+        while (nActive == 0) {
+            if (shutdown) {
+                return null;
+            }
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+            }
+        }
+        if (cursor >= nActive) {
+            cursor = 0;
+        }
+        final PooledExecutor e = active[cursor];
+        e.taken = e.nextChunk++;
+        if (e.nextChunk == e.nChunks) {
+            //all the chunks have been taken, remove it, keeping the order of the others
+            System.arraycopy(active, cursor + 1, active, cursor, nActive - cursor - 1);
+            active[--nActive] = null;
+        } else {
+            cursor++;
+        }
+        return e;
+    }
+
+    /**
+     * Worker threads run chunks of all the executors of the pool
+     */
+    private class Worker extends Thread {
+
+        Worker(int priority) {
+            setName("Gravity - Pool Worker");
+            setPriority(priority);
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                final PooledExecutor e;
+                final int chunk;
+                synchronized (WorkerPool.this) {
+                    e = take();
+                    if (e == null) {
+                        return;
+                    }
+                    chunk = e.taken;
+                }
+                e.runChunk(chunk);
+            }
+        }
+    }
+
+    /**
+     * Executor of a simulation that runs on the pool
+     */
+    private class PooledExecutor extends StepExecutor {
+
+        /**
+         * current phase. written by the caller before the executor is added
+         * to active, read by the workers after they take a chunk. nextChunk
+         * and taken are guarded by the pool
+         */
+        private RangeTask task;
+        private int n, grain, nChunks, nextChunk, taken;
+        private volatile Thread caller;
+        private volatile Throwable error;
+
+        /**
+         * chunks not completed yet in the current phase. the worker that
+         * completes the last one unparks the caller
+         */
+        private final AtomicInteger remaining = new AtomicInteger();
+
+        @Override
+        protected void execute(int n, long cost, RangeTask task) {
+            if (Thread.currentThread() instanceof Worker) {
+                task.run(0, n); //a worker can't wait for the other workers
+                return;
+            }
+            final long perWorker = (n + (long) workers.length * CHUNKS_PER_WORKER - 1) / ((long) workers.length * CHUNKS_PER_WORKER);
+            grain = (int) Math.min(n, Math.max(Math.max(1, MIN_CHUNK_COST / cost), perWorker));
+            nChunks = (n + grain - 1) / grain;
+            this.n = n;
+            this.task = task;
+            caller = Thread.currentThread();
+            remaining.set(nChunks);
+            synchronized (WorkerPool.this) {
+                if (shutdown) {
+                    throw new IllegalStateException("Pool is shut down");
+                }
+                nextChunk = 0;
+                if (nActive == active.length) {
+                    active = Arrays.copyOf(active, nActive * 2);
+                }
+                active[nActive++] = this;
+                WorkerPool.this.notifyAll();
+            }
+            while (remaining.get() > 0) {
+                LockSupport.park(this); //wait for the workers to complete
+            }
+            this.task = null;
+            final Throwable t = error;
+            if (t != null) {
+                error = null;
+                throw new IllegalStateException("Worker thread failed", t);
+            }
+        }
+
+        /**
+         * runs a chunk of the current phase
+         *
+         * @param chunk chunk
+         */
+        void runChunk(int chunk) {
+            try {
+                final int from = chunk * grain;
+                task.run(from, Math.min(from + grain, n));
+            } catch (Throwable t) {
+                error = t;
+            }
+            if (remaining.decrementAndGet() == 0) {
+                LockSupport.unpark(caller);
+            }
+        }
+
+        @Override
+        public int getParallelism() {
+            return workers.length;
+        }
+
+        /**
+         * the pool is shared, it stays up
+         */
+        @Override
+        protected void shutdown() {
+        }
+    }
+}
@@ -33,26 +33,4 @@ public class Demo extends Simulation {
         }
     }
 
-    public double[][] getPlotData() {
-        boolean tryAgain = false;
-        do {
-            try {
-                final double[][] plotData = new double[points.size()][4];
-                int i = 0;
-                for (Point p : points) {
-                    plotData[i][0] = p.getX();
-                    plotData[i][1] = p.getY();
-                    plotData[i][2] = p.getRadius();
-                    plotData[i][3] = p.getDensity();
-                    i++;
-                }
-                return plotData;
-            } catch (Throwable e) {
-                //I did not synchronize access to the points list for performance reasons. In the rare event that a sync problem arises, ignore it
-                tryAgain = true;
-            }
-        } while (tryAgain);
-        return null; //unreachable, but java complained
-    }
-
 }
@@ -3,7 +3,8 @@
  */
 package com.dosse.gravity2d.demo;
 
-import com.dosse.gravity2d.Point;
+import com.dosse.gravity2d.Snapshot;
+import com.dosse.gravity2d.TrajectoryFrame;
 import com.dosse.gravity2d.Utils;
 import java.awt.Color;
 import java.awt.Component;
@@ -14,10 +15,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
@@ -38,6 +36,14 @@ public class GUI extends javax.swing.JFrame {
 
     private final Timer guiUpdater;
 
+    /**
+     * the recording being played, or null to show the simulation. the
+     * simulation is paused while it's played, and resumed if it wasn't paused
+     * before
+     */
+    private Replay player = null;
+    private boolean pausedBeforeReplay = false;
+
     /**
      * Creates new form GUI
      */
@@ -102,18 +108,28 @@ public class GUI extends javax.swing.JFrame {
             Thread.currentThread().setPriority(Thread.NORM_PRIORITY + 3);
             g.setColor(BACKGROUND);
             g.fillRect(0, 0, c.getWidth(), c.getHeight());
-            final double[][] plotData = d.getPlotData();
             final double centerX = -cameraX + (c.getWidth() / 2) * zoom, centerY = -cameraY + (c.getHeight() / 2) * zoom;
-            for (double[] pp : plotData) {
-                final int diameter = (int) ((pp[2] / zoom) * 2);
-                final int px = (int) ((pp[0] + centerX) / zoom) - diameter / 2, py = (int) ((pp[1] + centerY) / zoom) - diameter / 2;
-                if (px < -diameter || px > c.getWidth() || py < -diameter || py > c.getHeight()) {
-                    continue;
+            final Replay p = player;
+            if (p != null) {
+                final TrajectoryFrame frame = p.acquireFrame();
+                try {
+                    for (int i = 0; i < frame.size(); i++) {
+                        drawPoint(c, g, centerX, centerY, frame.getX(i), frame.getY(i), frame.getRadius(i), frame.getDensity(i));
+                    }
+                    status.setText("Replay: frame " + (long) p.getPosition() + "/" + (p.getFrameCount() - 1) + " | " + "Time: " + (float) frame.getSimulatedTime() + " | " + "Speed: " + (float) p.getSpeed() + " FPS" + (p.isPlaying() ? "" : " (paused)") + " | " + frame.size() + " Points" + " | " + "Scale: " + (int) zoom);
+                } finally {
+                    p.releaseFrame(frame);
                 }
-                final float sat = (float) (pp[3] - 1) / 10;
-                final float lit = (float) pp[3];
-                g.setColor(new Color(Color.HSBtoRGB(0, sat > 1 ? 1 : sat, lit > 1 ? 1 : lit)));
-                g.fillOval(px, py, diameter > 1 ? diameter : 1, diameter > 1 ? diameter : 1);
+            } else {
+                final Snapshot snapshot = d.acquireSnapshot();
+                try {
+                    for (int i = 0; i < snapshot.size(); i++) {
+                        drawPoint(c, g, centerX, centerY, snapshot.getX(i), snapshot.getY(i), snapshot.getRadius(i), snapshot.getDensity(i));
+                    }
+                } finally {
+                    snapshot.release();
+                }
+                status.setText("Position: " + (int) cameraX + "," + (int) cameraY + " | " + "Scale: " + (int) zoom + " | " + d.getNPoints() + " Points" + " | " + d.getNThreads() + " Threads" + " | " + d.getSPS() + " SPS" + " | " + getCPULoad() + "% CPU");
             }
             if (dragging) {
                 g.setColor(POINT_BEFORE_CREATION);
@@ -123,11 +139,107 @@ public class GUI extends javax.swing.JFrame {
                     g.drawLine((int) dragStartX, (int) dragStartY, (int) mouseX, (int) mouseY);
                 }
             }
-            status.setText("Position: " + (int) cameraX + "," + (int) cameraY + " | " + "Scale: " + (int) zoom + " | " + d.getNPoints() + " Points" + " | " + d.getNThreads() + " Threads" + " | " + d.getSPS() + " SPS" + " | " + getCPULoad() + "% CPU");
             Thread.currentThread().setPriority(priority);
         }
     }
 
+    private void drawPoint(final Component c, final Graphics g, double centerX, double centerY, double x, double y, double radius, double density) {
+        final int diameter = (int) ((radius / zoom) * 2);
+        final int px = (int) ((x + centerX) / zoom) - diameter / 2, py = (int) ((y + centerY) / zoom) - diameter / 2;
+        if (px < -diameter || px > c.getWidth() || py < -diameter || py > c.getHeight()) {
+            return;
+        }
+        final float sat = (float) (density - 1) / 10;
+        final float lit = (float) density;
+        g.setColor(new Color(Color.HSBtoRGB(0, sat > 1 ? 1 : sat, lit > 1 ? 1 : lit)));
+        g.fillOval(px, py, diameter > 1 ? diameter : 1, diameter > 1 ? diameter : 1);
+    }
+
+    /**
+     * plays a recording instead of the simulation
+     *
+     * @param f trajectory file
+     * @throws IOException if it can't be read
+     */
+    private void startReplay(File f) throws IOException {
+        final Replay p = new Replay(f);
+        if (player == null) {
+            pausedBeforeReplay = d.pause;
+            d.pause = true;
+        } else {
+            player.close();
+        }
+        player = p;
+        dragging = false;
+        creatingAsteroids = false;
+    }
+
+    /**
+     * goes back to the simulation
+     */
+    private void stopReplay() {
+        if (player != null) {
+            player.close();
+            player = null;
+            d.pause = pausedBeforeReplay;
+        }
+    }
+
+    /**
+     * handles the playback keys while replaying: P or space plays/pauses, B
+     * reverses, +/- change speed, comma/period step one frame, page up/down
+     * jump 5% of the recording, home/end go to the ends, escape goes back to
+     * the simulation
+     *
+     * @return true if the key was used
+     */
+    private boolean replayKeyPressed(int key) {
+        final Replay p = player;
+        switch (key) {
+            case KeyEvent.VK_P:
+            case KeyEvent.VK_SPACE:
+                p.setPlaying(!p.isPlaying());
+                return true;
+            case KeyEvent.VK_B:
+                p.setSpeed(-p.getSpeed());
+                return true;
+            case KeyEvent.VK_ADD:
+            case KeyEvent.VK_EQUALS:
+            case KeyEvent.VK_PLUS:
+                p.setSpeed(Math.abs(p.getSpeed()) < 10000 ? p.getSpeed() * 2 : p.getSpeed());
+                return true;
+            case KeyEvent.VK_SUBTRACT:
+            case KeyEvent.VK_MINUS:
+                p.setSpeed(Math.abs(p.getSpeed()) > 0.1 ? p.getSpeed() / 2 : p.getSpeed());
+                return true;
+            case KeyEvent.VK_COMMA:
+                p.setPlaying(false);
+                p.seek(Math.floor(p.getPosition()) - 1);
+                return true;
+            case KeyEvent.VK_PERIOD:
+                p.setPlaying(false);
+                p.seek(Math.floor(p.getPosition()) + 1);
+                return true;
+            case KeyEvent.VK_PAGE_UP:
+                p.seek(p.getPosition() - p.getFrameCount() / 20.0);
+                return true;
+            case KeyEvent.VK_PAGE_DOWN:
+                p.seek(p.getPosition() + p.getFrameCount() / 20.0);
+                return true;
+            case KeyEvent.VK_HOME:
+                p.seek(0);
+                return true;
+            case KeyEvent.VK_END:
+                p.seek(p.getFrameCount() - 1);
+                return true;
+            case KeyEvent.VK_ESCAPE:
+                stopReplay();
+                return true;
+            default:
+                return false;
+        }
+    }
+
     /**
      * This method is called from within the constructor to initialize the form.
      * WARNING: Do NOT modify this code. The content of this method is always
@@ -154,6 +266,7 @@ public class GUI extends javax.swing.JFrame {
         reset = new javax.swing.JMenuItem();
         load = new javax.swing.JMenuItem();
         save = new javax.swing.JMenuItem();
+        openRecording = new javax.swing.JMenuItem();
         quit = new javax.swing.JMenuItem();
         jMenu2 = new javax.swing.JMenu();
         about = new javax.swing.JMenuItem();
@@ -307,6 +420,14 @@ public class GUI extends javax.swing.JFrame {
         });
         jMenu1.add(save);
 
+        openRecording.setText("Play recording...");
+        openRecording.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                openRecordingActionPerformed(evt);
+            }
+        });
+        jMenu1.add(openRecording);
+
         quit.setText("Quit");
         quit.addActionListener(new java.awt.event.ActionListener() {
             public void actionPerformed(java.awt.event.ActionEvent evt) {
@@ -349,6 +470,9 @@ public class GUI extends javax.swing.JFrame {
     private boolean leftPressed, rightPressed, upPressed, downPressed;
 
     private void canvasKeyPressed(java.awt.event.KeyEvent evt) {//GEN-FIRST:event_canvasKeyPressed
+        if (player != null && replayKeyPressed(evt.getKeyCode())) {
+            return;
+        }
         if (evt.getKeyCode() == KeyEvent.VK_LEFT) {
             leftPressed = true;
         }
@@ -392,6 +516,9 @@ public class GUI extends javax.swing.JFrame {
     private void canvasMousePressed(java.awt.event.MouseEvent evt) {//GEN-FIRST:event_canvasMousePressed
         mouseX = evt.getX();
         mouseY = evt.getY();
+        if (player != null) {
+            return;
+        }
         if (planetsMode.isSelected() || starMode.isSelected()) {
             dragStartX = evt.getX();
             dragStartY = evt.getY();
@@ -406,6 +533,9 @@ public class GUI extends javax.swing.JFrame {
     private void canvasMouseReleased(java.awt.event.MouseEvent evt) {//GEN-FIRST:event_canvasMouseReleased
         mouseX = evt.getX();
         mouseY = evt.getY();
+        if (player != null) {
+            return;
+        }
         if (planetsMode.isSelected()) {
             final double dx = evt.getX() - dragStartX, dy = evt.getY() - dragStartY;
             final double xInSimulation = cameraX + (dragStartX - canvas.getWidth() / 2) * zoom, yInSimulation = cameraY + (dragStartY - canvas.getHeight() / 2) * zoom;
@@ -430,6 +560,7 @@ public class GUI extends javax.swing.JFrame {
 
     private void formWindowClosing(java.awt.event.WindowEvent evt) {//GEN-FIRST:event_formWindowClosing
         guiUpdater.stop();
+        stopReplay();
         d.stopASAP = true;
         dispose();
     }//GEN-LAST:event_formWindowClosing
@@ -466,27 +597,18 @@ public class GUI extends javax.swing.JFrame {
         if (x == null) {
             return;
         }
+        stopReplay();
         try {
-            Point[] state;
-            double cx, cy;
-            double z;
-            ObjectInputStream ois = new ObjectInputStream(new FileInputStream(x));
-            state = (Point[]) (ois.readObject());
-            cx = ois.readDouble();
-            cy = ois.readDouble();
-            z = ois.readDouble();
-            ois.close();
-            d.loadState(state);
-            cameraX = cx;
-            cameraY = cy;
-            zoom = z;
+            final double[] view = d.loadState(x);
+            cameraX = view[0];
+            cameraY = view[1];
+            zoom = view[2] >= 1 ? view[2] : 1;
         } catch (Throwable ex) {
             JOptionPane.showMessageDialog(new JOptionPane(), "Invalid save file\n" + ex, getTitle(), JOptionPane.ERROR_MESSAGE);
         }
     }//GEN-LAST:event_loadActionPerformed
 
     private void saveActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_saveActionPerformed
-        Point[] state = d.saveState();
         JFileChooser c = new JFileChooser();
         c.setFileFilter(SAVEFILE_FILTER);
         c.setMultiSelectionEnabled(false);
@@ -498,18 +620,41 @@ public class GUI extends javax.swing.JFrame {
             x = new File(x.getAbsolutePath() + ".gds");
         }
         try {
-            ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(x));
-            oos.writeObject(state);
-            oos.writeDouble(cameraX);
-            oos.writeDouble(cameraY);
-            oos.writeDouble(zoom);
-            oos.close();
+            d.saveState(x, new double[]{cameraX, cameraY, zoom});
         } catch (Throwable ex) {
             JOptionPane.showMessageDialog(rootPane, "Save failed\n" + ex, getTitle(), JOptionPane.ERROR_MESSAGE);
         }
     }//GEN-LAST:event_saveActionPerformed
 
+    private static final FileFilter RECORDING_FILTER = new FileFilter() {
+        @Override
+        public boolean accept(File f) {
+            return f.isDirectory() || f.getName().toLowerCase().endsWith(".gtr");
+        }
+
+        @Override
+        public String getDescription() {
+            return "Gravity trajectory recording (*.gtr)";
+        }
+    };
+    private void openRecordingActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_openRecordingActionPerformed
+        JFileChooser c = new JFileChooser();
+        c.setFileFilter(RECORDING_FILTER);
+        c.setMultiSelectionEnabled(false);
+        c.showOpenDialog(rootPane);
+        File x = c.getSelectedFile();
+        if (x == null) {
+            return;
+        }
+        try {
+            startReplay(x);
+        } catch (Throwable ex) {
+            JOptionPane.showMessageDialog(rootPane, "Invalid recording\n" + ex, getTitle(), JOptionPane.ERROR_MESSAGE);
+        }
+    }//GEN-LAST:event_openRecordingActionPerformed
+
     private void resetActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_resetActionPerformed
+        stopReplay();
         d.reset();
         cameraX = 0;
         cameraY = 0;
@@ -577,6 +722,7 @@ public class GUI extends javax.swing.JFrame {
     private javax.swing.JMenuBar jMenuBar1;
     private javax.swing.JPanel jPanel1;
     private javax.swing.JMenuItem load;
+    private javax.swing.JMenuItem openRecording;
     private javax.swing.JToggleButton planetsMode;
     private javax.swing.JMenuItem quit;
     private javax.swing.JMenuItem reset;
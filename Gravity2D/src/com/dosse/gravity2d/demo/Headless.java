@@ -0,0 +1,167 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d.demo;
+
+import com.dosse.gravity2d.Checkpointer;
+import com.dosse.gravity2d.Simulation;
+import com.dosse.gravity2d.SimulationConfig;
+import com.dosse.gravity2d.TrajectoryRecorder;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Runs a saved simulation without the GUI, as fast as possible.<br>
+ * Usage: Headless input.gds output.gds (-steps N | -time T) [-config
+ * file.properties] [-checkpoint directory [-checkpointInterval seconds]]
+ * [-record file.gtr [-recordInterval steps] [-quantum q]]<br>
+ * Loads the points from input.gds (binary or old format), runs N steps (or
+ * until the simulated time reaches T), writes the final state to output.gds
+ * in the binary format (with the camera of the input), and prints the
+ * throughput on stdout as key=value lines.<br>
+ * The settings come from the config file if given, otherwise from the
+ * gravity2d.* system properties (see SimulationConfig). The SPS limit is
+ * always disabled.<br>
+ * With -checkpoint, checkpoints are saved in the background in that
+ * directory, every 60 seconds by default (see Checkpointer). With -record,
+ * the trajectories are recorded (see TrajectoryRecorder).<br>
+ * The checksum of the final state is printed too: with deterministic=true in
+ * the settings, it's the same with any number of threads, so it can be used
+ * to check that a change doesn't alter the results (see
+ * Simulation.setDeterministic).
+ *
+ * @author Federico
+ */
+public class Headless {
+
+    private static void usage() {
+        System.err.println("Usage: Headless input.gds output.gds (-steps N | -time T) [-config file.properties] [-checkpoint directory [-checkpointInterval seconds]] [-record file.gtr [-recordInterval steps] [-quantum q]]");
+        System.exit(1);
+    }
+
+    public static void main(String args[]) throws IOException {
+        File in = null, out = null, configFile = null, checkpoints = null, recording = null;
+        long steps = -1;
+        double maxTime = -1, checkpointInterval = 60, quantum = 0;
+        int recordInterval = 1;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-steps")) {
+                    steps = Long.parseLong(args[++i]);
+                } else if (args[i].equals("-time")) {
+                    maxTime = Double.parseDouble(args[++i]);
+                } else if (args[i].equals("-config")) {
+                    configFile = new File(args[++i]);
+                } else if (args[i].equals("-checkpoint")) {
+                    checkpoints = new File(args[++i]);
+                } else if (args[i].equals("-checkpointInterval")) {
+                    checkpointInterval = Double.parseDouble(args[++i]);
+                } else if (args[i].equals("-record")) {
+                    recording = new File(args[++i]);
+                } else if (args[i].equals("-recordInterval")) {
+                    recordInterval = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-quantum")) {
+                    quantum = Double.parseDouble(args[++i]);
+                } else if (in == null) {
+                    in = new File(args[i]);
+                } else if (out == null) {
+                    out = new File(args[i]);
+                } else {
+                    usage();
+                }
+            }
+        } catch (RuntimeException ex) {
+            usage(); //missing or invalid number
+        }
+        if (in == null || out == null || (steps < 0) == (maxTime < 0) || checkpointInterval < 0 || recordInterval <= 0 || quantum < 0) {
+            usage();
+        }
+        final SimulationConfig config = (configFile != null ? SimulationConfig.fromFile(configFile) : SimulationConfig.fromSystemProperties()).toBuilder().spsLimit(0).build();
+        final Runner r = new Runner(config, steps, maxTime);
+        final double[] view = r.loadState(in);
+        final int initialPoints = r.getNPoints();
+        final Checkpointer c = checkpoints != null ? new Checkpointer(checkpoints, "checkpoint", (long) (checkpointInterval * 1000)) : null;
+        r.setCheckpointer(c);
+        final TrajectoryRecorder rec = recording != null ? new TrajectoryRecorder(recording, recordInterval, quantum, true) : null;
+        r.setRecorder(rec);
+        final long t = System.nanoTime();
+        while (!r.done) {
+            r.step(1);
+        }
+        r.shutdown();
+        final long wallTime = System.nanoTime() - t;
+        if (c != null) {
+            c.close();
+        }
+        if (rec != null) {
+            rec.close();
+        }
+        r.saveState(out, view);
+        final double seconds = wallTime / 1e9;
+        System.out.println("points.initial=" + initialPoints);
+        System.out.println("points.final=" + r.getNPoints());
+        System.out.println("threads=" + r.getNThreads());
+        System.out.println("steps=" + r.steps);
+        System.out.println("simulatedTime=" + r.getSimulatedTime());
+        System.out.println("wallTime=" + format(seconds));
+        System.out.println("stepsPerSecond=" + format(r.steps / seconds));
+        System.out.println("forceEvaluations=" + r.evaluations);
+        System.out.println("forceEvaluationsPerSecond=" + format(r.evaluations / seconds));
+        System.out.println("stepTime.min=" + format(r.steps > 0 ? r.minStep / 1e9 : 0));
+        System.out.println("stepTime.max=" + format(r.maxStep / 1e9));
+        System.out.println("allocatedBytes=" + r.allocated);
+        System.out.println("checksum=" + String.format("%016x", r.getStateChecksum()));
+        if (c != null) {
+            System.out.println("checkpoints.written=" + c.getWritten());
+            System.out.println("checkpoints.skipped=" + c.getSkipped());
+            if (c.getLastError() != null) {
+                System.out.println("checkpoints.error=" + c.getLastError());
+            }
+        }
+        if (rec != null) {
+            System.out.println("recording.frames=" + rec.getFrames());
+            System.out.println("recording.stalls=" + rec.getStalls());
+            System.out.println("recording.bytes=" + recording.length());
+        }
+    }
+
+    private static String format(double x) {
+        return String.format(Locale.ROOT, "%.6f", x);
+    }
+
+    /**
+     * Simulation that knows when it's done, and collects the statistics of each
+     * step
+     */
+    private static class Runner extends Simulation {
+
+        private final long maxSteps;
+        private final double maxTime;
+
+        private boolean done;
+        private long steps = 0, evaluations = 0, allocated = 0, minStep = Long.MAX_VALUE, maxStep = 0;
+
+        Runner(SimulationConfig config, long maxSteps, double maxTime) {
+            super(config);
+            this.maxSteps = maxSteps;
+            this.maxTime = maxTime;
+            done = maxSteps == 0 || maxTime == 0;
+        }
+
+        @Override
+        public void onStepComplete(long nanoSeconds) {
+            steps++;
+            evaluations += getForceEvaluations();
+            final long b = getAllocatedBytes();
+            if (b < 0 || allocated < 0) {
+                allocated = -1;
+            } else {
+                allocated += b;
+            }
+            minStep = Math.min(minStep, nanoSeconds);
+            maxStep = Math.max(maxStep, nanoSeconds);
+            done = maxSteps >= 0 ? steps >= maxSteps : getSimulatedTime() >= maxTime;
+        }
+    }
+}
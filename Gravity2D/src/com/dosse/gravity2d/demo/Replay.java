@@ -0,0 +1,364 @@
+/*
+ * GNU LGPLv3
+ */
+package com.dosse.gravity2d.demo;
+
+import com.dosse.gravity2d.TrajectoryFrame;
+import com.dosse.gravity2d.TrajectoryReader;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Plays a trajectory recorded by TrajectoryRecorder, at any speed, forward or
+ * backward, without simulating anything.<br>
+ * The renderer gets the frame to draw with acquireFrame() and gives it back
+ * with releaseFrame(). A background thread decodes the next frames in the
+ * direction of playback (the reader memory maps the file) into a small cache,
+ * so the renderer never waits for the disk: if the frame it needs is not
+ * decoded yet, it gets the closest one that is.<br>
+ * When playing backward, the frames are decoded in increasing order, a block
+ * at a time, since each block of the file can only be decoded from its start.
+ *
+ * @author Federico
+ */
+public class Replay {
+
+    /**
+     * memory used by the cache, and limits to its number of frames
+     */
+    private static final long CACHE_BYTES = 256L << 20;
+    private static final int MIN_CACHE = 3, MAX_CACHE = 32;
+
+    /**
+     * a decoded frame. index is -1 while it's empty or being decoded, users
+     * is the number of renderers using it. guarded by the Replay
+     */
+    private static final class Entry {
+
+        final TrajectoryFrame frame = new TrajectoryFrame();
+        long index = -1;
+        int users = 0;
+    }
+
+    /**
+     * only used by the prefetcher (and nextWanted, which it calls), after the
+     * constructor
+     */
+    private final TrajectoryReader reader;
+    private final long nFrames;
+    private final Entry[] cache;
+
+    /**
+     * playback state. position is in frames, speed in frames per second
+     * (negative to play backward). target is the frame at position, stride
+     * how many frames the renderer skips between 2 calls to acquireFrame.
+     * all guarded by this
+     */
+    private double position = 0, speed = 50;
+    private boolean playing = true, closed = false;
+    private long lastUpdate = System.nanoTime(), target = 0, stride = 1;
+
+    private final Thread prefetcher = new Thread() {
+        @Override
+        public void run() {
+            prefetch();
+        }
+    };
+
+    /**
+     * opens a recording, decodes its first frame and starts playing it
+     *
+     * @param f trajectory file
+     * @throws IOException if it can't be read, or it's empty
+     */
+    public Replay(File f) throws IOException {
+        reader = new TrajectoryReader(f);
+        nFrames = reader.getFrameCount();
+        if (nFrames == 0) {
+            reader.close();
+            throw new IOException("The recording is empty");
+        }
+        final Entry first = new Entry();
+        try {
+            reader.readFrame(0, first.frame);
+        } catch (IOException ex) {
+            reader.close();
+            throw ex;
+        }
+        first.index = 0;
+        final long frameBytes = Math.max(1, first.frame.size()) * 52L; //id and 6 doubles per point
+        cache = new Entry[(int) Math.max(MIN_CACHE, Math.min(MAX_CACHE, CACHE_BYTES / frameBytes))];
+        cache[0] = first;
+        for (int i = 1; i < cache.length; i++) {
+            cache[i] = new Entry();
+        }
+        prefetcher.setName("Gravity - Replay Prefetcher");
+        prefetcher.setDaemon(true);
+        prefetcher.start();
+    }
+
+    /**
+     * moves the position according to the time passed since the last call.
+     * stops at the ends of the recording. called while holding the lock
+     */
+    private void update() {
+        final long now = System.nanoTime();
+        if (playing) {
+            position += speed * (now - lastUpdate) / 1e9;
+            if (position <= 0 || position >= nFrames - 1) {
+                position = Math.max(0, Math.min(nFrames - 1, position));
+                playing = false;
+            }
+        }
+        lastUpdate = now;
+        final long t = (long) position;
+        if (t != target) {
+            if (playing) {
+                stride = Math.abs(t - target);
+            }
+            target = t;
+            notifyAll();
+        }
+    }
+
+    /**
+     * gets the frame to draw now: the current one, or the closest one that is
+     * decoded. it doesn't change until it's released
+     *
+     * @return frame
+     */
+    public synchronized TrajectoryFrame acquireFrame() {
+        update();
+        Entry best = null;
+        for (Entry e : cache) {
+            if (e.index >= 0 && (best == null || Math.abs(e.index - target) < Math.abs(best.index - target))) {
+                best = e;
+            }
+        }
+        //there's always one: an entry is only emptied to decode a frame when another one has a frame
+        best.users++;
+        return best.frame;
+    }
+
+    /**
+     * gives back a frame obtained with acquireFrame
+     *
+     * @param f frame
+     */
+    public synchronized void releaseFrame(TrajectoryFrame f) {
+        for (Entry e : cache) {
+            if (e.frame == f) {
+                e.users--;
+                notifyAll();
+                return;
+            }
+        }
+    }
+
+    /**
+     *
+     * @return direction of playback, 1 or -1
+     */
+    private int direction() {
+        return speed < 0 ? -1 : 1;
+    }
+
+    /**
+     * @return true if frame i is one of those that should be in the cache:
+     * target and the next ones in the direction of playback, stride frames
+     * apart
+     */
+    private boolean wanted(long i) {
+        final long d = (i - target) * direction();
+        return d >= 0 && d % stride == 0 && d / stride < cache.length - 1 && i < nFrames;
+    }
+
+    private boolean cached(long i) {
+        for (Entry e : cache) {
+            if (e.index == i) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return next frame to decode, -1 if they're all in the cache. target
+     * comes first; then, going forward, the next ones in order. going
+     * backward, decoding a frame out of order restarts from the keyframe of
+     * its block, so the wanted frames are decoded a block at a time, each
+     * block in increasing order: the earliest missing one in the block of the
+     * closest missing one
+     */
+    private long nextWanted() {
+        if (!cached(target)) {
+            return target;
+        }
+        long best = -1, keyframe = -1;
+        for (int k = 1; k < cache.length - 1; k++) {
+            final long i = target + direction() * k * stride;
+            if (i < 0 || i >= nFrames || i < keyframe) {
+                break;
+            }
+            if (!cached(i)) {
+                if (direction() > 0) {
+                    return i;
+                }
+                if (best == -1) {
+                    keyframe = reader.getKeyframe(i);
+                }
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return an entry that can be overwritten: not used by a renderer, and
+     * empty or with a frame that is not wanted. never the only entry with a
+     * frame, so acquireFrame always has something to show. null if there are
+     * none
+     */
+    private Entry victim() {
+        Entry best = null;
+        int decoded = 0;
+        for (Entry e : cache) {
+            if (e.index >= 0) {
+                decoded++;
+            }
+            if (e.users == 0 && (e.index < 0 || !wanted(e.index))) {
+                if (best == null || e.index < 0 || (best.index >= 0 && Math.abs(e.index - target) > Math.abs(best.index - target))) {
+                    best = e;
+                }
+            }
+        }
+        return best != null && best.index >= 0 && decoded == 1 ? null : best;
+    }
+
+    /**
+     * prefetcher thread: decodes the wanted frames that are not in the cache
+     */
+    private void prefetch() {
+        try {
+            for (;;) {
+                final long want;
+                final Entry slot;
+                synchronized (this) {
+                    long w = -1;
+                    Entry v = null;
+                    while (!closed && ((w = nextWanted()) < 0 || (v = victim()) == null)) {
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                        }
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    want = w;
+                    slot = v;
+                    slot.index = -1; //not visible to the renderer while it's decoded
+                }
+                try {
+                    reader.readFrame(want, slot.frame);
+                } catch (IOException ex) {
+                    synchronized (this) {
+                        closed = true; //can't go on, keep showing what's there
+                    }
+                    return;
+                }
+                synchronized (this) {
+                    slot.index = want;
+                }
+            }
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    /**
+     * jumps to a frame
+     *
+     * @param frame frame index, clamped to the recording
+     */
+    public synchronized void seek(double frame) {
+        update();
+        position = Math.max(0, Math.min(nFrames - 1, frame));
+        target = (long) position;
+        notifyAll();
+    }
+
+    /**
+     *
+     * @return current position, in frames
+     */
+    public synchronized double getPosition() {
+        update();
+        return position;
+    }
+
+    /**
+     *
+     * @return number of frames in the recording
+     */
+    public long getFrameCount() {
+        return nFrames;
+    }
+
+    /**
+     *
+     * @return playback speed in frames per second, negative if playing
+     * backward
+     */
+    public synchronized double getSpeed() {
+        return speed;
+    }
+
+    /**
+     *
+     * @param speed playback speed in frames per second, negative to play
+     * backward
+     */
+    public synchronized void setSpeed(double speed) {
+        update();
+        this.speed = speed;
+        notifyAll();
+    }
+
+    /**
+     *
+     * @return true if playing, false if paused (or at the end)
+     */
+    public synchronized boolean isPlaying() {
+        update();
+        return playing;
+    }
+
+    /**
+     * plays or pauses. playing from an end of the recording in its direction
+     * restarts from the other end
+     *
+     * @param playing true to play, false to pause
+     */
+    public synchronized void setPlaying(boolean playing) {
+        update();
+        if (playing && ((speed >= 0 && position >= nFrames - 1) || (speed < 0 && position <= 0))) {
+            position = speed >= 0 ? 0 : nFrames - 1;
+            target = (long) position;
+            notifyAll();
+        }
+        this.playing = playing;
+    }
+
+    /**
+     * stops the prefetcher and closes the file. frames that are still
+     * acquired can be used until they're released
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}